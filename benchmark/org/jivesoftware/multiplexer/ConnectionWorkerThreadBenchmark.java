@@ -0,0 +1,62 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures wrapping of client stanzas by <tt>route</tt> elements before
+ * {@link ConnectionWorkerThread} sends them to the server. Each operation wraps all
+ * the stanzas of the corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConnectionWorkerThreadBenchmark {
+
+    @Param({StanzaCorpus.MESSAGE, StanzaCorpus.PRESENCE, StanzaCorpus.IQ})
+    public String kind;
+
+    private String[] stanzas;
+
+    @Setup
+    public void setup() {
+        stanzas = StanzaCorpus.getStanzas(kind);
+    }
+
+    @Benchmark
+    public void wrapStanza(Blackhole blackhole) {
+        for (String stanza : stanzas) {
+            blackhole.consume(ConnectionWorkerThread.wrapStanza(stanza, "a1b2c3d4",
+                    "capulet.lit", "manager/thread1"));
+        }
+    }
+}
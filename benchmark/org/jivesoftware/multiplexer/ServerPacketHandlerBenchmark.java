@@ -0,0 +1,80 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import org.jivesoftware.multiplexer.net.NIOConnection;
+import org.jivesoftware.multiplexer.net.NullIoSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures forwarding of <tt>route</tt> stanzas sent by the server to a client session by
+ * {@link ServerPacketHandler}. Routes are forwarded without being parsed to authenticated
+ * sessions and are parsed otherwise. Each operation handles all the stanzas of the corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ServerPacketHandlerBenchmark {
+
+    private static final String STREAM_ID = "benchmark";
+
+    @Param({StanzaCorpus.MESSAGE, StanzaCorpus.PRESENCE, StanzaCorpus.IQ})
+    public String kind;
+
+    @Param({"true", "false"})
+    public boolean authenticated;
+
+    private String[] routes;
+    private ServerPacketHandler handler;
+
+    @Setup
+    public void setup() {
+        String[] stanzas = StanzaCorpus.getServerStanzas(kind);
+        routes = new String[stanzas.length];
+        for (int i = 0; i < stanzas.length; i++) {
+            routes[i] = "<route from='capulet.lit' to='manager/thread1' streamid='" + STREAM_ID +
+                    "'>" + stanzas[i] + "</route>";
+        }
+        NIOConnection connection = new NIOConnection(NullIoSession.create(), null);
+        ClientSession session = new ClientSession("capulet.lit", connection, STREAM_ID);
+        if (authenticated) {
+            session.setStatus(Session.STATUS_AUTHENTICATED);
+        }
+        Session.addSession(STREAM_ID, session);
+        handler = new ServerPacketHandler(connection, "manager/thread1");
+    }
+
+    @Benchmark
+    public void handle() {
+        for (String route : routes) {
+            handler.handle(route);
+        }
+    }
+}
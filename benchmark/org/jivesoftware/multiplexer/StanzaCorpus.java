@@ -0,0 +1,120 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+/**
+ * Stanzas used by the benchmarks. Each corpus contains stanzas of one type with the
+ * shapes and sizes that are commonly exchanged by XMPP clients.
+ */
+public final class StanzaCorpus {
+
+    /**
+     * Value of the <tt>kind</tt> parameter of the benchmarks.
+     */
+    public static final String MESSAGE = "message";
+    public static final String PRESENCE = "presence";
+    public static final String IQ = "iq";
+
+    private static final String[] MESSAGES = {
+            "<message to='juliet@capulet.lit/balcony' type='chat' id='ktx72v49'>" +
+                    "<body>Art thou not Romeo, and a Montague?</body>" +
+                    "<active xmlns='http://jabber.org/protocol/chatstates'/></message>",
+            "<message to='juliet@capulet.lit/balcony' type='chat' id='ktx72v50'>" +
+                    "<composing xmlns='http://jabber.org/protocol/chatstates'/></message>",
+            "<message to='coven@chat.shakespeare.lit' type='groupchat' id='lh2bs617'>" +
+                    "<body>Thrice the brinded cat hath mew'd. Thrice and once the " +
+                    "hedge-pig whined. Harpier cries 'Tis time, 'tis time.</body>" +
+                    "<thread>e0ffe42b28561960c6b12b944a092794b9683a38</thread></message>",
+            "<message to='juliet@capulet.lit' type='chat' id='xhtml1'>" +
+                    "<body>Wow, I&apos;m green with envy!</body>" +
+                    "<html xmlns='http://jabber.org/protocol/xhtml-im'>" +
+                    "<body xmlns='http://www.w3.org/1999/xhtml'>" +
+                    "<p style='font-size:large'><em>Wow</em>, I&apos;m " +
+                    "<span style='color:green'>green</span> with " +
+                    "<strong>envy</strong>!</p></body></html>" +
+                    "<request xmlns='urn:xmpp:receipts'/></message>",
+    };
+
+    private static final String[] PRESENCES = {
+            "<presence/>",
+            "<presence><show>away</show><status>Gone fishing</status><priority>5</priority>" +
+                    "<c xmlns='http://jabber.org/protocol/caps' hash='sha-1' " +
+                    "node='http://psi-im.org' ver='q07IKJEyjvHSyhy//CH0CxmKi8w='/></presence>",
+            "<presence><priority>1</priority><x xmlns='vcard-temp:x:update'>" +
+                    "<photo>01b87fcd030b72895ff8e88db57ec525450f000d</photo></x></presence>",
+            "<presence to='coven@chat.shakespeare.lit/thirdwitch'>" +
+                    "<x xmlns='http://jabber.org/protocol/muc'>" +
+                    "<history maxstanzas='20'/></x></presence>",
+    };
+
+    private static final String[] IQS = {
+            "<iq type='get' id='roster_1'><query xmlns='jabber:iq:roster'/></iq>",
+            "<iq type='get' to='shakespeare.lit' id='info1'>" +
+                    "<query xmlns='http://jabber.org/protocol/disco#info'/></iq>",
+            "<iq type='get' to='capulet.lit' id='c2s1'><ping xmlns='urn:xmpp:ping'/></iq>",
+            "<iq type='set' id='roster_2'><query xmlns='jabber:iq:roster'>" +
+                    "<item jid='nurse@example.com' name='Nurse'><group>Servants</group>" +
+                    "</item></query></iq>",
+    };
+
+    private StanzaCorpus() {
+    }
+
+    /**
+     * Returns the stanzas of the specified kind.
+     *
+     * @param kind the kind of stanzas (i.e. message, presence or iq).
+     * @return the stanzas of the specified kind.
+     */
+    public static String[] getStanzas(String kind) {
+        if (MESSAGE.equals(kind)) {
+            return MESSAGES.clone();
+        }
+        else if (PRESENCE.equals(kind)) {
+            return PRESENCES.clone();
+        }
+        else if (IQ.equals(kind)) {
+            return IQS.clone();
+        }
+        throw new IllegalArgumentException("Unknown kind of stanzas: " + kind);
+    }
+
+    /**
+     * Returns the stanzas of the specified kind as sent by the server to a client (i.e.
+     * including the address of the sender).
+     *
+     * @param kind the kind of stanzas (i.e. message, presence or iq).
+     * @return the stanzas of the specified kind as sent by the server.
+     */
+    public static String[] getServerStanzas(String kind) {
+        String[] stanzas = getStanzas(kind);
+        for (int i = 0; i < stanzas.length; i++) {
+            // Add the from attribute after the name of the root element
+            int index = 1;
+            while (" />".indexOf(stanzas[i].charAt(index)) < 0) {
+                index++;
+            }
+            stanzas[i] = stanzas[i].substring(0, index) + " from='romeo@montague.lit/orchard'" +
+                    stanzas[i].substring(index);
+        }
+        return stanzas;
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import org.jivesoftware.multiplexer.StanzaCorpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures encoding of stanzas delivered to clients by {@link NIOConnection}. Written
+ * buffers are released right away as MINA does once they were sent. Each operation
+ * delivers all the stanzas of the corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NIOConnectionBenchmark {
+
+    @Param({StanzaCorpus.MESSAGE, StanzaCorpus.PRESENCE, StanzaCorpus.IQ})
+    public String kind;
+
+    @Param({"false", "true"})
+    public boolean pooled;
+
+    private String[] stanzas;
+    private NIOConnection connection;
+
+    @Setup
+    public void setup() {
+        if (pooled) {
+            PooledBufferAllocator.install(60);
+        }
+        stanzas = StanzaCorpus.getServerStanzas(kind);
+        connection = new NIOConnection(NullIoSession.create(), null);
+    }
+
+    @Benchmark
+    public void deliver() {
+        for (String stanza : stanzas) {
+            connection.deliver(stanza);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoSession;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Creates MINA sessions that are always connected and that discard written buffers
+ * so that connections can be benchmarked without sockets.
+ */
+public final class NullIoSession {
+
+    private NullIoSession() {
+    }
+
+    /**
+     * Returns a new session that is connected and that discards everything written to it.
+     *
+     * @return a new session that discards everything written to it.
+     */
+    public static IoSession create() {
+        return (IoSession) Proxy.newProxyInstance(IoSession.class.getClassLoader(),
+                new Class<?>[] {IoSession.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if ("isConnected".equals(name)) {
+                            return Boolean.TRUE;
+                        }
+                        if ("write".equals(name) && args[0] instanceof ByteBuffer) {
+                            ((ByteBuffer) args[0]).release();
+                        }
+                        Class<?> type = method.getReturnType();
+                        if (type == boolean.class) {
+                            return Boolean.FALSE;
+                        }
+                        else if (type == int.class) {
+                            return 0;
+                        }
+                        else if (type == long.class) {
+                            return 0L;
+                        }
+                        else if ("toString".equals(name)) {
+                            return "NullIoSession";
+                        }
+                        return null;
+                    }
+                });
+    }
+}
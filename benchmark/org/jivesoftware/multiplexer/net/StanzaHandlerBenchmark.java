@@ -0,0 +1,110 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import org.jivesoftware.multiplexer.ClientSession;
+import org.jivesoftware.multiplexer.Connection;
+import org.jivesoftware.multiplexer.PacketRouter;
+import org.jivesoftware.multiplexer.StanzaCorpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures processing of framed client stanzas by {@link StanzaHandler} until they are
+ * handed to the router. Each operation processes all the stanzas of the corpus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class StanzaHandlerBenchmark {
+
+    private static final String STREAM_HEADER = "<stream:stream to='capulet.lit' " +
+            "xmlns='jabber:client' xmlns:stream='http://etherx.jabber.org/streams' version='1.0'>";
+
+    @Param({StanzaCorpus.MESSAGE, StanzaCorpus.PRESENCE, StanzaCorpus.IQ})
+    public String kind;
+
+    private String[] stanzas;
+    private StanzaHandler handler;
+    private XmlPullParser parser;
+    private int routed;
+
+    @Setup
+    public void setup() throws Exception {
+        stanzas = StanzaCorpus.getStanzas(kind);
+        PacketRouter router = new PacketRouter() {
+            public void route(String stanza, String streamID) {
+                routed += stanza.length();
+            }
+        };
+        NIOConnection connection = new NIOConnection(NullIoSession.create(), null);
+        handler = new BenchmarkStanzaHandler(router, connection);
+        parser = ParserCache.getParser();
+        // Open the stream so that the session is created
+        handler.process(STREAM_HEADER, parser);
+    }
+
+    @Benchmark
+    public int process() throws Exception {
+        for (String stanza : stanzas) {
+            handler.process(stanza, parser);
+        }
+        return routed;
+    }
+
+    /**
+     * Handler that creates client sessions without notifying the server.
+     */
+    private static class BenchmarkStanzaHandler extends StanzaHandler {
+
+        BenchmarkStanzaHandler(PacketRouter router, Connection connection)
+                throws XmlPullParserException {
+            super(router, "capulet.lit", connection);
+        }
+
+        @Override
+        String getNamespace() {
+            return "jabber:client";
+        }
+
+        @Override
+        boolean validateHost() {
+            return false;
+        }
+
+        @Override
+        boolean createSession(String namespace, String serverName, XmlPullParser xpp,
+                              Connection connection) throws XmlPullParserException {
+            session = new ClientSession(serverName, connection, "benchmark");
+            return true;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import org.apache.mina.common.ByteBuffer;
+import org.jivesoftware.multiplexer.StanzaCorpus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures framing of client traffic by {@link XMLLightweightParser}. Each operation
+ * frames all the stanzas of the corpus, which are received in reads of
+ * <tt>readSize</tt> bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class XMLLightweightParserBenchmark {
+
+    @Param({StanzaCorpus.MESSAGE, StanzaCorpus.PRESENCE, StanzaCorpus.IQ})
+    public String kind;
+
+    @Param({"1460", "65536"})
+    public int readSize;
+
+    private XMLLightweightParser parser;
+    private byte[][] reads;
+
+    @Setup
+    public void setup() throws Exception {
+        parser = new XMLLightweightParser("UTF-8");
+        StringBuilder traffic = new StringBuilder();
+        for (String stanza : StanzaCorpus.getStanzas(kind)) {
+            traffic.append(stanza);
+        }
+        byte[] bytes = traffic.toString().getBytes("UTF-8");
+        int count = (bytes.length + readSize - 1) / readSize;
+        reads = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            int length = Math.min(readSize, bytes.length - i * readSize);
+            reads[i] = new byte[length];
+            System.arraycopy(bytes, i * readSize, reads[i], 0, length);
+        }
+    }
+
+    @Benchmark
+    public void read(Blackhole blackhole) throws Exception {
+        for (byte[] read : reads) {
+            parser.read(ByteBuffer.wrap(read));
+            if (parser.areThereMsgs()) {
+                blackhole.consume(parser.getMsgs());
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.http;
+
+import org.apache.mina.common.ByteBuffer;
+import org.dom4j.Element;
+import org.jivesoftware.multiplexer.StanzaCorpus;
+import org.jivesoftware.multiplexer.net.ParserCache;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures creation of BOSH responses by {@link HttpSession}. Each operation delivers all
+ * the stanzas of the corpus to the session and then encodes them in the body of the
+ * response to the next request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HttpSessionBenchmark {
+
+    @Param({StanzaCorpus.MESSAGE, StanzaCorpus.PRESENCE, StanzaCorpus.IQ})
+    public String kind;
+
+    private Element[] stanzas;
+    private HttpSession session;
+    private long rid = 1;
+
+    @Setup
+    public void setup() throws Exception {
+        String[] corpus = StanzaCorpus.getServerStanzas(kind);
+        stanzas = new Element[corpus.length];
+        for (int i = 0; i < corpus.length; i++) {
+            stanzas[i] = ParserCache.getReader().read(new StringReader(corpus[i])).getRootElement();
+        }
+        session = new HttpSession("capulet.lit", "benchmark", rid);
+        session.setWait(60);
+        session.setHold(1);
+        session.setMaxRequests(2);
+    }
+
+    @Benchmark
+    public int createDeliverable() throws Exception {
+        for (Element stanza : stanzas) {
+            session.deliver(stanza);
+        }
+        rid++;
+        session.createConnection(rid, Collections.<String>emptyList(), false, false);
+        ByteBuffer response = session.getResponse(rid);
+        int length = response.remaining();
+        // The servlet releases responses once they were written
+        response.release();
+        return length;
+    }
+}
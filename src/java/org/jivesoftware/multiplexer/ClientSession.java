@@ -176,27 +176,54 @@ public class ClientSession extends Session {
             return session;
         }
         // Otherwise, this is at least XMPP 1.0 so we need to announce stream features.
+        connection.deliverRawText(session.getStreamFeatures(true, true));
+        return session;
+    }
 
-        sb = new StringBuilder(490);
+    /**
+     * Returns the <tt>stream:features</tt> element to offer to the client. Stream features
+     * only depend on the configuration sent by the server and on the state of the stream so
+     * they are built once for each state and then taken from the cache of the
+     * {@link ServerSurrogate}.
+     *
+     * @param includeTLS true if TLS is offered unless it was disabled by the server.
+     * @param includeSASL true if the SASL mechanisms of the server are offered.
+     * @return the stream:features element to offer to the client.
+     */
+    public String getStreamFeatures(boolean includeTLS, boolean includeSASL) {
+        ServerSurrogate serverSurrogate = ConnectionManager.getInstance().getServerSurrogate();
+        Connection.TLSPolicy tlsPolicy = conn.getTlsPolicy();
+        String key = tlsPolicy + ":" + includeTLS + ":" + includeSASL + ":" +
+                conn.isSecure() + ":" + conn.getCompressionPolicy() + ":" +
+                (getStatus() == Session.STATUS_AUTHENTICATED);
+        String features = serverSurrogate.getStreamFeatures(key);
+        if (features != null) {
+            return features;
+        }
+
+        int generation = serverSurrogate.getStreamFeaturesGeneration();
+        StringBuilder sb = new StringBuilder(490);
         sb.append("<stream:features>");
-        if (connection.getTlsPolicy() != Connection.TLSPolicy.disabled) {
+        if (includeTLS && tlsPolicy != Connection.TLSPolicy.disabled) {
             sb.append("<starttls xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\">");
-            if (connection.getTlsPolicy() == Connection.TLSPolicy.required) {
+            if (tlsPolicy == Connection.TLSPolicy.required) {
                 sb.append("<required/>");
             }
             sb.append("</starttls>");
         }
-        // Include available SASL Mechanisms
-        sb.append(serverSurrogate.getSASLMechanisms(session));
+        if (includeSASL) {
+            // Include available SASL Mechanisms
+            sb.append(serverSurrogate.getSASLMechanisms(this));
+        }
         // Include Stream features
-        String specificFeatures = session.getAvailableStreamFeatures();
+        String specificFeatures = getAvailableStreamFeatures();
         if (specificFeatures != null) {
             sb.append(specificFeatures);
         }
         sb.append("</stream:features>");
-
-        connection.deliverRawText(sb.toString());
-        return session;
+        features = sb.toString();
+        serverSurrogate.cacheStreamFeatures(key, features, generation);
+        return features;
     }
 
     public ClientSession(String serverName, Connection connection, String streamID) {
@@ -274,6 +301,24 @@ public class ClientSession extends Session {
         }
     }
 
+    @Override
+    public boolean deliverRawStanza(String stanza) {
+        // Until session is not authenticated we need to inspect server traffic
+        if (status != Session.STATUS_AUTHENTICATED) {
+            return false;
+        }
+        // Deliver stanza to client
+        if (conn != null && !conn.isClosed()) {
+            try {
+                conn.deliver(stanza);
+            }
+            catch (Exception e) {
+                Log.error(LocaleUtils.getLocalizedString("admin.error"), e);
+            }
+        }
+        return true;
+    }
+
     @Override
 	public void close() {
         close(false);
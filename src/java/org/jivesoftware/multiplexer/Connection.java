@@ -259,6 +259,35 @@ public interface Connection {
      */
     void init(Session session);
 
+    /**
+     * Returns the number of bytes of the buffer where the traffic read from this connection
+     * is parsed.
+     *
+     * @return the number of bytes of the buffer of the parser of this connection.
+     */
+    long getReadBufferBytes();
+
+    /**
+     * Returns the number of bytes that were written to this connection but not yet sent.
+     *
+     * @return the number of bytes waiting to be sent.
+     */
+    long getWriteQueueBytes();
+
+    /**
+     * Stops reading from this connection until {@link #resumeReading()} is invoked. Data sent
+     * by the peer stays in the socket buffers and the peer is eventually blocked by TCP flow
+     * control.
+     *
+     * @return false if reading from this connection cannot be suspended.
+     */
+    boolean suspendReading();
+
+    /**
+     * Resumes reading from this connection.
+     */
+    void resumeReading();
+
     /**
      * Enumeration of possible compression policies required to interact with the server.
      */
@@ -22,6 +22,8 @@ package org.jivesoftware.multiplexer;
 
 import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.common.ExecutorThreadModel;
+import org.apache.mina.common.IoFilterChain;
+import org.apache.mina.common.IoFilterChainBuilder;
 import org.apache.mina.common.SimpleByteBufferAllocator;
 import org.apache.mina.common.ThreadModel;
 import org.apache.mina.filter.SSLFilter;
@@ -33,16 +35,19 @@ import org.apache.mina.transport.socket.nio.SocketSessionConfig;
 import org.dom4j.Document;
 import org.dom4j.io.SAXReader;
 import org.jivesoftware.multiplexer.net.ClientConnectionHandler;
+import org.jivesoftware.multiplexer.net.PooledBufferAllocator;
 import org.jivesoftware.multiplexer.net.SSLConfig;
 import org.jivesoftware.multiplexer.net.SocketSendingTracker;
 import org.jivesoftware.multiplexer.net.StalledSessionsFilter;
+import org.jivesoftware.multiplexer.net.TLSHandshakeExecutor;
+import org.jivesoftware.multiplexer.net.TLSSessionCache;
 import org.jivesoftware.multiplexer.net.XMPPCodecFactory;
 import org.jivesoftware.multiplexer.net.http.HttpBindManager;
+import org.jivesoftware.multiplexer.net.websocket.WebSocketCodecFactory;
+import org.jivesoftware.multiplexer.net.websocket.WebSocketConnectionHandler;
 import org.jivesoftware.util.*;
 
-import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManagerFactory;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -130,6 +135,7 @@ public class ConnectionManager {
     private ServerSurrogate serverSurrogate;
     private SocketAcceptor socketAcceptor;
     private SocketAcceptor sslSocketAcceptor;
+    private SocketAcceptor webSocketAcceptor;
 
     /**
      * Returns a singleton instance of ConnectionManager.
@@ -249,6 +255,17 @@ public class ConnectionManager {
     }
 
     private void startModules() {
+        // Check if we need to configure MINA to use Direct or Heap Buffers
+        // Note: It has been reported that heap buffers are 50% faster than direct buffers
+        if (!JiveGlobals.getBooleanProperty("xmpp.socket.directBuffer", false)) {
+            ByteBuffer.setUseDirectBuffers(false);
+            ByteBuffer.setAllocator(new SimpleByteBufferAllocator());
+        }
+        // Check if MINA buffers should be reused
+        if (JiveGlobals.getBooleanProperty("xmpp.socket.buffer.pool.enabled", false)) {
+            PooledBufferAllocator.install(
+                    JiveGlobals.getIntProperty("xmpp.socket.buffer.pool.timeout", 60));
+        }
         serverSurrogate = new ServerSurrogate();
         serverSurrogate.start();
         String localIPAddress;
@@ -261,30 +278,32 @@ public class ConnectionManager {
         }
         // Start process that checks health of socket connections
         SocketSendingTracker.getInstance().start();
-        // Check if we need to configure MINA to use Direct or Heap Buffers
-        // Note: It has been reported that heap buffers are 50% faster than direct buffers
-        if (!JiveGlobals.getBooleanProperty("xmpp.socket.directBuffer", false)) {
-            ByteBuffer.setUseDirectBuffers(false);
-            ByteBuffer.setAllocator(new SimpleByteBufferAllocator());
-        }
+        // Start process that applies backpressure when sessions buffer too much memory
+        MemoryBudget.getInstance().start();
         // Start the port listener for clients
         startClientListeners(localIPAddress);
         // Start the port listener for secured clients
         startClientSSLListeners(localIPAddress);
         // Start http bind listener
         startHttpBindServlet();
+        // Start the port listener for WebSocket clients
+        startWebSocketListener();
     }
 
     private void stopModules() {
         stopClientListeners();
         stopClientSSLListeners();
         stopHttpBindServlet();
+        stopWebSocketListener();
+        TLSHandshakeExecutor.shutdown();
         // Stop process that checks health of socket connections
         SocketSendingTracker.getInstance().shutdown();
+        MemoryBudget.getInstance().shutdown();
         // Stop service that forwards packets to the server
         if (serverSurrogate != null) {
             serverSurrogate.shutdown(false);
         }
+        ServerConnectionHandler.disposeConnector();
     }
 
     public int getClientListenerPort() {
@@ -366,10 +385,6 @@ public class ConnectionManager {
         }
         // Start clients SSL unless it's been disabled.
         int port = JiveGlobals.getIntProperty("xmpp.socket.ssl.port", 5223);
-        String algorithm = JiveGlobals.getXMLProperty("xmpp.socket.ssl.algorithm");
-        if ("".equals(algorithm) || algorithm == null) {
-            algorithm = "TLS";
-        }
         // Create SocketAcceptor with correct number of processors
         sslSocketAcceptor = buildSocketAcceptor();
         // Customize thread model for c2s (old ssl port)
@@ -400,18 +415,25 @@ public class ConnectionManager {
         sslSocketAcceptor.getFilterChain().addFirst("threadModel", executorFilter);
                                                                   
         try {
-            // Add the SSL filter now since sockets are "borned" encrypted in the old ssl method
-            SSLContext sslContext = SSLContext.getInstance(algorithm);
-            KeyManagerFactory keyFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-            keyFactory.init(SSLConfig.getKeyStore(), SSLConfig.getKeyPassword().toCharArray());
-            TrustManagerFactory trustFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-            trustFactory.init(SSLConfig.getTrustStore());
-
-            sslContext.init(keyFactory.getKeyManagers(),
-                    trustFactory.getTrustManagers(),
-                    new java.security.SecureRandom());
-
-            sslSocketAcceptor.getFilterChain().addFirst("tls", new SSLFilter(sslContext));
+            // Add the SSL filter now since sockets are "borned" encrypted in the old ssl method.
+            // The SSLContext is shared with STARTTLS and BOSH so TLS sessions can be resumed
+            if (SSLConfig.getSSLContext() == null) {
+                throw new IOException("SSLContext of client connections is not available");
+            }
+            // The filter is created for each connection so that new connections use the
+            // SSLContext that was built after the certificates changed
+            sslSocketAcceptor.getDefaultConfig().setFilterChainBuilder(new IoFilterChainBuilder() {
+                public void buildFilterChain(IoFilterChain chain) throws Exception {
+                    SSLContext sslContext = SSLConfig.getSSLContext();
+                    if (sslContext == null) {
+                        throw new IOException("SSLContext of client connections is not available");
+                    }
+                    chain.addFirst("tlsStats", TLSSessionCache.getHandshakeTracker());
+                    chain.addFirst("tls", new SSLFilter(sslContext));
+                    // Handshakes run on their own pool instead of the thread of the processor
+                    chain.addFirst("handshake", TLSHandshakeExecutor.getInstance());
+                }
+            });
 
             // Listen on a specific network interface if it has been set.
             String interfaceName = JiveGlobals.getXMLProperty("xmpp.socket.network.interface");
@@ -442,6 +464,65 @@ public class ConnectionManager {
         }
     }
 
+    public int getWebSocketListenerPort() {
+        return JiveGlobals.getIntProperty("xmpp.websocket.port", 7071);
+    }
+
+    private void startWebSocketListener() {
+        if (!JiveGlobals.getBooleanProperty("xmpp.websocket.enabled", false)) {
+            // Do not start listener if service is disabled
+            return;
+        }
+        int port = getWebSocketListenerPort();
+        // Create SocketAcceptor with correct number of processors
+        webSocketAcceptor = buildSocketAcceptor();
+        // Customize Executor that will be used by processors to process incoming messages
+        ExecutorThreadModel threadModel = ExecutorThreadModel.getInstance("websocket");
+        int eventThreads = JiveGlobals.getIntProperty("xmpp.processor.threads.websocket", 16);
+        ThreadPoolExecutor eventExecutor = (ThreadPoolExecutor)threadModel.getExecutor();
+        eventExecutor.setCorePoolSize(eventThreads + 1);
+        eventExecutor.setMaximumPoolSize(eventThreads + 1);
+        eventExecutor.setKeepAliveTime(60, TimeUnit.SECONDS);
+
+        webSocketAcceptor.getDefaultConfig().setThreadModel(threadModel);
+        // Add the WebSocket codec filter
+        int maxMessageSize = JiveGlobals.getIntProperty("xmpp.websocket.message.max", 256 * 1024);
+        webSocketAcceptor.getFilterChain().addFirst("websocket",
+                new ProtocolCodecFilter(new WebSocketCodecFactory(maxMessageSize)));
+        // Kill sessions whose outgoing queues keep growing and fail to send traffic
+        webSocketAcceptor.getFilterChain().addAfter("websocket", "outCap", new StalledSessionsFilter());
+
+        try {
+            // Listen on a specific network interface if it has been set.
+            String interfaceName = JiveGlobals.getXMLProperty("xmpp.socket.network.interface");
+            InetAddress bindInterface = null;
+            if (interfaceName != null) {
+                if (interfaceName.trim().length() > 0) {
+                    bindInterface = InetAddress.getByName(interfaceName);
+                }
+            }
+            // Start accepting connections
+            webSocketAcceptor.bind(new InetSocketAddress(bindInterface, port),
+                    new WebSocketConnectionHandler());
+
+            List<String> params = new ArrayList<String>();
+            params.add(Integer.toString(port));
+            Log.info(LocaleUtils.getLocalizedString("startup.websocket", params));
+        }
+        catch (Exception e) {
+            System.err.println("Error starting WebSocket listener on port " + port + ": " +
+                    e.getMessage());
+            Log.error(LocaleUtils.getLocalizedString("admin.error.websocket"), e);
+        }
+    }
+
+    private void stopWebSocketListener() {
+        if (webSocketAcceptor != null) {
+            webSocketAcceptor.unbindAll();
+            webSocketAcceptor = null;
+        }
+    }
+
     private void startHttpBindServlet() {
         boolean httpBindEnabled = JiveGlobals.getBooleanProperty("xmpp.httpbind.enabled", false);
         if (!httpBindEnabled) {
@@ -22,11 +22,16 @@ package org.jivesoftware.multiplexer;
 
 import com.jcraft.jzlib.JZlib;
 import com.jcraft.jzlib.ZInputStream;
+import org.apache.mina.common.ConnectFuture;
+import org.apache.mina.common.IdleStatus;
+import org.apache.mina.common.IoSession;
 import org.dom4j.Element;
 import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.multiplexer.net.DNSUtil;
 import org.jivesoftware.multiplexer.net.MXParser;
+import org.jivesoftware.multiplexer.net.NIOConnection;
 import org.jivesoftware.multiplexer.net.SocketConnection;
+import org.jivesoftware.multiplexer.net.ZlibCompressionFilter;
 import org.jivesoftware.multiplexer.spi.ServerFailoverDeliverer;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
@@ -42,15 +47,33 @@ import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Thread that creates and keeps a connection to the server. This thread is responsable
  * for actually forwarding clients traffic to the server. If the connection is no longer
  * active then the thread is going to be discarded and a new one is created and added to
- * the thread pool that is kept in {@link ServerSurrogate}.
+ * the thread pool that is kept in {@link ServerSurrogate}.<p>
+ *
+ * Wrapped client traffic may be coalesced into batches that are written to the server
+ * with a single flush by a thread of the connection. Batching is disabled by default and
+ * can be enabled by setting the <tt>xmpp.manager.batch.size</tt> property to the maximum
+ * number of stanzas to send per write. The <tt>xmpp.manager.batch.linger</tt> property
+ * specifies the maximum number of milliseconds to wait for more stanzas before sending an
+ * incomplete batch (default is 0, i.e. only stanzas that are already queued are coalesced).
+ * Batching only applies to blocking sockets since NIO connections already queue writes.<p>
+ *
+ * By default connections to the server use blocking sockets and a thread for reading
+ * the traffic sent by the server. Set the <tt>xmpp.manager.nio.enabled</tt> property to
+ * true to use NIO connections instead. The traffic of NIO connections is read and written
+ * by a few threads that are shared by all the connections to the server.
  *
  * @author Gaston Dombiak
  */
@@ -69,6 +92,10 @@ public class ConnectionWorkerThread extends Thread {
     private static int sequence = 0;
     private static Random random = new Random();
     private static ConnectionCloseListener connectionListener;
+    /**
+     * Marks the end of the traffic queued for a {@link RouteWriter}.
+     */
+    private static final String END_OF_BATCHES = new String();
 
     private String serverName;
     private String managerName;
@@ -81,11 +108,29 @@ public class ConnectionWorkerThread extends Thread {
     /**
      * Connection to the server.
      */
-    private SocketConnection connection;
+    private Connection connection;
+    /**
+     * Handler of the connection to the server when using NIO. A null value means
+     * that a blocking socket is being used.
+     */
+    private ServerConnectionHandler nioHandler;
     /**
      * Store the last received stream features from the server
      */
     private Element features;
+    /**
+     * Maximum number of wrapped stanzas to send to the server in a single write.
+     */
+    private int maxBatchSize;
+    /**
+     * Maximum number of milliseconds to wait for more stanzas before sending a batch.
+     */
+    private long maxBatchLinger;
+    /**
+     * Thread that coalesces the traffic sent to the server or <tt>null</tt> if stanzas are
+     * written by this thread.
+     */
+    private RouteWriter routeWriter;
 
     static {
         connectionListener = new ConnectionCloseListener() {
@@ -101,6 +146,8 @@ public class ConnectionWorkerThread extends Thread {
         ConnectionManager connectionManager = ConnectionManager.getInstance();
         this.serverName = connectionManager.getServerName();
         this.managerName = connectionManager.getName();
+        this.maxBatchSize = Math.max(1, JiveGlobals.getIntProperty("xmpp.manager.batch.size", 1));
+        this.maxBatchLinger = Math.max(0, JiveGlobals.getIntProperty("xmpp.manager.batch.linger", 0));
         // Create connection to the server
         createConnection();
         // Clean up features variable that is no longer needed
@@ -124,16 +171,46 @@ public class ConnectionWorkerThread extends Thread {
      *
      * @return the connection to the server.
      */
-    public SocketConnection getConnection() {
+    public Connection getConnection() {
         return connection;
     }
 
+    /**
+     * Replaces the lost connection to the server with a new connection so that this thread
+     * can keep executing the tasks of its queue in order.
+     *
+     * @return true if a new connection to the server was established.
+     */
+    boolean reconnect() {
+        ServerSurrogate serverSurrogate = ConnectionManager.getInstance().getServerSurrogate();
+        serverSurrogate.serverConnections.remove(getName());
+        stopRouteWriter();
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+        nioHandler = null;
+        // Clear the interrupted status that was set when the connection was closed
+        Thread.interrupted();
+        boolean connected = createConnection();
+        // Clean up features variable that is no longer needed
+        features = null;
+        if (connected) {
+            Log.debug("CM - Connection of " + getName() + " to the server was restored");
+            serverSurrogate.serverConnections.put(getName(), this);
+        }
+        return connected;
+    }
+
     /**
      * Creates a new connection to the server
      * 
      * @return true if a connection to the server was established
      */
     private boolean createConnection() {
+        if (JiveGlobals.getBooleanProperty("xmpp.manager.nio.enabled", false)) {
+            return createNIOConnection();
+        }
         String realHostname = null;
         int port =
                 JiveGlobals.getIntProperty("xmpp.port", DEFAULT_MULTIPLEX_PORT);
@@ -175,7 +252,9 @@ public class ConnectionWorkerThread extends Thread {
         }
 
         try {
-            connection = new SocketConnection(new ServerFailoverDeliverer(), socket, false);
+            SocketConnection socketConnection =
+                    new SocketConnection(new ServerFailoverDeliverer(), socket, false);
+            connection = socketConnection;
 
             jidAddress = managerName + "/" + getName();
 
@@ -240,9 +319,14 @@ public class ConnectionWorkerThread extends Thread {
                 // Add connection listener
                 connection.registerCloseListener(connectionListener, this);
                 // Set idle time out (server needs to send heartbeats or traffic). Default 5 minutes
-                connection.setIdleTimeout(5 * 60 * 1000);
+                socketConnection.setIdleTimeout(5 * 60 * 1000);
                 // Create reader that will process packets sent from the server.
-                createSocketReader(reader);
+                createSocketReader(reader, socketConnection);
+                if (maxBatchSize > 1) {
+                    // Create writer that will coalesce packets sent to the server
+                    routeWriter = new RouteWriter(socketConnection);
+                    routeWriter.start();
+                }
                 // Restore default timeout
                 socket.setSoTimeout(soTimeout);
                 return true;
@@ -265,14 +349,150 @@ public class ConnectionWorkerThread extends Thread {
         return false;
     }
 
+    /**
+     * Creates a new NIO connection to the server.
+     *
+     * @return true if a connection to the server was established
+     */
+    private boolean createNIOConnection() {
+        int port =
+                JiveGlobals.getIntProperty("xmpp.port", DEFAULT_MULTIPLEX_PORT);
+        List<String> hostnames;
+        if (JiveGlobals.getXMLProperty("xmpp.hostname") != null) {
+            hostnames = Collections.singletonList(JiveGlobals.getXMLProperty("xmpp.hostname"));
+        }
+        else {
+            // Get the real hostname to connect to using DNS lookup of the specified hostname
+            hostnames = new ArrayList<String>();
+            for (DNSUtil.HostAddress address : DNSUtil.resolveXMPPDomain(serverName, port)) {
+                hostnames.add(address.getHost());
+            }
+        }
+        ServerConnectionHandler handler = new ServerConnectionHandler();
+        IoSession ioSession = null;
+        String hostname = null;
+        for (Iterator<String> it = hostnames.iterator(); it.hasNext() && ioSession == null;) {
+            hostname = it.next();
+            Log.debug("CM - Trying to connect to server at " + hostname + ":" + port);
+            ConnectFuture future = ServerConnectionHandler.getConnector()
+                    .connect(new InetSocketAddress(hostname, port), handler);
+            future.join(20000);
+            try {
+                ioSession = future.getSession();
+                Log.debug("CM - NIO connection to server at " + hostname + ":" + port + " successful");
+            }
+            catch (Exception e) {
+                Log.error("Error trying to connect to server at " + hostname + ":" + port, e);
+            }
+        }
+        if (ioSession == null) {
+            return false;
+        }
+
+        try {
+            connection = new NIOConnection(ioSession, new ServerFailoverDeliverer());
+            nioHandler = handler;
+
+            jidAddress = managerName + "/" + getName();
+
+            // Send the stream header
+            StringBuilder openingStream = new StringBuilder();
+            openingStream.append("<stream:stream");
+            openingStream.append(" xmlns:stream=\"http://etherx.jabber.org/streams\"");
+            openingStream.append(" xmlns=\"jabber:connectionmanager\"");
+            openingStream.append(" to=\"").append(jidAddress).append("\"");
+            openingStream.append(" version=\"1.0\">");
+            connection.deliverRawText(openingStream.toString());
+
+            // Get the answer from the Receiving Server
+            Element stream = readElement(null);
+            String serverVersion = stream == null ? null : stream.attributeValue("version");
+
+            // Check if the remote server is XMPP 1.0 compliant
+            if (serverVersion != null && decodeVersion(serverVersion)[0] >= 1) {
+                // Get the stream features
+                features = readElement(null);
+                // Check if there was an error
+                if (features != null && "error".equals(features.getName())) {
+                    Log.debug("CM - Error while opening stream: " + features.asXML());
+                    // Failed to secure the connection
+                    connection.close();
+                    connection = null;
+                    return false;
+                }
+                // Check if TLS is enabled
+                if (features != null && features.element("starttls") != null) {
+                    // Try to secure the connection since the server supports TLS
+                    if (!secureConnection(null, openingStream)) {
+                        // Failed to secure the connection
+                        connection.close();
+                        connection = null;
+                        return false;
+                    }
+                }
+                if (features != null && features.element("compression") != null) {
+                    // Try to use stream compression since the server supports it
+                    if (!compressConnection(null, openingStream)) {
+                        // Failed to use stream compression (when enabled locally)
+                        connection.close();
+                        connection = null;
+                        return false;
+                    }
+                }
+                if (!doHandshake(stream.attributeValue("id"), null)) {
+                    // Failed to authenticate with the server
+                    connection.close();
+                    connection = null;
+                    return false;
+                }
+                // Add connection listener
+                connection.registerCloseListener(connectionListener, this);
+                // Set idle time out (server needs to send heartbeats or traffic). Default 5 minutes
+                ioSession.setIdleTime(IdleStatus.READER_IDLE, 5 * 60);
+                // Process packets sent from the server.
+                nioHandler.negotiated(new ServerPacketReader(connection, jidAddress), connection);
+                return true;
+            }
+            Log.debug("CM - Server does not support XMPP version 1.0 or later");
+        }
+        catch (Exception e) {
+            Log.error("Error while connecting to server: " + serverName + "(" + hostname + ":" +
+                    port + ")", e);
+        }
+        // Close the connection
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+        else {
+            ioSession.close();
+        }
+        return false;
+    }
+
+    /**
+     * Returns the next element sent by the server. Stream headers are returned as
+     * stream elements. Returns <tt>null</tt> if nothing was read before timing out
+     * when using NIO connections.
+     *
+     * @param reader the reader to use when using blocking sockets.
+     * @return the next element sent by the server.
+     * @throws Exception if an error occured while reading.
+     */
+    private Element readElement(XMPPPacketReader reader) throws Exception {
+        if (nioHandler != null) {
+            return nioHandler.nextElement(7000);
+        }
+        return reader.parseDocument().getRootElement();
+    }
+
     private boolean secureConnection(XMPPPacketReader reader, StringBuilder openingStream)
             throws Exception {
         Log.debug("CM - Indicating we want TLS to " + serverName);
         connection.deliverRawText("<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>");
 
-        MXParser xpp = reader.getXPPParser();
         // Wait for the <proceed> response
-        Element proceed = reader.parseDocument().getRootElement();
+        Element proceed = readElement(reader);
         if (proceed != null && proceed.getName().equals("proceed")) {
             Log.debug("CM - Negotiating TLS with " + serverName);
             connection.startTLS(true, serverName);
@@ -281,16 +501,23 @@ public class ConnectionWorkerThread extends Thread {
             // TLS negotiation was successful so initiate a new stream
             connection.deliverRawText(openingStream.toString());
 
-            // Reset the parser to use the new secured reader
-            xpp.setInput(
-                    new InputStreamReader(connection.getTLSStreamHandler().getInputStream(),
-                            CHARSET));
-            // Skip new stream element
-            for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
-                eventType = xpp.next();
+            if (nioHandler != null) {
+                // Skip new stream element
+                readElement(null);
+            }
+            else {
+                MXParser xpp = reader.getXPPParser();
+                // Reset the parser to use the new secured reader
+                xpp.setInput(new InputStreamReader(
+                        ((SocketConnection) connection).getTLSStreamHandler().getInputStream(),
+                        CHARSET));
+                // Skip new stream element
+                for (int eventType = xpp.getEventType(); eventType != XmlPullParser.START_TAG;) {
+                    eventType = xpp.next();
+                }
             }
             // Get new stream features
-            features = reader.parseDocument().getRootElement();
+            features = readElement(reader);
             return true;
         } else {
             Log.debug("CM - Error, <proceed> was not received");
@@ -317,30 +544,43 @@ public class ConnectionWorkerThread extends Thread {
                 }
             }
             if (zlibSupported) {
-                MXParser xpp = reader.getXPPParser();
                 // Request Stream Compression
                 connection.deliverRawText(
                         "<compress xmlns='http://jabber.org/protocol/compress'><method>zlib</method></compress>");
                 // Check if we are good to start compression
-                Element answer = reader.parseDocument().getRootElement();
-                if ("compressed".equals(answer.getName())) {
+                Element answer = readElement(reader);
+                if (answer != null && "compressed".equals(answer.getName())) {
                     // Server confirmed that we can use zlib compression
-                    connection.startCompression();
+                    if (nioHandler != null) {
+                        ((NIOConnection) connection).startCompression(
+                                ZlibCompressionFilter.getServerLevel(),
+                                ZlibCompressionFilter.getServerWindowBits());
+                    }
+                    else {
+                        connection.startCompression();
+                    }
                     Log.debug("CM - Stream compression was successful with " + serverName);
                     // Stream compression was successful so initiate a new stream
                     connection.deliverRawText(openingStream.toString());
-                    // Reset the parser to use stream compression over TLS
-                    ZInputStream in =
-                            new ZInputStream(connection.getTLSStreamHandler().getInputStream());
-                    in.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
-                    xpp.setInput(new InputStreamReader(in, CHARSET));
-                    // Skip the opening stream sent by the server
-                    for (int eventType = xpp.getEventType();
-                         eventType != XmlPullParser.START_TAG;) {
-                        eventType = xpp.next();
+                    if (nioHandler != null) {
+                        // Skip the opening stream sent by the server
+                        readElement(null);
+                    }
+                    else {
+                        MXParser xpp = reader.getXPPParser();
+                        // Reset the parser to use stream compression over TLS
+                        ZInputStream in = new ZInputStream(
+                                ((SocketConnection) connection).getTLSStreamHandler().getInputStream());
+                        in.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
+                        xpp.setInput(new InputStreamReader(in, CHARSET));
+                        // Skip the opening stream sent by the server
+                        for (int eventType = xpp.getEventType();
+                             eventType != XmlPullParser.START_TAG;) {
+                            eventType = xpp.next();
+                        }
                     }
                     // Get new stream features
-                    features = reader.parseDocument().getRootElement();
+                    features = readElement(reader);
                     return true;
                 } else {
                     Log.debug("CM - Stream compression was rejected by " + serverName);
@@ -383,7 +623,7 @@ public class ConnectionWorkerThread extends Thread {
         connection.deliverRawText(sb.toString());
 
         // Wait for the <handshake> response
-        Element proceed = reader.parseDocument().getRootElement();
+        Element proceed = readElement(reader);
         if (proceed != null && proceed.getName().equals("handshake")) {
             Log.debug("OS - Handshake was SUCCESSFUL with host: " + serverName + " id: " +
                     streamID);
@@ -407,11 +647,12 @@ public class ConnectionWorkerThread extends Thread {
      * threads.
      *
      * @param reader the reader to use to retrieve stanzas.
+     * @param socketConnection the connection to the server.
      */
-    private void createSocketReader(XMPPPacketReader reader) {
+    private void createSocketReader(XMPPPacketReader reader, SocketConnection socketConnection) {
         ServerPacketReader serverPacketReader =
-                new ServerPacketReader(reader, connection, jidAddress);
-        connection.setSocketStatistic(serverPacketReader);
+                new ServerPacketReader(reader, socketConnection, jidAddress);
+        socketConnection.setSocketStatistic(serverPacketReader);
     }
 
     /**
@@ -429,7 +670,8 @@ public class ConnectionWorkerThread extends Thread {
         sb.append("'><create><host name='").append(address.getHostName());
         sb.append("' address='").append(address.getHostAddress()).append("'/></create></session></iq>");
         // Forward the notification to the server
-        connection.deliver(sb.toString());
+        // Queue it after pending traffic so that stanzas are received in order
+        send(sb.toString());
     }
 
     /**
@@ -445,7 +687,8 @@ public class ConnectionWorkerThread extends Thread {
         sb.append("'><session xmlns='http://jabber.org/protocol/connectionmanager' id='").append(streamID);
         sb.append("'><close/></session></iq>");
         // Forward the notification to the server
-        connection.deliver(sb.toString());
+        // Queue it after pending traffic so that stanzas are received in order
+        send(sb.toString());
     }
 
     /**
@@ -457,14 +700,27 @@ public class ConnectionWorkerThread extends Thread {
      *        longer available session.
      */
     public void deliveryFailed(Element stanza, String streamID) {
-        StringBuilder sb = new StringBuilder(100);
+        deliveryFailed(stanza.asXML(), streamID);
+    }
+
+    /**
+     * Sends notification to the main server that delivery of an already encoded stanza
+     * to a client has failed.
+     *
+     * @param stanza the XML of the stanza that was not sent to the client.
+     * @param streamID the stream ID assigned by the connection manager to the no
+     *        longer available session.
+     */
+    public void deliveryFailed(String stanza, String streamID) {
+        StringBuilder sb = new StringBuilder(100 + stanza.length());
         sb.append("<iq type='set' to='").append(serverName);
         sb.append("' from='").append(jidAddress);
         sb.append("' id='").append(String.valueOf(random.nextInt(1000) + "-" + sequence++));
         sb.append("'><session xmlns='http://jabber.org/protocol/connectionmanager' id='").append(streamID);
-        sb.append("'><failed>").append(stanza.asXML()).append("</failed></session></iq>");
+        sb.append("'><failed>").append(stanza).append("</failed></session></iq>");
         // Send notification to the server
-        connection.deliver(sb.toString());
+        // Queue it after pending traffic so that stanzas are received in order
+        send(sb.toString());
     }
 
     @Override
@@ -479,8 +735,12 @@ public class ConnectionWorkerThread extends Thread {
         finally {
             // Remove this thread/connection from the list of available connections
             ConnectionManager.getInstance().getServerSurrogate().serverConnections.remove(getName());
+            // Send pending traffic (or hand it to the failover deliverer)
+            stopRouteWriter();
             // Close the connection
-            connection.close();
+            if (connection != null) {
+                connection.close();
+            }
         }
     }
 
@@ -488,6 +748,7 @@ public class ConnectionWorkerThread extends Thread {
      * Indicates the server that the connection manager is being shut down.
      */
     void notifySystemShutdown() {
+        stopRouteWriter();
         connection.systemShutdown();
     }
 
@@ -500,16 +761,127 @@ public class ConnectionWorkerThread extends Thread {
      * @param streamID the stream ID assigned by the connection manager to the client session.
      */
     public void deliver(String stanza, String streamID) {
-        // Wrap the stanza
-        StringBuilder sb = new StringBuilder(80);
+        // Wrap the stanza and forward it to the server
+        send(wrapStanza(stanza, streamID, serverName, jidAddress));
+    }
+
+    /**
+     * Wraps a client stanza by a <tt>route</tt> element that is sent from the specified
+     * connection manager address to the server.
+     *
+     * @param stanza the original client stanza that is going to be wrapped.
+     * @param streamID the stream ID assigned by the connection manager to the client session.
+     * @param serverName the name of the server.
+     * @param jidAddress the address of the connection to the server.
+     * @return the wrapped stanza.
+     */
+    static String wrapStanza(String stanza, String streamID, String serverName, String jidAddress) {
+        StringBuilder sb = new StringBuilder(80 + stanza.length());
         sb.append("<route ");
         sb.append("to='").append(serverName);
         sb.append("' from='").append(jidAddress);
         sb.append("' streamid='").append(streamID).append("'>");
         sb.append(stanza);
         sb.append("</route>");
+        return sb.toString();
+    }
+
+    /**
+     * Sends text to the server after the wrapped stanzas that are waiting to be written
+     * so that the server receives the traffic in order.
+     *
+     * @param text the text to send to the server.
+     */
+    private void send(String text) {
+        if (routeWriter != null) {
+            routeWriter.add(text);
+        }
+        else {
+            connection.deliver(text);
+        }
+    }
+
+    /**
+     * Writes the wrapped stanzas that are waiting to be sent and stops the thread that
+     * writes them.
+     */
+    private void stopRouteWriter() {
+        if (routeWriter != null) {
+            routeWriter.shutdown();
+            routeWriter = null;
+        }
+    }
+
+    /**
+     * Thread that writes the traffic of a connection to the server. Stanzas that are queued
+     * while a batch is being written, or within the linger time of a batch, are coalesced
+     * into the next batch and written with a single flush. Worker threads only queue their
+     * traffic so they never wait for a batch to be complete.
+     */
+    private class RouteWriter extends Thread {
+        private final SocketConnection socketConnection;
+        private final BlockingQueue<String> queue = new LinkedBlockingQueue<String>();
+
+        RouteWriter(SocketConnection socketConnection) {
+            super(ConnectionWorkerThread.this.getName() + " - Writer");
+            setDaemon(true);
+            this.socketConnection = socketConnection;
+        }
 
-        // Forward the wrapped stanza to the server
-        connection.deliver(sb.toString());
+        void add(String stanza) {
+            queue.add(stanza);
+        }
+
+        /**
+         * Stops the writer once the queued stanzas were written.
+         */
+        void shutdown() {
+            queue.add(END_OF_BATCHES);
+            try {
+                join(5000);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            List<String> batch = new ArrayList<String>(maxBatchSize);
+            boolean done = false;
+            while (!done) {
+                try {
+                    String stanza = queue.take();
+                    long lingerEnd = System.currentTimeMillis() + maxBatchLinger;
+                    while (stanza != END_OF_BATCHES) {
+                        batch.add(stanza);
+                        if (batch.size() >= maxBatchSize) {
+                            break;
+                        }
+                        long remaining = lingerEnd - System.currentTimeMillis();
+                        stanza = remaining > 0 ? queue.poll(remaining, TimeUnit.MILLISECONDS) :
+                                queue.poll();
+                        if (stanza == null) {
+                            break;
+                        }
+                    }
+                    done = stanza == END_OF_BATCHES;
+                }
+                catch (InterruptedException e) {
+                    done = true;
+                }
+                try {
+                    if (!batch.isEmpty()) {
+                        socketConnection.deliver(batch);
+                    }
+                }
+                catch (Exception e) {
+                    Log.error("Error writing to the server " + batch.size() + " stanzas", e);
+                }
+                finally {
+                    batch.clear();
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,363 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import org.jivesoftware.multiplexer.net.http.HttpSession;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A MemoryBudget periodically measures the memory buffered for the client sessions and applies
+ * backpressure when the total exceeds a budget. The memory of a session is the sum of the
+ * buffer of its XML parser, the bytes written to its connection but not yet sent, the stanzas
+ * of HTTP binding sessions waiting for a request and the stanzas sent by the server that are
+ * waiting in the stanza queue of the session.<p>
+ *
+ * When the budget is exceeded, reading is suspended for the sessions with the largest parser
+ * buffers until their parser buffers cover the excess over the low watermark. While reading
+ * is suspended the client is blocked by TCP flow control so it cannot add to the memory of
+ * its session while the queued traffic is sent. The parser buffer is what suspending reading
+ * keeps from growing so sessions whose parser buffer is empty are never suspended. The memory
+ * of sessions that are already suspended is subtracted from the excess since it cannot grow
+ * and their queues drain while they are suspended. That way sessions are not suspended at
+ * every check only because the suspended sessions did not drain yet.<p>
+ *
+ * New client connections are refused with a <tt>resource-constraint</tt> stream error while
+ * the budget is exceeded. Reading is resumed for all the sessions once the total drops below
+ * the low watermark, which is 80% of the budget.<p>
+ *
+ * The budget in bytes is defined by the <b>xmpp.memory.budget</b> property and defaults to 25%
+ * of the max heap. Memory is measured every <b>xmpp.memory.check.interval</b> milliseconds,
+ * one second by default.
+ */
+public class MemoryBudget {
+
+    private static final double LOW_WATERMARK = 0.8;
+
+    private static MemoryBudget instance = new MemoryBudget();
+
+    /**
+     * Flag that indicates if the checking thread should stop.
+     */
+    private boolean shutdown = false;
+
+    /**
+     * Thread that periodically measures the memory buffered for the sessions.
+     */
+    private Thread checkingThread;
+
+    /**
+     * Sessions whose reading was suspended. Only used by the checking thread.
+     */
+    private final Set<Session> suspendedSessions = new HashSet<Session>();
+
+    private volatile long parserBytes;
+    private volatile long writeQueueBytes;
+    private volatile long httpBindBytes;
+    private volatile long stanzaQueueBytes;
+    private volatile boolean exceeded;
+    private volatile int suspendedCount;
+    private volatile long suspensions;
+
+    /**
+     * Returns the unique instance of this class.
+     *
+     * @return the unique instance of this class.
+     */
+    public static MemoryBudget getInstance() {
+        return instance;
+    }
+
+    /**
+     * Hide the constructor so that only one instance of this class can exist.
+     */
+    private MemoryBudget() {
+    }
+
+    /**
+     * Start up the daemon thread that measures the memory buffered for the sessions.
+     */
+    public void start() {
+        shutdown = false;
+        checkingThread = new Thread("MemoryBudget") {
+            @Override
+            public void run() {
+                while (!shutdown) {
+                    try {
+                        check();
+                    }
+                    catch (Exception e) {
+                        Log.error("Error checking memory budget", e);
+                    }
+                    synchronized (this) {
+                        try {
+                            wait(JiveGlobals.getIntProperty("xmpp.memory.check.interval", 1000));
+                        }
+                        catch (InterruptedException e) {
+                            // Do nothing
+                        }
+                    }
+                }
+            }
+        };
+        checkingThread.setDaemon(true);
+        checkingThread.start();
+    }
+
+    /**
+     * Indicates that the checking thread should be stoped. The thread will be waked up
+     * so that it can be stoped.
+     */
+    public void shutdown() {
+        shutdown = true;
+        if (checkingThread != null) {
+            // Use a wait/notify algorithm to ensure that the thread stops immediately if it
+            // was waiting
+            synchronized (checkingThread) {
+                checkingThread.notify();
+            }
+        }
+    }
+
+    /**
+     * Returns the max number of bytes that sessions may buffer before their reading is
+     * suspended. Default is 25% of the max heap.
+     *
+     * @return the max number of bytes that sessions may buffer.
+     */
+    public long getBudget() {
+        return JiveGlobals.getLongProperty("xmpp.memory.budget",
+                Runtime.getRuntime().maxMemory() / 4);
+    }
+
+    /**
+     * Returns true if the sessions buffered more than the budget when memory was last
+     * measured. New client connections are refused while the budget is exceeded.
+     *
+     * @return true if the budget is exceeded.
+     */
+    public boolean isExceeded() {
+        return exceeded;
+    }
+
+    /**
+     * Returns the number of bytes of the buffers of the XML parsers of the sessions.
+     *
+     * @return the number of bytes of the buffers of the XML parsers.
+     */
+    public long getParserBytes() {
+        return parserBytes;
+    }
+
+    /**
+     * Returns the number of bytes written to client connections but not yet sent.
+     *
+     * @return the number of bytes written to client connections but not yet sent.
+     */
+    public long getWriteQueueBytes() {
+        return writeQueueBytes;
+    }
+
+    /**
+     * Returns the number of bytes of the stanzas waiting for a request of HTTP binding
+     * sessions.
+     *
+     * @return the number of bytes of the stanzas waiting for a request.
+     */
+    public long getHttpBindBytes() {
+        return httpBindBytes;
+    }
+
+    /**
+     * Returns the estimated number of bytes of the stanzas waiting in the stanza queues of
+     * the sessions.
+     *
+     * @return the estimated number of bytes of the stanzas waiting in the stanza queues.
+     */
+    public long getStanzaQueueBytes() {
+        return stanzaQueueBytes;
+    }
+
+    /**
+     * Returns the number of bytes buffered for all the sessions when memory was last measured.
+     *
+     * @return the number of bytes buffered for all the sessions.
+     */
+    public long getTotalBytes() {
+        return parserBytes + writeQueueBytes + httpBindBytes + stanzaQueueBytes;
+    }
+
+    /**
+     * Returns the number of sessions whose reading is currently suspended.
+     *
+     * @return the number of sessions whose reading is suspended.
+     */
+    public int getSuspendedSessions() {
+        return suspendedCount;
+    }
+
+    /**
+     * Returns the number of times that reading was suspended for a session.
+     *
+     * @return the number of times that reading was suspended.
+     */
+    public long getSuspensions() {
+        return suspensions;
+    }
+
+    /**
+     * Measures the memory buffered for each session and suspends or resumes reading as needed.
+     */
+    private void check() {
+        check(getBudget());
+    }
+
+    /**
+     * Measures the memory buffered for each session and suspends or resumes reading as needed
+     * to keep the memory within the specified budget.
+     *
+     * @param budget the max number of bytes that sessions may buffer.
+     */
+    void check(long budget) {
+        long parser = 0;
+        long writeQueue = 0;
+        long httpBind = 0;
+        long stanzaQueue = 0;
+        long suspendedBytes = 0;
+        List<SessionUsage> usages = new ArrayList<SessionUsage>();
+        for (Session session : Session.getSessions()) {
+            if (session.isClosed()) {
+                continue;
+            }
+            long read = session.getReadBufferBytes();
+            long write = session.getWriteQueueBytes();
+            long queued = session.getStanzaQueueBytes();
+            parser += read;
+            if (session instanceof HttpSession) {
+                httpBind += write;
+            }
+            else {
+                writeQueue += write;
+            }
+            stanzaQueue += queued;
+            if (suspendedSessions.contains(session)) {
+                suspendedBytes += read + write + queued;
+            }
+            else {
+                usages.add(new SessionUsage(session, read));
+            }
+        }
+        parserBytes = parser;
+        writeQueueBytes = writeQueue;
+        httpBindBytes = httpBind;
+        stanzaQueueBytes = stanzaQueue;
+
+        // Forget sessions that were closed while their reading was suspended
+        for (Iterator<Session> it = suspendedSessions.iterator(); it.hasNext();) {
+            if (it.next().isClosed()) {
+                it.remove();
+            }
+        }
+
+        long total = getTotalBytes();
+        long lowWatermark = (long) (budget * LOW_WATERMARK);
+        exceeded = total > budget;
+        if (exceeded) {
+            // Only the excess that suspended sessions do not account for yet has to be covered
+            long excess = total - lowWatermark - suspendedBytes;
+            if (excess > 0 && suspendHeaviest(usages, excess) > 0) {
+                Log.warn("Memory budget of " + budget + " bytes exceeded: " + this +
+                        ". Reading is suspended for " + suspendedSessions.size() + " sessions");
+            }
+        }
+        else if (total < lowWatermark && !suspendedSessions.isEmpty()) {
+            for (Session session : suspendedSessions) {
+                session.resumeReading();
+            }
+            Log.info("Memory buffered by sessions dropped to " + total +
+                    " bytes. Reading resumed for " + suspendedSessions.size() + " sessions");
+            suspendedSessions.clear();
+        }
+        suspendedCount = suspendedSessions.size();
+    }
+
+    /**
+     * Suspends reading for the sessions with the largest parser buffers until their parser
+     * buffers cover the specified number of bytes.
+     *
+     * @param usages the parser buffers of the sessions whose reading is not suspended.
+     * @param excess the number of bytes to cover.
+     * @return the number of sessions whose reading was suspended.
+     */
+    private int suspendHeaviest(List<SessionUsage> usages, long excess) {
+        Collections.sort(usages, new Comparator<SessionUsage>() {
+            public int compare(SessionUsage usage1, SessionUsage usage2) {
+                return usage1.bytes > usage2.bytes ? -1 : (usage1.bytes == usage2.bytes ? 0 : 1);
+            }
+        });
+        long covered = 0;
+        int count = 0;
+        for (SessionUsage usage : usages) {
+            if (covered >= excess || usage.bytes == 0) {
+                break;
+            }
+            if (usage.session.suspendReading()) {
+                suspendedSessions.add(usage.session);
+                suspensions++;
+                count++;
+                covered += usage.bytes;
+                if (Log.isDebugEnabled()) {
+                    Log.debug("Suspended reading of session parsing " + usage.bytes +
+                            " bytes: " + usage.session);
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "parsers " + parserBytes + ", write queues " + writeQueueBytes +
+                ", http binding " + httpBindBytes + ", stanza queues " + stanzaQueueBytes +
+                " bytes";
+    }
+
+    /**
+     * Bytes of the parser buffer of a session.
+     */
+    private static class SessionUsage {
+
+        private final Session session;
+        private final long bytes;
+
+        SessionUsage(Session session, long bytes) {
+            this.session = session;
+            this.bytes = bytes;
+        }
+    }
+}
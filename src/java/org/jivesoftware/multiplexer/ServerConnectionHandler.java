@@ -0,0 +1,256 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import org.apache.mina.common.ExecutorThreadModel;
+import org.apache.mina.common.IdleStatus;
+import org.apache.mina.common.IoHandlerAdapter;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.codec.ProtocolCodecFilter;
+import org.apache.mina.transport.socket.nio.SocketConnector;
+import org.apache.mina.transport.socket.nio.SocketConnectorConfig;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.jivesoftware.multiplexer.net.ParserCache;
+import org.jivesoftware.multiplexer.net.XMPPCodecFactory;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.Log;
+
+import java.io.StringReader;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handles the traffic of a connection to the server that was established using NIO. All
+ * NIO connections to the server share the same {@link SocketConnector} so a few threads
+ * are able to read and write the traffic of many connections.<p>
+ *
+ * Stanzas sent by the server while the connection is being negotiated (i.e. stream features,
+ * TLS, stream compression and handshake) are kept in a queue so that the
+ * {@link ConnectionWorkerThread} negotiating the connection can read them. Once the
+ * connection has been negotiated stanzas are processed by a {@link ServerPacketReader}.
+ */
+class ServerConnectionHandler extends IoHandlerAdapter {
+
+    /**
+     * Marks the end of the stanzas received while negotiating a connection that was closed.
+     */
+    private static final Element END_OF_STREAM = DocumentHelper.createElement("closed");
+
+    private static SocketConnector connector;
+    /**
+     * Executor of the I/O threads of the connector.
+     */
+    private static ThreadPoolExecutor ioExecutor;
+    /**
+     * Executor of the threads that process incoming stanzas.
+     */
+    private static ThreadPoolExecutor eventExecutor;
+
+    /**
+     * Stanzas received while the connection is being negotiated.
+     */
+    private final BlockingQueue<Element> negotiationQueue = new LinkedBlockingQueue<Element>();
+    /**
+     * Reader that processes stanzas once the connection has been negotiated.
+     */
+    private ServerPacketReader packetReader;
+    /**
+     * Connection to the server that was negotiated.
+     */
+    private Connection connection;
+    /**
+     * Stream header sent by the server. Stanzas are parsed within the header so that the
+     * namespaces declared by the stream are in scope.
+     */
+    private String streamHeader;
+
+    /**
+     * Returns the connector to use for establishing NIO connections to the server. The
+     * number of I/O threads can be configured with the <tt>xmpp.manager.nio.processors</tt>
+     * property while the number of threads that decode incoming traffic can be configured
+     * with the <tt>xmpp.manager.nio.threads</tt> property.
+     *
+     * @return the connector to use for establishing NIO connections to the server.
+     */
+    static synchronized SocketConnector getConnector() {
+        if (connector == null) {
+            int ioThreads = JiveGlobals.getIntProperty("xmpp.manager.nio.processors",
+                    Runtime.getRuntime().availableProcessors());
+            ioExecutor = new ThreadPoolExecutor(
+                    ioThreads + 1, ioThreads + 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            connector = new SocketConnector(ioThreads, ioExecutor);
+            // Customize Executor that will be used by processors to process incoming stanzas.
+            // A new executor is created each time so that the connector can be recreated
+            // after it was disposed
+            ExecutorThreadModel threadModel = ExecutorThreadModel.getInstance("server");
+            int eventThreads = JiveGlobals.getIntProperty("xmpp.manager.nio.threads", 4);
+            eventExecutor = new ThreadPoolExecutor(
+                    eventThreads + 1, eventThreads + 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+            threadModel.setExecutor(eventExecutor);
+
+            SocketConnectorConfig connectorConfig = connector.getDefaultConfig();
+            connectorConfig.setThreadModel(threadModel);
+            connectorConfig.setConnectTimeout(20);
+            // Add the XMPP codec filter
+            connector.getFilterChain().addFirst("xmpp", new ProtocolCodecFilter(new XMPPCodecFactory()));
+        }
+        return connector;
+    }
+
+    /**
+     * Releases the threads of the connector shared by the NIO connections to the server.
+     * Connections to the server should be closed before calling this method.
+     */
+    static synchronized void disposeConnector() {
+        if (connector == null) {
+            return;
+        }
+        ioExecutor.shutdown();
+        eventExecutor.shutdown();
+        ioExecutor = null;
+        eventExecutor = null;
+        connector = null;
+    }
+
+    /**
+     * Returns the next stanza that was received while negotiating the connection or
+     * <tt>null</tt> if nothing was received during the specified time or the connection
+     * was closed.
+     *
+     * @param timeout the number of milliseconds to wait for a stanza.
+     * @return the next stanza received from the server or null if none was received.
+     * @throws InterruptedException if the thread was interrupted while waiting.
+     */
+    Element nextElement(long timeout) throws InterruptedException {
+        Element element = negotiationQueue.poll(timeout, TimeUnit.MILLISECONDS);
+        if (element == END_OF_STREAM) {
+            // Keep the marker so that next reads do not wait either
+            negotiationQueue.add(END_OF_STREAM);
+            return null;
+        }
+        return element;
+    }
+
+    /**
+     * Indicates that the connection has been negotiated and that incoming stanzas are
+     * going to be processed by the specified reader. Stanzas that were received but not
+     * yet read are handed to the reader. The connection will be closed when the
+     * session is closed so that its close listener is notified.
+     *
+     * @param reader the reader that will process incoming stanzas.
+     * @param connection the connection to the server that was negotiated.
+     */
+    synchronized void negotiated(ServerPacketReader reader, Connection connection) {
+        for (Element stanza = negotiationQueue.poll(); stanza != null;
+             stanza = negotiationQueue.poll()) {
+            reader.process(stanza);
+        }
+        packetReader = reader;
+        this.connection = connection;
+    }
+
+    @Override
+    public void sessionClosed(IoSession session) throws Exception {
+        Connection conn;
+        synchronized (this) {
+            if (packetReader != null) {
+                packetReader.shutdown();
+            }
+            else {
+                // Stop waiting for stanzas of the negotiation
+                negotiationQueue.add(END_OF_STREAM);
+            }
+            conn = connection;
+        }
+        if (conn != null) {
+            // Notify the worker thread that its connection was lost
+            conn.close();
+        }
+    }
+
+    @Override
+    public void sessionIdle(IoSession session, IdleStatus status) throws Exception {
+        // Close idle connection. Server needs to send heartbeats or traffic
+        Log.debug("Closing connection to server that has been idle: " + session);
+        session.close();
+    }
+
+    @Override
+    public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
+        Log.debug("Closing connection to server due to exception: " + session, cause);
+        session.close();
+    }
+
+    @Override
+    public void messageReceived(IoSession session, Object message) throws Exception {
+        String stanza = (String) message;
+        if (stanza.startsWith("<?xml")) {
+            // Ignore <?xml version="1.0"?>
+            return;
+        }
+        if ("</stream:stream>".equals(stanza)) {
+            // Remote server has sent an end of stream element
+            session.close();
+            return;
+        }
+        synchronized (this) {
+            if (packetReader != null && stanza.startsWith("<route ")) {
+                // Forward route stanzas without parsing them
+                packetReader.process(stanza);
+                return;
+            }
+        }
+        boolean header = stanza.startsWith("<stream:stream");
+        if (header) {
+            streamHeader = stanza;
+        }
+        Element doc;
+        try {
+            if (header) {
+                // Close the stream element so that the stream header can be parsed
+                doc = ParserCache.getReader().read(new StringReader(stanza + "</stream:stream>"))
+                        .getRootElement();
+            }
+            else {
+                Element stream = ParserCache.getReader().read(
+                        new StringReader(streamHeader + stanza + "</stream:stream>")).getRootElement();
+                doc = (Element) stream.elements().get(0);
+                doc.detach();
+            }
+        }
+        catch (Exception e) {
+            Log.error("Closing connection to server due to error while parsing stanza: " + stanza, e);
+            session.close();
+            return;
+        }
+        synchronized (this) {
+            if (packetReader == null) {
+                negotiationQueue.add(doc);
+            }
+            else {
+                packetReader.process(doc);
+            }
+        }
+    }
+}
@@ -21,9 +21,11 @@
 package org.jivesoftware.multiplexer;
 
 import org.dom4j.Element;
-import org.jivesoftware.multiplexer.net.SocketConnection;
+import org.jivesoftware.multiplexer.net.ParserCache;
 import org.jivesoftware.util.Log;
 
+import java.io.StringReader;
+
 /**
  * A ServerPacketHandler is responsible for handling stanzas sent from the server. For each
  * server connection there is going to be an instance of this class.<p>
@@ -32,7 +34,11 @@ import org.jivesoftware.util.Log;
  * close a client connection or wants to update the clients connections configurations.
  * Stream errors with condition <tt>system-shutdown</tt> indicate that the server is
  * shutting down. The connection manager will close existing client connections but
- * will keep running.
+ * will keep running.<p>
+ *
+ * Route stanzas may also be handled without being parsed. The wrapped stanza is then
+ * forwarded as is to the client and it is only parsed when the client session needs
+ * it or when the stanza could not be delivered.
  *
  * @author Gaston Dombiak
  */
@@ -43,14 +49,14 @@ class ServerPacketHandler {
     /**
      * Connection to the server.
      */
-    private SocketConnection connection;
+    private Connection connection;
     /**
      * JID that identifies this connection to the server. The address is composed by
      * the connection manager name and the name of the thread. e.g.: connManager1/thread1
      */
     private String jidAddress;
 
-    public ServerPacketHandler(SocketConnection connection, String jidAddress) {
+    public ServerPacketHandler(Connection connection, String jidAddress) {
         this.connection = connection;
         this.jidAddress = jidAddress;
     }
@@ -159,6 +165,100 @@ class ServerPacketHandler {
         }
     }
 
+    /**
+     * Handles a <tt>route</tt> stanza sent from the server that has not been parsed. The
+     * wrapped stanza is forwarded to the client without being parsed when possible.
+     *
+     * @param route the XML of the route stanza sent from the server.
+     */
+    public void handle(String route) {
+        String streamID = getRouteStreamID(route);
+        String stanza = getRouteStanza(route);
+        Session session = streamID == null ? null : Session.getSession(streamID);
+        if (stanza != null && session != null && !session.isClosed() &&
+                session.deliverRawStanza(stanza)) {
+            return;
+        }
+        // Parse the route stanza since it could not be delivered as is
+        Element doc;
+        try {
+            doc = ParserCache.getReader().read(new StringReader(route)).getRootElement();
+        }
+        catch (Exception e) {
+            Log.error("Error parsing stanza sent from the server: " + route, e);
+            return;
+        }
+        handle(doc);
+    }
+
+    /**
+     * Returns the value of the <tt>streamid</tt> attribute of the specified unparsed
+     * <tt>route</tt> stanza or <tt>null</tt> if none was found.
+     *
+     * @param route the XML of the route stanza.
+     * @return the stream ID of the client session that is the target of the route.
+     */
+    static String getRouteStreamID(String route) {
+        int end = getStartTagEnd(route);
+        int index = route.indexOf("streamid=", 0);
+        while (index > 0 && index < end) {
+            if (Character.isWhitespace(route.charAt(index - 1))) {
+                int start = index + 9;
+                char quote = route.charAt(start);
+                int close = route.indexOf(quote, start + 1);
+                if ((quote == '\'' || quote == '"') && close > 0 && close < end) {
+                    return route.substring(start + 1, close);
+                }
+                return null;
+            }
+            index = route.indexOf("streamid=", index + 1);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the XML of the stanza wrapped by the specified unparsed <tt>route</tt>
+     * stanza or <tt>null</tt> if no wrapped stanza was found.
+     *
+     * @param route the XML of the route stanza.
+     * @return the XML of the wrapped stanza.
+     */
+    static String getRouteStanza(String route) {
+        int start = getStartTagEnd(route);
+        int end = route.lastIndexOf("</route>");
+        if (start < 0 || end <= start || route.charAt(start - 1) == '/') {
+            return null;
+        }
+        String stanza = route.substring(start + 1, end).trim();
+        return stanza.length() == 0 ? null : stanza;
+    }
+
+    /**
+     * Returns the position of the character that closes the start tag of the specified
+     * XML or -1 if the start tag is not closed.
+     *
+     * @param xml the XML of an element.
+     * @return the position of the character that closes the start tag.
+     */
+    private static int getStartTagEnd(String xml) {
+        char quote = 0;
+        for (int i = 0; i < xml.length(); i++) {
+            char ch = xml.charAt(i);
+            if (quote != 0) {
+                if (ch == quote) {
+                    quote = 0;
+                }
+            }
+            else if (ch == '\'' || ch == '"') {
+                quote = ch;
+            }
+            else if (ch == '>') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     /**
      * Forwards wrapped stanza contained in the <tt>route</tt> element to the specified
      * client. The target client connection is specified in the <tt>route</tt> element by
@@ -241,6 +341,8 @@ class ServerPacketHandler {
         serverSurrogate.setNonSASLAuthEnabled(configuration.element("auth") != null);
         // Check if in-band registration is supported
         serverSurrogate.setInbandRegEnabled(configuration.element("register") != null);
+        // Stream features offered to clients have to be built again from the new configuration
+        serverSurrogate.clearStreamFeatures();
 
         // Send ACK to the server
         Element reply = stanza.createCopy();
@@ -22,13 +22,13 @@ package org.jivesoftware.multiplexer;
 
 import org.dom4j.Element;
 import org.dom4j.io.XMPPPacketReader;
-import org.jivesoftware.multiplexer.net.SocketConnection;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.Log;
 
 import java.io.IOException;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -37,12 +37,21 @@ import java.util.concurrent.TimeUnit;
  * have an instance of this class. Read packets will be processed using a thread pool.
  * By default, the thread pool will have 5 processing threads. Configure the property
  * <tt>xmpp.manager.incoming.threads</tt> to change the number of processing threads
- * per connection to the server. 
+ * per connection to the server.<p>
+ *
+ * Connections to the server that use NIO do not need a thread for reading stanzas. Stanzas
+ * read from those connections are handed to this class using {@link #process(Element)}.
  *
  * @author Gaston Dombiak
  */
 class ServerPacketReader implements SocketStatistic {
 
+    /**
+     * Max number of stanzas of a session to process before letting other sessions
+     * use the processing thread.
+     */
+    private static final int MAX_STANZAS_PER_RUN = 50;
+
     private boolean open = true;
     private XMPPPacketReader reader = null;
 
@@ -55,14 +64,20 @@ class ServerPacketReader implements SocketStatistic {
      */
     private ServerPacketHandler packetsHandler;
 
-    public ServerPacketReader(XMPPPacketReader reader, SocketConnection connection,
+    public ServerPacketReader(XMPPPacketReader reader, Connection connection,
                               String address) {
         this.reader = reader;
         packetsHandler = new ServerPacketHandler(connection, address);
-        init();
+        createThreadPool();
+        startReading();
+    }
+
+    public ServerPacketReader(Connection connection, String address) {
+        packetsHandler = new ServerPacketHandler(connection, address);
+        createThreadPool();
     }
 
-    private void init() {
+    private void createThreadPool() {
         // Create a pool of threads that will process incoming packets.
         int maxThreads = JiveGlobals.getIntProperty("xmpp.manager.incoming.threads", 5);
         if (maxThreads < 1) {
@@ -71,9 +86,10 @@ class ServerPacketReader implements SocketStatistic {
         }
         threadPool =
                 new ThreadPoolExecutor(maxThreads, maxThreads, 60, TimeUnit.SECONDS,
-                        new LinkedBlockingQueue<Runnable>(),
-                        new ThreadPoolExecutor.CallerRunsPolicy());
+                        new LinkedBlockingQueue<Runnable>(), new RejectedTaskHandler());
+    }
 
+    private void startReading() {
         // Create a thread that will read and store DOM Elements.
         Thread thread = new Thread("Server Packet Reader") {
             @Override
@@ -89,17 +105,7 @@ class ServerPacketReader implements SocketStatistic {
                             shutdown();
                         }
                         else {
-                            // If this element belongs to a session, queue it so that it can
-                            // be processed in the correct order.
-                            Session session = getSession(doc);
-                            if( session != null ) {
-                                Queue<Element> sessionQueue = session.getStanzaQueue();
-                                sessionQueue.add(doc);
-                                threadPool.execute(new ProcessSessionQueueTask(packetsHandler,session));
-                            } else {
-                                // Queue task that process incoming stanzas not related to a specific streamID
-                                threadPool.execute(new ProcessStanzaTask(packetsHandler, doc));
-                            }
+                            process(doc);
                         }
                     }
                     catch (IOException e) {
@@ -117,6 +123,77 @@ class ServerPacketReader implements SocketStatistic {
         thread.start();
     }
 
+    /**
+     * Processes a stanza that was read from the server. Stanzas that belong to a session
+     * are queued so that they can be processed in the correct order.
+     *
+     * @param doc the stanza that was read from the server.
+     */
+    void process(Element doc) {
+        // If this element belongs to a session, queue it so that it can
+        // be processed in the correct order.
+        Session session = getSession(doc);
+        if( session != null ) {
+            enqueue(session, doc);
+        } else {
+            // Queue task that process incoming stanzas not related to a specific streamID
+            threadPool.execute(new ProcessStanzaTask(packetsHandler, doc));
+        }
+    }
+
+    /**
+     * Processes an unparsed <tt>route</tt> stanza that was read from the server. Route
+     * stanzas that belong to a session are queued so that they can be processed in the
+     * correct order.
+     *
+     * @param route the XML of the route stanza that was read from the server.
+     */
+    void process(final String route) {
+        String streamID = ServerPacketHandler.getRouteStreamID(route);
+        Session session = streamID == null ? null : Session.getSession(streamID);
+        if (session != null) {
+            enqueue(session, route);
+        }
+        else {
+            threadPool.execute(new Runnable() {
+                public void run() {
+                    packetsHandler.handle(route);
+                }
+            });
+        }
+    }
+
+    /**
+     * Queues a stanza of a session and schedules the session for processing if no other
+     * task is processing its queue. The queue of the session is processed by the reader
+     * that queued the last stanza. The reader is set before queuing the stanza so that
+     * a task that could not be executed since its reader was shut down finds the reader
+     * that should continue processing the queue.
+     *
+     * @param session the session that is the target of the stanza.
+     * @param stanza the parsed stanza or the XML of the unparsed route stanza.
+     */
+    private void enqueue(Session session, Object stanza) {
+        session.setStanzaQueueReader(this);
+        session.enqueueStanza(stanza);
+        // Only schedule the session if no other task is processing its queue
+        if (session.scheduleStanzaQueue()) {
+            threadPool.execute(new ProcessSessionQueueTask(session));
+        }
+    }
+
+    /**
+     * Executes a task that processes the queue of the specified session. The session must
+     * have been marked as scheduled. The task is executed by the reader that queued the
+     * last stanza of the session.
+     *
+     * @param session the session whose queue will be processed.
+     */
+    private static void schedule(Session session) {
+        ServerPacketReader reader = session.getStanzaQueueReader();
+        reader.threadPool.execute(reader.new ProcessSessionQueueTask(session));
+    }
+
     public long getLastActive() {
         return reader.getLastActive();
     }
@@ -169,40 +246,94 @@ class ServerPacketReader implements SocketStatistic {
         }
     }
     
+    /**
+     * Handles tasks that were rejected by the thread pool. Tasks that process the queue
+     * of a session are handed to the reader that queued the last stanza of the session
+     * when the thread pool was shut down. Otherwise the task will be run by the thread
+     * that tried to execute it or discarded if the thread pool was shut down.
+     */
+    private static class RejectedTaskHandler extends ThreadPoolExecutor.CallerRunsPolicy {
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown() && task instanceof ProcessSessionQueueTask) {
+                ((ProcessSessionQueueTask) task).handOff();
+            }
+            else {
+                super.rejectedExecution(task, executor);
+            }
+        }
+    }
+
     /**
      * Task that processes a Session's stanza queue. This guarantees
-     * that stanzas are processed in the same order that they are received
+     * that stanzas are processed in the same order that they are received.
+     * A session is scheduled at most once while its queue is not empty so
+     * only one thread at a time processes the queue.
      */
     private class ProcessSessionQueueTask implements Runnable {
         /**
          * The session
          */
         private final Session session;
-        
+
+        public ProcessSessionQueueTask(Session session) {
+            this.session = session;
+        }
+
         /**
-         * Actual object responsible for handling incoming traffic.
+         * Hands the queue of the session to the reader that queued the last stanza of
+         * the session since the thread pool of this reader was shut down. If no other
+         * reader queued stanzas of the session then the session is unscheduled and the
+         * stanzas left in the queue will be processed when a reader queues a new stanza
+         * of the session.
          */
-        private final ServerPacketHandler handler;
-        
-        public ProcessSessionQueueTask(ServerPacketHandler handler, Session session) {
-            this.session = session;
-            this.handler = handler;
+        void handOff() {
+            if (session.getStanzaQueueReader() == ServerPacketReader.this) {
+                session.unscheduleStanzaQueue();
+                // Check for a reader that queued a stanza while the queue was scheduled
+                if (session.getStanzaQueueReader() == ServerPacketReader.this ||
+                        session.getStanzaQueue().isEmpty() || !session.scheduleStanzaQueue()) {
+                    return;
+                }
+            }
+            schedule(session);
         }
-        
+
         /**
-         * Process all the stanzas currently in the queue for this session
+         * Process the stanzas currently in the queue for this session. The task is
+         * executed again if stanzas are left in the queue.
          */
         public void run() {
-            // Synchronize on the session here to ensure that all stanzas
-            // for a given session get processed in order. This can be sub-optimal
-            // since we might block if multiple threads are processing stanzas
-            // for the same client, but the handler.handle() call should be quick,
-            // and correctness seems more important here.
-            synchronized(session) {
-                Element stanza = session.getStanzaQueue().poll();
-                while( stanza != null ){
-                    handler.handle(stanza);
-                    stanza = session.getStanzaQueue().poll();
+            Queue<Object> queue = session.getStanzaQueue();
+            boolean rescheduled = false;
+            try {
+                for (int i = 0; i < MAX_STANZAS_PER_RUN; i++) {
+                    Object stanza = session.pollStanza();
+                    if (stanza == null) {
+                        break;
+                    }
+                    if (stanza instanceof String) {
+                        // Unparsed route stanza
+                        packetsHandler.handle((String) stanza);
+                    }
+                    else {
+                        packetsHandler.handle((Element) stanza);
+                    }
+                }
+                if (!queue.isEmpty()) {
+                    // Let other sessions be processed before processing the rest of the queue
+                    rescheduled = true;
+                    schedule(session);
+                }
+            }
+            finally {
+                if (!rescheduled) {
+                    session.unscheduleStanzaQueue();
+                    // Check for stanzas that were queued after the queue was found empty
+                    if (!queue.isEmpty() && session.scheduleStanzaQueue()) {
+                        schedule(session);
+                    }
                 }
             }
         }
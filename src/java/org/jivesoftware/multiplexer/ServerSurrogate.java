@@ -21,6 +21,7 @@
 package org.jivesoftware.multiplexer;
 
 import org.dom4j.Element;
+import org.jivesoftware.multiplexer.task.ClientTask;
 import org.jivesoftware.multiplexer.task.CloseSessionTask;
 import org.jivesoftware.multiplexer.task.DeliveryFailedTask;
 import org.jivesoftware.multiplexer.task.NewSessionTask;
@@ -29,9 +30,14 @@ import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.Log;
 
 import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Surrogate of the main server where the Connection Manager is routing client
@@ -42,7 +48,18 @@ import java.util.concurrent.atomic.AtomicInteger;
  * to modify the default value.<p>
  *
  * ServerSurrogate is also responsible for caching the server configuration such as if
- * non-sasl authentication or in-band registration are available.<p>
+ * non-sasl authentication or in-band registration are available. The stream features
+ * offered to clients only depend on that configuration and on the state of the stream so
+ * they are serialized once and cached until the server sends a new configuration.<p>
+ *
+ * By default all working threads take tasks from a single shared queue. Set the system
+ * property <tt>xmpp.manager.routing.affinity</tt> to <tt>true</tt> to make each working
+ * thread own its own queue. In this mode the stream ID of the client session is used to
+ * always pick the same thread (and connection to the server) so stanzas sent by a client
+ * keep their order and threads do not contend on a single queue. A thread whose connection
+ * was lost reconnects before executing its next task. If the connection cannot be restored
+ * then the queued tasks are moved, in order, to the thread of another connection until the
+ * connection is restored.<p>
  *
  * Each connection to the server has its own {@link ServerPacketReader} to read incoming
  * traffic from the server. Incoming server traffic is then handled by
@@ -66,6 +83,10 @@ public class ServerSurrogate {
      * Cache the SASL mechanisms supported by the server for client authentication
      */
     private Element saslMechanisms;
+    /**
+     * Serialized SASL mechanisms supported by the server for client authentication.
+     */
+    private volatile String saslMechanismsXML = "";
     /**
      * Flag indicating if non-sasl authentication is supported by the server.
      */
@@ -74,12 +95,23 @@ public class ServerSurrogate {
      * Flag indicating if in-band registration is supported by the server.
      */
     private boolean inbandRegEnabled;
+    /**
+     * Serialized stream features offered to clients. Key: state of the stream that the
+     * features depend on, Value: stream features.
+     */
+    private final Map<String, String> streamFeatures = new ConcurrentHashMap<String, String>();
+    /**
+     * Number of times that the cached stream features were discarded. Stream features built
+     * from a previous configuration of the server are not cached.
+     */
+    private volatile int streamFeaturesGeneration;
 
     /**
      * Pool of threads that will send stanzas to the server. The number of threads
-     * in the pool will match the number of connections to the server.
+     * in the pool will match the number of connections to the server. When stream
+     * affinity is enabled each thread has its own queue of tasks.
      */
-    private ThreadPoolExecutor threadPool;
+    private AbstractExecutorService threadPool;
     /**
      * Map that holds the list of connections to the server.
      * Key: thread name, Value: ConnectionWorkerThread.
@@ -94,7 +126,12 @@ public class ServerSurrogate {
         // Create empty thread pool
         createThreadPool();
         // Populate thread pool with threads that will include connections to the server
-        threadPool.prestartAllCoreThreads();
+        if (threadPool instanceof StreamAffinityExecutor) {
+            ((StreamAffinityExecutor) threadPool).prestartAllCoreThreads();
+        }
+        else {
+            ((ThreadPoolExecutor) threadPool).prestartAllCoreThreads();
+        }
         // Start thread that will send heartbeats to the server every 30 seconds
         // to keep connections to the server open.
         Thread hearbeatThread = new Thread() {
@@ -106,6 +143,10 @@ public class ServerSurrogate {
                         for (ConnectionWorkerThread thread : serverConnections.values()) {
                             thread.getConnection().deliverRawText(" ");
                         }
+                        if (threadPool instanceof StreamAffinityExecutor) {
+                            // Try to restore the connections that were lost
+                            ((StreamAffinityExecutor) threadPool).reviveLanes();
+                        }
                     }
                     catch (InterruptedException e) {
                         // Do nothing
@@ -184,6 +225,18 @@ public class ServerSurrogate {
         threadPool.execute(new DeliveryFailedTask(streamID, stanza));
     }
 
+    /**
+     * Notification message indicating that delivery of an already encoded stanza to a
+     * client has failed.
+     *
+     * @param stanza the XML of the stanza that was not sent to the client.
+     * @param streamID the stream ID assigned by the connection manager to the no
+     *        longer available session.
+     */
+    public void deliveryFailed(String stanza, String streamID) {
+        threadPool.execute(new DeliveryFailedTask(streamID, stanza));
+    }
+
     /**
      * Forwards the specified stanza to the server. The client that is sending the
      * stanza is specified by the streamID parameter.
@@ -208,7 +261,7 @@ public class ServerSurrogate {
      * @return the SASL mechanisms supported by the server for client authentication.
      */
     public String getSASLMechanisms(Session session) {
-        return saslMechanisms.asXML();
+        return saslMechanismsXML;
     }
 
     public Element getSASLMechanismsElement(Session session) {
@@ -222,6 +275,58 @@ public class ServerSurrogate {
      */
     public void setSASLMechanisms(Element mechanisms) {
         saslMechanisms = mechanisms.createCopy();
+        saslMechanismsXML = saslMechanisms.asXML();
+    }
+
+    /**
+     * Returns the stream features that were cached for the specified state of a stream or
+     * <tt>null</tt> if they were not cached yet.
+     *
+     * @param key the state of the stream that the stream features depend on.
+     * @return the cached stream features or null if none were cached.
+     */
+    public String getStreamFeatures(String key) {
+        return streamFeatures.get(key);
+    }
+
+    /**
+     * Returns the generation of the cached stream features. The generation has to be read
+     * before building the stream features that are going to be cached so that features
+     * built from a configuration that was replaced in the meantime are not cached.
+     *
+     * @return the generation of the cached stream features.
+     */
+    public int getStreamFeaturesGeneration() {
+        return streamFeaturesGeneration;
+    }
+
+    /**
+     * Caches the stream features offered to clients for the specified state of a stream.
+     * The key has to include all the state that the stream features depend on other than
+     * the configuration sent by the server. The features are not cached if the cache was
+     * cleared since the specified generation was read.
+     *
+     * @param key the state of the stream that the stream features depend on.
+     * @param features the serialized stream features.
+     * @param generation the generation that was read before building the features.
+     */
+    public void cacheStreamFeatures(String key, String features, int generation) {
+        synchronized (streamFeatures) {
+            if (generation == streamFeaturesGeneration) {
+                streamFeatures.put(key, features);
+            }
+        }
+    }
+
+    /**
+     * Discards the cached stream features. Stream features are cached again as clients
+     * connect once the new configuration of the server has been applied.
+     */
+    public void clearStreamFeatures() {
+        synchronized (streamFeatures) {
+            streamFeaturesGeneration++;
+            streamFeatures.clear();
+        }
     }
 
     /**
@@ -314,10 +419,21 @@ public class ServerSurrogate {
      */
     private void createThreadPool() {
         int maxConnections = JiveGlobals.getIntProperty("xmpp.manager.connections", 5);
-        // Create a pool of threads that will process queued packets.
-        threadPool = new ConnectionWorkerThreadPool(maxConnections, maxConnections, 60,
+        ConnectionsWorkerFactory threadFactory = new ConnectionsWorkerFactory();
+        if (JiveGlobals.getBooleanProperty("xmpp.manager.routing.affinity", false)) {
+            // Create a thread with its own queue for each connection to the server
+            threadPool = new StreamAffinityExecutor(maxConnections, threadFactory);
+        }
+        else {
+            // Create a pool of threads that will process queued packets.
+            threadPool = createWorkerPool(maxConnections, threadFactory);
+        }
+    }
+
+    private ConnectionWorkerThreadPool createWorkerPool(int size, ThreadFactory threadFactory) {
+        return new ConnectionWorkerThreadPool(size, size, 60,
                 TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
-                new ConnectionsWorkerFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+                threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
     }
 
     /**
@@ -341,16 +457,29 @@ public class ServerSurrogate {
             ConnectionWorkerThread workerThread = (ConnectionWorkerThread) thread;
             // Check that the worker thread is valid. This means that it has a valid connection
             // to the server
-            if (!workerThread.isValid()) {
-                // Request other thread to process the task. In fact, a new thread
-                // will be created by the
-                execute(task);
+            if (!workerThread.isValid() && !recover(workerThread, task)) {
                 // Throw an exception so that this worker is dismissed
                 throw new IllegalStateException(
                         "There is no connection to the server or connection is lost.");
             }
         }
 
+        /**
+         * Handles a task that was about to be executed by a worker thread whose connection
+         * to the server was lost. By default the task is injected into the pool again so
+         * that another thread processes it.
+         *
+         * @param workerThread the worker thread whose connection was lost.
+         * @param task the task that was about to be executed.
+         * @return true if the worker thread can execute the task.
+         */
+        protected boolean recover(ConnectionWorkerThread workerThread, Runnable task) {
+            // Request other thread to process the task. In fact, a new thread
+            // will be created by the
+            execute(task);
+            return false;
+        }
+
         @Override
 		public void shutdown() {
             // Notify the server that the connection manager is being shut down
@@ -363,6 +492,265 @@ public class ServerSurrogate {
             // Stop the workers and shutdown
             super.shutdown();
         }
+
+        /**
+         * Stops the workers without notifying the server.
+         */
+        void shutdownSilently() {
+            super.shutdown();
+        }
+    }
+
+    /**
+     * Executor that keeps a single-threaded pool, or lane, for each connection to the server.
+     * Tasks of the same client session are always executed by the same lane, which is picked
+     * by hashing the stream ID of the session. Tasks not related to a client session are
+     * executed by the first lane.<p>
+     *
+     * The thread of a lane whose connection was lost reconnects before executing its next
+     * task so that the task keeps its place in the queue. If the connection cannot be restored
+     * then the task and the queued tasks of the lane are moved, in order, to another lane and
+     * new tasks of the lane are executed by that lane. Lanes are restored by the heartbeat
+     * thread once a new connection to the server can be created.
+     */
+    private class StreamAffinityExecutor extends AbstractExecutorService {
+        private final AffinityLane[] lanes;
+        /**
+         * Guards the routing of tasks to lanes. Tasks are routed holding the read lock while
+         * tasks are moved between lanes holding the write lock.
+         */
+        private final ReadWriteLock routingLock = new ReentrantReadWriteLock();
+
+        StreamAffinityExecutor(int size, ThreadFactory threadFactory) {
+            lanes = new AffinityLane[Math.max(1, size)];
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i] = new AffinityLane(i, threadFactory);
+            }
+        }
+
+        public void execute(Runnable task) {
+            routingLock.readLock().lock();
+            try {
+                getTarget(lanes[getLaneIndex(task)]).execute(task);
+            }
+            finally {
+                routingLock.readLock().unlock();
+            }
+        }
+
+        private int getLaneIndex(Runnable task) {
+            String streamID = null;
+            if (task instanceof ClientTask) {
+                streamID = ((ClientTask) task).getStreamID();
+            }
+            return streamID == null ? 0 : (streamID.hashCode() & 0x7fffffff) % lanes.length;
+        }
+
+        private AffinityLane getTarget(AffinityLane lane) {
+            return lane.failover == null ? lane : lane.failover;
+        }
+
+        /**
+         * Moves the specified task and the queued tasks of a lane whose connection to the
+         * server could not be restored to another lane. Client sessions are closed if no
+         * other lane is available.
+         *
+         * @param lane the lane whose connection was lost.
+         * @param task the task that the lane was about to execute.
+         */
+        void failover(AffinityLane lane, Runnable task) {
+            AffinityLane target = null;
+            routingLock.writeLock().lock();
+            try {
+                for (int i = 1; i < lanes.length && target == null; i++) {
+                    AffinityLane candidate = lanes[(lane.index + i) % lanes.length];
+                    if (candidate.failover == null && !candidate.isShutdown()) {
+                        target = candidate;
+                    }
+                }
+                if (target != null) {
+                    Log.warn("Connection to the server of " + lane + " was lost. Tasks are " +
+                            "moved to " + target);
+                    lane.failover = target;
+                    for (AffinityLane other : lanes) {
+                        if (other.failover == lane) {
+                            other.failover = target;
+                        }
+                    }
+                    List<Runnable> queued = new ArrayList<Runnable>();
+                    lane.getQueue().drainTo(queued);
+                    target.execute(task);
+                    for (Runnable queuedTask : queued) {
+                        target.execute(queuedTask);
+                    }
+                }
+            }
+            finally {
+                routingLock.writeLock().unlock();
+            }
+            if (target == null) {
+                // Server seems to be unavailable so close existing client connections
+                closeAll();
+            }
+        }
+
+        /**
+         * Tries to restore the lanes whose tasks were moved to other lanes. A lane is
+         * restored by a task that is executed by the lane that took its tasks so that the
+         * tasks that were moved are executed before new tasks of the lane.
+         */
+        void reviveLanes() {
+            routingLock.readLock().lock();
+            try {
+                for (AffinityLane lane : lanes) {
+                    if (lane.failover != null && !lane.reviving) {
+                        lane.reviving = true;
+                        lane.failover.execute(new RevivalTask(lane));
+                    }
+                }
+            }
+            finally {
+                routingLock.readLock().unlock();
+            }
+        }
+
+        void prestartAllCoreThreads() {
+            for (AffinityLane lane : lanes) {
+                lane.prestartAllCoreThreads();
+            }
+        }
+
+        public void shutdown() {
+            for (AffinityLane lane : lanes) {
+                if (lane.failover == null) {
+                    lane.shutdown();
+                }
+                else {
+                    // Lane has no connection to notify
+                    lane.shutdownSilently();
+                }
+            }
+        }
+
+        public List<Runnable> shutdownNow() {
+            List<Runnable> pending = new ArrayList<Runnable>();
+            for (AffinityLane lane : lanes) {
+                pending.addAll(lane.shutdownNow());
+            }
+            return pending;
+        }
+
+        public boolean isShutdown() {
+            for (AffinityLane lane : lanes) {
+                if (!lane.isShutdown()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean isTerminated() {
+            for (AffinityLane lane : lanes) {
+                if (!lane.isTerminated()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            for (AffinityLane lane : lanes) {
+                if (!lane.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Single-threaded pool that executes the tasks routed to one connection to the server.
+         */
+        private class AffinityLane extends ConnectionWorkerThreadPool {
+            private final int index;
+            /**
+             * Lane that executes the tasks of this lane while its connection is lost or
+             * <tt>null</tt> if this lane executes its own tasks. Guarded by the routing lock.
+             */
+            private AffinityLane failover;
+            /**
+             * Flag that indicates if a task that restores this lane is pending.
+             */
+            private volatile boolean reviving;
+
+            AffinityLane(int index, ThreadFactory threadFactory) {
+                super(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                        threadFactory, new ThreadPoolExecutor.CallerRunsPolicy());
+                this.index = index;
+            }
+
+            @Override
+            protected boolean recover(ConnectionWorkerThread workerThread, Runnable task) {
+                // Reconnect so that the task is executed before the rest of the queue
+                if (!isShutdown() && workerThread.reconnect()) {
+                    return true;
+                }
+                failover(this, task);
+                return false;
+            }
+
+            @Override
+            public String toString() {
+                return "lane " + index;
+            }
+        }
+
+        /**
+         * Task that restores a lane whose tasks were moved to other lanes. The task is
+         * executed by the lane that took the tasks of the restored lane. It creates the
+         * connection of the restored lane and gives back the queued tasks of that lane.
+         */
+        private class RevivalTask implements Runnable {
+            private final AffinityLane lane;
+
+            RevivalTask(AffinityLane lane) {
+                this.lane = lane;
+            }
+
+            public void run() {
+                try {
+                    // Create the connection before blocking the routing of tasks
+                    if (lane.isShutdown() ||
+                            (lane.getPoolSize() == 0 && !lane.prestartCoreThread())) {
+                        return;
+                    }
+                    routingLock.writeLock().lock();
+                    try {
+                        AffinityLane current = lane.failover;
+                        if (current == null) {
+                            return;
+                        }
+                        // Tasks of the lane that were queued after this task go back to the
+                        // lane in their order
+                        for (Iterator<Runnable> it = current.getQueue().iterator(); it.hasNext();) {
+                            Runnable task = it.next();
+                            if (!(task instanceof RevivalTask) && lanes[getLaneIndex(task)] == lane) {
+                                it.remove();
+                                lane.execute(task);
+                            }
+                        }
+                        lane.failover = null;
+                        Log.info("Connection to the server of " + lane + " was restored");
+                    }
+                    finally {
+                        routingLock.writeLock().unlock();
+                    }
+                }
+                finally {
+                    lane.reviving = false;
+                }
+            }
+        }
     }
 
     /**
@@ -22,11 +22,14 @@ package org.jivesoftware.multiplexer;
 
 import org.dom4j.Element;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * The session represents a connection between the server and a client (c2s) or
@@ -56,6 +59,11 @@ public abstract class Session {
     public static final int STATUS_STREAMING = 2;
     public static final int STATUS_AUTHENTICATED = 3;
 
+    /**
+     * Estimated number of bytes of a parsed stanza waiting in the stanza queue.
+     */
+    private static final int ELEMENT_SIZE_ESTIMATE = 1024;
+
     /**
      * The stream id for this session (random and unique).
      */
@@ -75,7 +83,26 @@ public abstract class Session {
 
     private Date startDate = new Date();
     
-    private Queue<Element> stanzaQueue = new ConcurrentLinkedQueue<Element>();
+    /**
+     * Stanzas sent by the server that are waiting to be processed. Queued stanzas are
+     * either parsed elements or the unparsed XML of route stanzas.
+     */
+    private Queue<Object> stanzaQueue = new ConcurrentLinkedQueue<Object>();
+
+    /**
+     * Estimated number of bytes of the stanzas waiting in the stanza queue.
+     */
+    private final AtomicLong stanzaQueueBytes = new AtomicLong();
+
+    /**
+     * Flag that indicates whether a task was scheduled to process the stanza queue.
+     */
+    private final AtomicBoolean stanzaQueueScheduled = new AtomicBoolean(false);
+
+    /**
+     * Reader of the connection to the server that queued the last stanza of the session.
+     */
+    private volatile ServerPacketReader stanzaQueueReader;
 
     /**
      * Map of existing sessions. A session is added just after the initial stream header
@@ -104,6 +131,15 @@ public abstract class Session {
         return sessions.get(streamID);
     }
 
+    /**
+     * Returns the existing sessions.
+     *
+     * @return the existing sessions.
+     */
+    public static Collection<Session> getSessions() {
+        return sessions.values();
+    }
+
     /**
      * Closes connections of connected clients since the server or the connection
      * manager is being shut down. If the server is the one that is being shut down
@@ -178,10 +214,121 @@ public abstract class Session {
     /**
      * @return the current stanza queue for this session
      */
-    public Queue<Element> getStanzaQueue() {
+    public Queue<Object> getStanzaQueue() {
         return stanzaQueue;
     }
 
+    /**
+     * Adds a stanza sent by the server to the stanza queue. Queued stanzas are either parsed
+     * elements or the unparsed XML of route stanzas.
+     *
+     * @param stanza the stanza to queue.
+     */
+    public void enqueueStanza(Object stanza) {
+        stanzaQueueBytes.addAndGet(getSizeEstimate(stanza));
+        stanzaQueue.add(stanza);
+    }
+
+    /**
+     * Removes the next stanza from the stanza queue.
+     *
+     * @return the next stanza of the stanza queue or <tt>null</tt> if the queue is empty.
+     */
+    public Object pollStanza() {
+        Object stanza = stanzaQueue.poll();
+        if (stanza != null) {
+            stanzaQueueBytes.addAndGet(-getSizeEstimate(stanza));
+        }
+        return stanza;
+    }
+
+    /**
+     * Returns the estimated number of bytes of the stanzas waiting in the stanza queue.
+     * Unparsed stanzas count two bytes per char and parsed stanzas count a fixed estimate.
+     *
+     * @return the estimated number of bytes of the stanzas in the stanza queue.
+     */
+    public long getStanzaQueueBytes() {
+        return stanzaQueueBytes.get();
+    }
+
+    private static int getSizeEstimate(Object stanza) {
+        return stanza instanceof String ? ((String) stanza).length() * 2 : ELEMENT_SIZE_ESTIMATE;
+    }
+
+    /**
+     * Returns the number of bytes of the buffer where the traffic of the client is parsed.
+     *
+     * @return the number of bytes of the buffer where the traffic of the client is parsed.
+     */
+    public long getReadBufferBytes() {
+        return conn == null ? 0 : conn.getReadBufferBytes();
+    }
+
+    /**
+     * Returns the number of bytes waiting to be sent to the client.
+     *
+     * @return the number of bytes waiting to be sent to the client.
+     */
+    public long getWriteQueueBytes() {
+        return conn == null ? 0 : conn.getWriteQueueBytes();
+    }
+
+    /**
+     * Stops reading the traffic of the client until {@link #resumeReading()} is invoked.
+     *
+     * @return false if reading cannot be suspended for this session.
+     */
+    public boolean suspendReading() {
+        return conn != null && conn.suspendReading();
+    }
+
+    /**
+     * Resumes reading the traffic of the client.
+     */
+    public void resumeReading() {
+        if (conn != null) {
+            conn.resumeReading();
+        }
+    }
+
+    /**
+     * Marks the stanza queue as scheduled for processing. Only one task at a time
+     * processes the stanza queue of a session.
+     *
+     * @return true if the queue was not already scheduled for processing.
+     */
+    public boolean scheduleStanzaQueue() {
+        return stanzaQueueScheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Indicates that the task that was processing the stanza queue has finished.
+     */
+    public void unscheduleStanzaQueue() {
+        stanzaQueueScheduled.set(false);
+    }
+
+    /**
+     * Returns the reader of the connection to the server that queued the last stanza
+     * of the session.
+     *
+     * @return the reader that queued the last stanza of the session.
+     */
+    ServerPacketReader getStanzaQueueReader() {
+        return stanzaQueueReader;
+    }
+
+    /**
+     * Sets the reader of the connection to the server that is queuing a stanza of
+     * the session.
+     *
+     * @param reader the reader that is queuing a stanza of the session.
+     */
+    void setStanzaQueueReader(ServerPacketReader reader) {
+        stanzaQueueReader = reader;
+    }
+
     /**
      * Returns a text with the available stream features. Each subclass may return different
      * values depending whether the session has been authenticated or not.
@@ -200,6 +347,18 @@ public abstract class Session {
 
     public abstract void deliver(Element stanza);
 
+    /**
+     * Delivers a stanza sent by the server without parsing it first. Returns false if the
+     * session needs a parsed stanza, in which case the stanza has to be delivered using
+     * {@link #deliver(Element)}. The default implementation returns false.
+     *
+     * @param stanza the XML of the stanza to deliver.
+     * @return true if the stanza was delivered.
+     */
+    public boolean deliverRawStanza(String stanza) {
+        return false;
+    }
+
     @Override
 	public String toString() {
         return super.toString() + " status: " + status + " id: " + streamID;
@@ -37,11 +37,12 @@ public class StreamIDFactory {
 
     private static final ConcurrentHashMap<String, Boolean> usingStreamIDs = new ConcurrentHashMap<String, Boolean>();
 
-    String managerName = ConnectionManager.getInstance().getName();
-
     private Random rand = new Random();
 
     public String createStreamID() {
+        // Get the name when creating IDs so that sessions can be used before the
+        // connection manager has been started (e.g. by benchmarks)
+        String managerName = ConnectionManager.getInstance().getName();
         String streamID;
         do {
             streamID = managerName + Integer.toHexString(rand.nextInt());
@@ -21,22 +21,24 @@
 package org.jivesoftware.multiplexer.net;
 
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.io.UnsupportedEncodingException;
 
+import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.common.IdleStatus;
+import org.apache.mina.common.IoFutureListener;
 import org.apache.mina.common.IoHandlerAdapter;
 import org.apache.mina.common.IoSession;
 import org.apache.mina.filter.codec.ProtocolDecoderException;
 import org.jivesoftware.multiplexer.Connection;
 import org.jivesoftware.multiplexer.ConnectionManager;
+import org.jivesoftware.multiplexer.MemoryBudget;
 import org.jivesoftware.multiplexer.PacketRouter;
+import org.jivesoftware.multiplexer.Session;
 import org.jivesoftware.multiplexer.StreamError;
 import org.jivesoftware.multiplexer.spi.ServerRouter;
 import org.jivesoftware.util.Log;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 
 /**
  * A ConnectionHandler is responsible for creating new sessions, destroying sessions and delivering
@@ -56,24 +58,14 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
 
     protected static PacketRouter router = new ServerRouter();
     protected static String serverName = ConnectionManager.getInstance().getServerName();
-    private static Map<Integer, XmlPullParser> parsers = new ConcurrentHashMap<Integer, XmlPullParser>();
-    /**
-     * Reuse the same factory for all the connections.
-     */
-    private static XmlPullParserFactory factory = null;
-
-    static {
-        try {
-            factory = XmlPullParserFactory.newInstance(MXParser.class.getName(), null);
-            factory.setNamespaceAware(true);
-        }
-        catch (XmlPullParserException e) {
-            Log.error("Error creating a parser factory", e);
-        }
-    }
-
     @Override
 	public void sessionOpened(IoSession session) throws Exception {
+        if (MemoryBudget.getInstance().isExceeded()) {
+            // Refuse new connections until the memory buffered by existing sessions drops
+            Log.debug("Memory budget exceeded. Closing new connection " + session);
+            refuse(session, new StreamError(StreamError.Condition.resource_constraint));
+            return;
+        }
         // Create a new XML parser for the new connection. The parser will be used by the XMPPDecoder filter.
         XMLLightweightParser parser = new XMLLightweightParser(CHARSET);
         session.setAttribute(XML_PARSER, parser);
@@ -93,7 +85,9 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
         // Get the connection for this session
         Connection connection = (Connection) session.getAttribute(CONNECTION);
         // Inform the connection that it was closed
-        connection.close();
+        if (connection != null) {
+            connection.close();
+        }
     }
 
     @Override
@@ -104,7 +98,13 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
         if (Log.isDebugEnabled()) {
             Log.debug("Closing connection that has been idle: " + connection);
         }
-        connection.close();
+        if (connection != null) {
+            connection.close();
+        }
+        else {
+            // The connection was refused when it was opened
+            session.close();
+        }
     }
 
     @Override
@@ -125,7 +125,9 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
             }
             
             final Connection connection = (Connection) session.getAttribute(CONNECTION);
-            connection.deliverRawText(error.toXML());
+            if (connection != null) {
+                connection.deliverRawText(error.toXML());
+            }
             session.close();
         }
         else {
@@ -138,17 +140,15 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
         //System.out.println("RCVD: " + message);
         // Get the stanza handler for this session
         StanzaHandler handler = (StanzaHandler) session.getAttribute(HANDLER);
+        if (handler == null) {
+            // Ignore the traffic of connections that were refused when they were opened
+            return;
+        }
         // Get the parser to use to process stanza. For optimization there is going
         // to be a parser for each running thread. Each Filter will be executed
         // by the Executor placed as the first Filter. So we can have a parser associated
         // to each Thread
-        int hashCode = Thread.currentThread().hashCode();
-        XmlPullParser parser = parsers.get(hashCode);
-        if (parser == null) {
-            parser = factory.newPullParser();
-            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
-            parsers.put(hashCode, parser);
-        }
+        XmlPullParser parser = ParserCache.getParser();
 
         // Let the stanza handler process the received stanza
         try {
@@ -160,6 +160,38 @@ public abstract class ConnectionHandler extends IoHandlerAdapter {
         }
     }
 
+    /**
+     * Sends a stream error to a client whose connection is being refused before the client
+     * sent its stream header and closes the connection once the error was sent. Reading is
+     * suspended so that the traffic of the client is not parsed meanwhile.
+     *
+     * @param session the session of the refused connection.
+     * @param error the reason why the connection is refused.
+     */
+    private void refuse(IoSession session, StreamError error) {
+        session.suspendRead();
+        // The stream of the server has to be opened before sending the error
+        StringBuilder sb = new StringBuilder(300);
+        sb.append("<?xml version='1.0' encoding='");
+        sb.append(CHARSET);
+        sb.append("'?><stream:stream xmlns:stream=\"http://etherx.jabber.org/streams\" ");
+        sb.append("xmlns=\"jabber:client\" from=\"");
+        sb.append(serverName);
+        sb.append("\" version=\"");
+        sb.append(Session.MAJOR_VERSION).append(".").append(Session.MINOR_VERSION);
+        sb.append("\">");
+        sb.append(error.toXML());
+        sb.append("</stream:stream>");
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(sb.toString().getBytes(CHARSET));
+            session.write(buffer).addListener(IoFutureListener.CLOSE);
+        }
+        catch (UnsupportedEncodingException e) {
+            Log.error("Error refusing connection " + session, e);
+            session.close();
+        }
+    }
+
     abstract NIOConnection createNIOConnection(IoSession session);
 
     abstract StanzaHandler createStanzaHandler(NIOConnection connection) throws XmlPullParserException;
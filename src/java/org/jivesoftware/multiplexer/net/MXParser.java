@@ -356,6 +356,17 @@ public class MXParser extends org.xmlpull.mxp1.MXParser {
         return lastHeartbeat;
     }
 
+    /**
+     * Returns the offset in the input of the character that follows the last parsed event.
+     * After a start or end tag was returned this is the offset that follows the closing
+     * <tt>&gt;</tt> of the tag.
+     *
+     * @return the offset in the input of the character that follows the last parsed event.
+     */
+    public int getInputOffset() {
+        return bufAbsoluteStart + pos;
+    }
+
     public void resetInput() {
         Reader oldReader = reader;
         String oldEncoding = inputEncoding;
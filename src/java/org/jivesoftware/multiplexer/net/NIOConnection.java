@@ -23,29 +23,23 @@ package org.jivesoftware.multiplexer.net;
 import org.apache.mina.common.ByteBuffer;
 import org.apache.mina.common.IoFilterChain;
 import org.apache.mina.common.IoSession;
-import org.apache.mina.filter.CompressionFilter;
 import org.apache.mina.filter.SSLFilter;
 import org.dom4j.Element;
-import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.multiplexer.Connection;
 import org.jivesoftware.multiplexer.ConnectionCloseListener;
 import org.jivesoftware.multiplexer.PacketDeliverer;
 import org.jivesoftware.multiplexer.Session;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.Log;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 
-import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
+import java.io.IOException;
 import java.io.StringReader;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
-import java.security.KeyStore;
 
 /**
  * Implementation of {@link Connection} inteface specific for NIO connections when using
@@ -62,14 +56,26 @@ public class NIOConnection implements Connection {
      */
     public static final String CHARSET = "UTF-8";
     /**
-     * Reuse the same factory for all the connections.
+     * Encoders are not thread safe so keep an encoder for each thread delivering stanzas.
      */
-    private static XmlPullParserFactory factory = null;
+    private static ThreadLocal<CharsetEncoder> encoder = new ThreadLocal<CharsetEncoder>() {
+        @Override
+        protected CharsetEncoder initialValue() {
+            return Charset.forName(CHARSET).newEncoder();
+        }
+    };
 
     private Session session;
     private IoSession ioSession;
 
     private ConnectionCloseListener closeListener;
+    private Object closeHandback;
+    /**
+     * Flag that indicates if the connection was closed. Connections to the server have no
+     * session so once their socket was closed this is the only way to know that the close
+     * listener still needs to be notified.
+     */
+    private boolean closed = false;
 
     /**
      * Deliverer to use when the connection is closed or was closed when delivering
@@ -91,22 +97,10 @@ public class NIOConnection implements Connection {
      * Compression policy currently in use for this connection.
      */
     private CompressionPolicy compressionPolicy = CompressionPolicy.disabled;
-    private CharsetEncoder encoder;
-
-    static {
-        try {
-            factory = XmlPullParserFactory.newInstance(MXParser.class.getName(), null);
-            factory.setNamespaceAware(true);
-        }
-        catch (XmlPullParserException e) {
-            Log.error("Error creating a parser factory", e);
-        }
-    }
 
     public NIOConnection(IoSession session, PacketDeliverer packetDeliverer) {
         this.ioSession = session;
         this.backupDeliverer = packetDeliverer;
-        encoder = Charset.forName(CHARSET).newEncoder();
     }
 
     public boolean validate() {
@@ -117,15 +111,16 @@ public class NIOConnection implements Connection {
         return !isClosed();
     }
 
-    public void registerCloseListener(ConnectionCloseListener listener, Object ignore) {
+    public void registerCloseListener(ConnectionCloseListener listener, Object handback) {
         if (closeListener != null) {
             throw new IllegalStateException("Close listener already configured");
         }
         if (isClosed()) {
-            listener.onConnectionClose(session);
+            listener.onConnectionClose(handback);
         }
         else {
             closeListener = listener;
+            closeHandback = handback;
         }
     }
 
@@ -146,13 +141,16 @@ public class NIOConnection implements Connection {
     public void close() {
         boolean wasClosed = false;
         synchronized (this) {
-            if (!isClosed()) {
-                try {
-                    deliverRawText(flashClient ? "</flash:stream>" : "</stream:stream>", false);
-                } catch (Exception e) {
-                    // Ignore
+            if (!closed) {
+                if (ioSession.isConnected()) {
+                    try {
+                        deliverRawText(flashClient ? "</flash:stream>" : "</stream:stream>", false);
+                    } catch (Exception e) {
+                        // Ignore
+                    }
                 }
                 closeConnection();
+                closed = true;
                 wasClosed = true;
             }
         }
@@ -174,6 +172,9 @@ public class NIOConnection implements Connection {
      * the connection and its ioSession.
      */
     private void forceClose() {
+        synchronized (this) {
+            closed = true;
+        }
         closeConnection();
         // Notify the close listeners so that the SessionManager can send unavailable
         // presences if required.
@@ -181,6 +182,9 @@ public class NIOConnection implements Connection {
     }
 
     private void closeConnection() {
+        if (Log.isDebugEnabled() && isCompressed()) {
+            Log.debug("Closing compressed connection " + this + ": " + getCompressionStats());
+        }
         ioSession.close();
     }
 
@@ -191,7 +195,7 @@ public class NIOConnection implements Connection {
     private void notifyCloseListeners() {
         if (closeListener != null) {
             try {
-                closeListener.onConnectionClose(session);
+                closeListener.onConnectionClose(closeHandback);
             } catch (Exception e) {
                 Log.error("Error notifying listener: " + closeListener, e);
             }
@@ -215,22 +219,22 @@ public class NIOConnection implements Connection {
 
     public void deliver(String stanza) {
         if (isClosed()) {
-            XMPPPacketReader xmppReader = new XMPPPacketReader();
-            xmppReader.setXPPFactory(factory);
             try {
-                Element doc = xmppReader.read(new StringReader(stanza)).getRootElement();
+                Element doc = ParserCache.getReader().read(new StringReader(stanza)).getRootElement();
                 backupDeliverer.deliver(doc);
             } catch (Exception e) {
                 Log.error("Error parsing stanza: " + stanza, e);
             }
         }
         else {
-            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            // Most stanzas only contain single byte characters. The buffer will
+            // expand when that is not the case
+            ByteBuffer buffer = ByteBuffer.allocate(stanza.length() + 1);
             buffer.setAutoExpand(true);
 
             boolean errorDelivering = false;
             try {
-                buffer.putString(stanza, encoder);
+                buffer.putString(stanza, encoder.get());
                 if (flashClient) {
                     buffer.put((byte) '\0');
                 }
@@ -246,10 +250,8 @@ public class NIOConnection implements Connection {
                 close();
                 // Retry sending the packet again. Most probably if the packet is a
                 // Message it will be stored offline
-                XMPPPacketReader xmppReader = new XMPPPacketReader();
-                xmppReader.setXPPFactory(factory);
                 try {
-                    Element doc = xmppReader.read(new StringReader(stanza)).getRootElement();
+                    Element doc = ParserCache.getReader().read(new StringReader(stanza)).getRootElement();
                     backupDeliverer.deliver(doc);
                 } catch (Exception e) {
                     Log.error("Error parsing stanza: " + stanza, e);
@@ -265,14 +267,12 @@ public class NIOConnection implements Connection {
 
     public void deliverRawText(String text, boolean asynchronous) {
         if (!isClosed()) {
-            ByteBuffer buffer = ByteBuffer.allocate(text.length());
+            ByteBuffer buffer = ByteBuffer.allocate(text.length() + 1);
             buffer.setAutoExpand(true);
 
             boolean errorDelivering = false;
             try {
-                //Charset charset = Charset.forName(CHARSET);
-                //buffer.putString(text, charset.newEncoder());
-                buffer.put(text.getBytes(CHARSET));
+                buffer.putString(text, encoder.get());
                 if (flashClient) {
                     buffer.put((byte) '\0');
                 }
@@ -300,28 +300,21 @@ public class NIOConnection implements Connection {
     }
 
     public void startTLS(boolean clientMode, String remoteServer) throws Exception {
-        KeyStore ksKeys = SSLConfig.getKeyStore();
-        String keypass = SSLConfig.getKeyPassword();
-
-        KeyStore ksTrust = SSLConfig.getTrustStore();
-        String trustpass = SSLConfig.getTrustPassword();
-
-        // KeyManager's decide which key material to use.
-        KeyManager[] km = SSLJiveKeyManagerFactory.getKeyManagers(ksKeys, keypass);
-
-        // TrustManager's decide whether to allow connections.
-        TrustManager[] tm = SSLJiveTrustManagerFactory.getTrustManagers(ksTrust, trustpass);
         // TODO Set proper value when s2s is supported
         boolean needClientAuth = false;
+        SSLContext tlsContext;
         if (clientMode || needClientAuth) {
             // Check if we can trust certificates presented by the server
-            tm = new TrustManager[]{new ServerTrustManager(remoteServer, ksTrust)};
+            tlsContext = SSLConfig.getClientSSLContext(remoteServer);
+        }
+        else {
+            // Use the context shared by the client listeners so that clients that reconnect
+            // resume their TLS sessions
+            tlsContext = SSLConfig.getSSLContext();
+            if (tlsContext == null) {
+                throw new IOException("SSLContext of client connections is not available");
+            }
         }
-
-        String algorithm = JiveGlobals.getXMLProperty("xmpp.socket.ssl.algorithm", "TLS");
-        SSLContext tlsContext = SSLContext.getInstance(algorithm);
-
-        tlsContext.init(km, tm, null);
 
         SSLFilter filter = new SSLFilter(tlsContext);
         filter.setUseClientMode(clientMode);
@@ -343,20 +336,65 @@ public class NIOConnection implements Connection {
         }
 
         ioSession.getFilterChain().addAfter("org.apache.mina.common.ExecutorThreadModel", "tls", filter);
-        ioSession.setAttribute(SSLFilter.DISABLE_ENCRYPTION_ONCE, Boolean.TRUE);
         if (!clientMode) {
+            ioSession.getFilterChain().addAfter("tls", "tlsStats",
+                    TLSSessionCache.getHandshakeTracker());
+            // Run the handshake on its own pool instead of the threads that route stanzas
+            ioSession.getFilterChain().addBefore("tls", "handshake",
+                    TLSHandshakeExecutor.getInstance());
+            ioSession.setAttribute(SSLFilter.DISABLE_ENCRYPTION_ONCE, Boolean.TRUE);
             // Indicate the client that the server is ready to negotiate TLS
             deliverRawText("<proceed xmlns=\"urn:ietf:params:xml:ns:xmpp-tls\"/>");
         }
     }
 
     public void startCompression() {
+        startCompression(ZlibCompressionFilter.getClientLevel(),
+                ZlibCompressionFilter.getClientWindowBits());
+    }
+
+    /**
+     * Starts compressing the connection with the specified compression level and window.
+     *
+     * @param level the compression level from 0 (no compression) to 9 (best compression).
+     * @param windowBits the base two logarithm of the window used to compress outgoing data.
+     */
+    public void startCompression(int level, int windowBits) {
         IoFilterChain chain = ioSession.getFilterChain();
         String baseFilter = "org.apache.mina.common.ExecutorThreadModel";
         if (chain.contains("tls")) {
             baseFilter = "tls";
         }
-        chain.addAfter(baseFilter, "compression", new CompressionFilter(CompressionFilter.COMPRESSION_MAX));
+        chain.addAfter(baseFilter, "compression", new ZlibCompressionFilter(level, windowBits));
+    }
+
+    public long getReadBufferBytes() {
+        XMLLightweightParser parser =
+                (XMLLightweightParser) ioSession.getAttribute(ConnectionHandler.XML_PARSER);
+        return parser == null ? 0 : parser.getBufferCapacity();
+    }
+
+    public long getWriteQueueBytes() {
+        return ioSession.getScheduledWriteBytes();
+    }
+
+    public boolean suspendReading() {
+        ioSession.suspendRead();
+        return true;
+    }
+
+    public void resumeReading() {
+        ioSession.resumeRead();
+    }
+
+    /**
+     * Returns the compressed and uncompressed bytes read and written by this connection or
+     * <tt>null</tt> if the connection is not compressed.
+     *
+     * @return the compression counters of the connection or null if it is not compressed.
+     */
+    public ZlibCompressionFilter.CompressionStats getCompressionStats() {
+        return ZlibCompressionFilter.getStats(ioSession);
     }
 
     public boolean isFlashClient() {
@@ -0,0 +1,108 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import org.dom4j.io.XMPPPacketReader;
+import org.jivesoftware.util.Log;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlPullParserFactory;
+
+/**
+ * Keeps a parser and a reader for each thread so that stanzas can be parsed without
+ * creating new parsers. Parsers are created the first time a thread needs them and are
+ * reused for every stanza parsed by that thread. The parsers of a thread are released
+ * when the thread dies.<p>
+ *
+ * Parsers returned by this class must not be shared with other threads and must not be
+ * used after the thread started parsing another stanza with the same parser.
+ */
+public final class ParserCache {
+
+    /**
+     * Reuse the same factory for all the parsers.
+     */
+    private static XmlPullParserFactory factory = null;
+
+    private static final ThreadLocal<ParserCache> localCache = new ThreadLocal<ParserCache>() {
+        @Override
+        protected ParserCache initialValue() {
+            return new ParserCache();
+        }
+    };
+
+    static {
+        try {
+            factory = XmlPullParserFactory.newInstance(MXParser.class.getName(), null);
+            factory.setNamespaceAware(true);
+        }
+        catch (XmlPullParserException e) {
+            Log.error("Error creating a parser factory", e);
+        }
+    }
+
+    private XmlPullParser parser;
+    private XMPPPacketReader reader;
+
+    private ParserCache() {
+    }
+
+    /**
+     * Returns the factory used for creating namespace aware parsers.
+     *
+     * @return the factory used for creating namespace aware parsers.
+     */
+    public static XmlPullParserFactory getFactory() {
+        return factory;
+    }
+
+    /**
+     * Returns the namespace aware pull parser of the current thread.
+     *
+     * @return the pull parser of the current thread.
+     * @throws XmlPullParserException if the parser could not be created.
+     */
+    public static XmlPullParser getParser() throws XmlPullParserException {
+        ParserCache cache = localCache.get();
+        if (cache.parser == null) {
+            XmlPullParser parser = factory.newPullParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            cache.parser = parser;
+        }
+        return cache.parser;
+    }
+
+    /**
+     * Returns the reader of the current thread that creates DOM4J documents
+     * from XML stanzas.
+     *
+     * @return the reader of the current thread.
+     */
+    public static XMPPPacketReader getReader() {
+        ParserCache cache = localCache.get();
+        if (cache.reader == null) {
+            XMPPPacketReader reader = new XMPPPacketReader();
+            reader.setXPPFactory(factory);
+            cache.reader = reader;
+        }
+        return cache.reader;
+    }
+}
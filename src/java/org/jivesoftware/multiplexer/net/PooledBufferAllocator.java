@@ -0,0 +1,118 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.PooledByteBufferAllocator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MINA buffer allocator that reuses released buffers and keeps statistics about the
+ * allocated buffers. MINA releases the buffers that were written to a session once they
+ * have been sent, so buffers allocated for delivering stanzas are reused when the allocator
+ * is in place. Pooling is done by MINA's {@link PooledByteBufferAllocator}, which keeps
+ * released buffers in power-of-two size classes and discards the buffers that were not
+ * reused during the configured timeout.<p>
+ *
+ * The number of allocations, the number of allocated bytes and the number of wrapped
+ * buffers (that are never pooled) is kept for monitoring purposes.
+ */
+public class PooledBufferAllocator extends PooledByteBufferAllocator {
+
+    private static PooledBufferAllocator instance;
+
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong wraps = new AtomicLong();
+
+    /**
+     * Returns the allocator that was created by {@link #install(int)} or <tt>null</tt>
+     * if buffers are not being pooled.
+     *
+     * @return the allocator used by MINA or null if buffers are not being pooled.
+     */
+    public static PooledBufferAllocator getInstance() {
+        return instance;
+    }
+
+    /**
+     * Creates a new allocator and configures MINA to use it for allocating buffers.
+     *
+     * @param timeout the number of seconds that released buffers are kept for reuse.
+     * @return the new allocator.
+     */
+    public static synchronized PooledBufferAllocator install(int timeout) {
+        instance = new PooledBufferAllocator(timeout);
+        ByteBuffer.setAllocator(instance);
+        return instance;
+    }
+
+    public PooledBufferAllocator(int timeout) {
+        super(timeout);
+    }
+
+    @Override
+    public ByteBuffer allocate(int capacity, boolean direct) {
+        allocations.incrementAndGet();
+        allocatedBytes.addAndGet(capacity);
+        return super.allocate(capacity, direct);
+    }
+
+    @Override
+    public ByteBuffer wrap(java.nio.ByteBuffer nioBuffer) {
+        wraps.incrementAndGet();
+        return super.wrap(nioBuffer);
+    }
+
+    /**
+     * Returns the number of buffers that were allocated.
+     *
+     * @return the number of buffers that were allocated.
+     */
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * Returns the number of bytes that were requested by the allocations.
+     *
+     * @return the number of bytes that were requested by the allocations.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * Returns the number of NIO buffers that were wrapped. Wrapped buffers are not pooled.
+     *
+     * @return the number of NIO buffers that were wrapped.
+     */
+    public long getWraps() {
+        return wraps.get();
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " allocations: " + allocations + " bytes: " + allocatedBytes +
+                " wraps: " + wraps;
+    }
+}
@@ -20,24 +20,38 @@
 
 package org.jivesoftware.multiplexer.net;
 
+import org.jivesoftware.util.CertificateEventListener;
+import org.jivesoftware.util.CertificateManager;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.Log;
 
+import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.TrustManager;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.ServerSocket;
+import java.security.KeyManagementException;
 import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Configuration of Openfire's SSL settings.<p>
  *
- * This class was copied from Openfire. Properties are now stored in XML.
+ * This class was copied from Openfire. Properties are now stored in XML.<p>
+ *
+ * SSLContexts are built once and shared by every TLS connection. The SSLContext for client
+ * connections is used by STARTTLS, the old SSL port and BOSH while connections to the server
+ * use an SSLContext for each remote server. Contexts are built again only after a
+ * certificate was created, deleted or signed through the {@link CertificateManager}.
  *
  * @author Gaston Dombiak
  */
@@ -51,13 +65,29 @@ public class SSLConfig {
     private static String keyStoreLocation;
     private static String trustStoreLocation;
     private static String storeType;
-    private static SSLContext context;
+    private static String algorithm;
+    /**
+     * Generation of the key and trust stores. Incremented each time a certificate is
+     * created, deleted or signed.
+     */
+    private static final AtomicInteger storeGeneration = new AtomicInteger();
+    /**
+     * SSLContext for client connections and the generation of the stores it was built from.
+     */
+    private static volatile SSLContext context;
+    private static volatile int contextGeneration = -1;
+    /**
+     * SSLContexts for connections to remote servers. Key: name of the remote server,
+     * Value: SSLContext that verifies the certificates of the remote server.
+     */
+    private static final Map<String, SSLContext> clientContexts =
+            new ConcurrentHashMap<String, SSLContext>();
 
     private SSLConfig() {
     }
 
     static {
-        String algorithm = JiveGlobals.getXMLProperty("xmpp.socket.ssl.algorithm", "TLS");
+        algorithm = JiveGlobals.getXMLProperty("xmpp.socket.ssl.algorithm", "TLS");
         storeType = JiveGlobals.getXMLProperty("xmpp.socket.ssl.storeType", "jks");
 
         // Get the keystore location. The default location is security/keystore
@@ -88,15 +118,8 @@ public class SSLConfig {
             sslFactory = (SSLJiveServerSocketFactory)SSLJiveServerSocketFactory.getInstance(
                     algorithm, keyStore, trustStore);
 
-            context = SSLContext.getInstance(algorithm);
-
-            KeyManagerFactory keyFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-            keyFactory.init(keyStore, SSLConfig.getKeyPassword().toCharArray());
-            TrustManagerFactory c2sTrustFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-            c2sTrustFactory.init(trustStore);
-            context.init(keyFactory.getKeyManagers(),
-                c2sTrustFactory.getTrustManagers(),
-                new java.security.SecureRandom());
+            // Session tickets have to be configured before the first SSLContext is created
+            TLSSessionCache.configureSessionTickets();
         }
         catch (Exception e) {
             Log.error("SSLConfig startup problem.\n" +
@@ -109,6 +132,7 @@ public class SSLConfig {
             trustStore = null;
             sslFactory = null;
         }
+        CertificateManager.addListener(new CertificateListener());
     }
 
     public static String getKeyPassword() {
@@ -156,14 +180,84 @@ public class SSLConfig {
     }
 
     /**
-     * Get the SSLContext for c2s connections
+     * Get the SSLContext for c2s connections. The context is shared by all the listeners
+     * that accept clients so that clients can resume their TLS sessions on any of them.
      *
-     * @return the SSLContext for c2s connections
+     * @return the SSLContext for c2s connections or null if the stores could not be loaded
      */
     public static SSLContext getSSLContext() {
+        if (contextGeneration != storeGeneration.get()) {
+            rebuildSSLContext();
+        }
         return context;
     }
 
+    /**
+     * Returns the SSLContext to use for connections to the specified remote server. The
+     * SSLContext only trusts certificates that were issued to the remote server.
+     *
+     * @param remoteServer the name of the remote server.
+     * @return the SSLContext for connections to the remote server.
+     * @throws NoSuchAlgorithmException if the configured algorithm is not supported.
+     * @throws KeyManagementException if the SSLContext could not be initialized.
+     * @throws IOException if the key or trust stores were not loaded.
+     */
+    public static SSLContext getClientSSLContext(String remoteServer)
+            throws NoSuchAlgorithmException, KeyManagementException, IOException {
+        int generation = storeGeneration.get();
+        if (contextGeneration != generation) {
+            rebuildSSLContext();
+        }
+        String key = remoteServer == null ? "" : remoteServer;
+        SSLContext clientContext = clientContexts.get(key);
+        if (clientContext == null) {
+            // Check if we can trust certificates presented by the server
+            TrustManager[] tm = new TrustManager[]{new ServerTrustManager(remoteServer,
+                    getTrustStore())};
+            clientContext = createSSLContext(tm);
+            synchronized (SSLConfig.class) {
+                // Do not cache a context built from stores that were replaced in the meantime
+                if (contextGeneration == generation) {
+                    clientContexts.put(key, clientContext);
+                }
+            }
+        }
+        return clientContext;
+    }
+
+    private static synchronized void rebuildSSLContext() {
+        int generation = storeGeneration.get();
+        if (contextGeneration == generation) {
+            // Another thread already built the context
+            return;
+        }
+        clientContexts.clear();
+        SSLContext newContext = null;
+        if (keyStore != null && trustStore != null) {
+            try {
+                newContext = createSSLContext(
+                        SSLJiveTrustManagerFactory.getTrustManagers(trustStore, trustpass));
+                // The context is shared by the client listeners so that TLS sessions can be
+                // resumed
+                TLSSessionCache.configure(newContext);
+            }
+            catch (Exception e) {
+                Log.error("SSLConfig problem.\n  SSLContext initialisation failed.", e);
+            }
+        }
+        context = newContext;
+        contextGeneration = generation;
+    }
+
+    private static SSLContext createSSLContext(TrustManager[] trustManagers)
+            throws NoSuchAlgorithmException, KeyManagementException, IOException {
+        // KeyManager's decide which key material to use.
+        KeyManager[] km = SSLJiveKeyManagerFactory.getKeyManagers(getKeyStore(), keypass);
+        SSLContext sslContext = SSLContext.getInstance(algorithm);
+        sslContext.init(km, trustManagers, new java.security.SecureRandom());
+        return sslContext;
+    }
+
     public static void saveStores() throws IOException {
         try {
             keyStore.store(new FileOutputStream(keyStoreLocation), keypass.toCharArray());
@@ -202,4 +296,24 @@ public class SSLConfig {
     public static SSLJiveServerSocketFactory getServerSocketFactory() {
         return sslFactory;
     }
+
+    /**
+     * Marks the SSLContexts as stale when the certificates of the stores change. Contexts
+     * are built again the next time they are requested.
+     */
+    private static class CertificateListener implements CertificateEventListener {
+
+        public void certificateCreated(KeyStore keyStore, String alias, X509Certificate cert) {
+            storeGeneration.incrementAndGet();
+        }
+
+        public void certificateDeleted(KeyStore keyStore, String alias) {
+            storeGeneration.incrementAndGet();
+        }
+
+        public void certificateSigned(KeyStore keyStore, String alias,
+                                      List<X509Certificate> certificates) {
+            storeGeneration.incrementAndGet();
+        }
+    }
 }
\ No newline at end of file
@@ -23,13 +23,10 @@ package org.jivesoftware.multiplexer.net;
 import com.jcraft.jzlib.JZlib;
 import com.jcraft.jzlib.ZOutputStream;
 import org.dom4j.Element;
-import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.multiplexer.*;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.LocaleUtils;
 import org.jivesoftware.util.Log;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 
 import javax.net.ssl.SSLSession;
 import java.io.*;
@@ -58,10 +55,6 @@ public class SocketConnection implements Connection {
      * The utf-8 charset for decoding and encoding XMPP packet streams.
      */
     public static final String CHARSET = "UTF-8";
-    /**
-     * Reuse the same factory for all the connections.
-     */
-    private static XmlPullParserFactory factory = null;
 
     private static Map<SocketConnection, String> instances =
             new ConcurrentHashMap<SocketConnection, String>();
@@ -114,16 +107,6 @@ public class SocketConnection implements Connection {
      */
     private CompressionPolicy compressionPolicy = CompressionPolicy.disabled;
 
-    static {
-        try {
-            factory = XmlPullParserFactory.newInstance(MXParser.class.getName(), null);
-            factory.setNamespaceAware(true);
-        }
-        catch (XmlPullParserException e) {
-            Log.error("Error creating a parser factory", e);
-        }
-    }
-
     public static Collection<SocketConnection> getInstances() {
         return instances.keySet();
     }
@@ -188,12 +171,14 @@ public class SocketConnection implements Connection {
 
         try {
             if (tlsStreamHandler == null) {
-                ZOutputStream out = new ZOutputStream(socket.getOutputStream(), JZlib.Z_BEST_COMPRESSION);
+                ZOutputStream out = new ZOutputStream(socket.getOutputStream(),
+                        ZlibCompressionFilter.getServerLevel());
                 out.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
                 writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
             }
             else {
-                ZOutputStream out = new ZOutputStream(tlsStreamHandler.getOutputStream(), JZlib.Z_BEST_COMPRESSION);
+                ZOutputStream out = new ZOutputStream(tlsStreamHandler.getOutputStream(),
+                        ZlibCompressionFilter.getServerLevel());
                 out.setFlushMode(JZlib.Z_PARTIAL_FLUSH);
                 writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
             }
@@ -515,14 +500,7 @@ public class SocketConnection implements Connection {
 
     public void deliver(String stanza) {
         if (isClosed()) {
-            XMPPPacketReader xmppReader = new XMPPPacketReader();
-            xmppReader.setXPPFactory(factory);
-            try {
-                Element doc = xmppReader.read(new StringReader(stanza)).getRootElement();
-                backupDeliverer.deliver(doc);
-            } catch (Exception e) {
-                Log.error("Error parsing stanza: " + stanza, e);
-            }
+            deliverToBackup(stanza);
         }
         else {
             boolean errorDelivering = false;
@@ -550,18 +528,68 @@ public class SocketConnection implements Connection {
                 close();
                 // Retry sending the packet again. Most probably if the packet is a
                 // Message it will be stored offline
-                XMPPPacketReader xmppReader = new XMPPPacketReader();
-                xmppReader.setXPPFactory(factory);
-                try {
-                    Element doc = xmppReader.read(new StringReader(stanza)).getRootElement();
-                    backupDeliverer.deliver(doc);
-                } catch (Exception e) {
-                    Log.error("Error parsing stanza: " + stanza, e);
+                deliverToBackup(stanza);
+            }
+        }
+    }
+
+    /**
+     * Delivers several stanzas at once. Stanzas are written in order and the underlying
+     * writer is flushed only once so that a batch of stanzas results in a single write
+     * to the socket. Stanzas are handed to the backup deliverer if the connection is
+     * closed or was closed while delivering them.
+     *
+     * @param stanzas the stanzas to deliver.
+     */
+    public void deliver(Collection<String> stanzas) {
+        if (isClosed()) {
+            for (String stanza : stanzas) {
+                deliverToBackup(stanza);
+            }
+        }
+        else {
+            boolean errorDelivering = false;
+            boolean allowedToWrite = false;
+            try {
+                requestWriting();
+                allowedToWrite = true;
+                for (String stanza : stanzas) {
+                    writer.write(stanza);
+                    if (flashClient) {
+                        writer.write('\0');
+                    }
+                }
+                writer.flush();
+            }
+            catch (Exception e) {
+                Log.debug("Error delivering packets" + "\n" + this.toString(), e);
+                errorDelivering = true;
+            }
+            finally {
+                if (allowedToWrite) {
+                    releaseWriting();
+                }
+            }
+            if (errorDelivering) {
+                close();
+                // Retry sending the packets again. Most probably if the packet is a
+                // Message it will be stored offline
+                for (String stanza : stanzas) {
+                    deliverToBackup(stanza);
                 }
             }
         }
     }
 
+    private void deliverToBackup(String stanza) {
+        try {
+            Element doc = ParserCache.getReader().read(new StringReader(stanza)).getRootElement();
+            backupDeliverer.deliver(doc);
+        } catch (Exception e) {
+            Log.error("Error parsing stanza: " + stanza, e);
+        }
+    }
+
     public void deliverRawText(String text) {
         if (!isClosed()) {
             boolean errorDelivering = false;
@@ -640,6 +668,25 @@ public class SocketConnection implements Connection {
         return super.toString() + " socket: " + socket;
     }
 
+    public long getReadBufferBytes() {
+        // Traffic of the server is parsed by the threads that read the connection
+        return 0;
+    }
+
+    public long getWriteQueueBytes() {
+        // Writes are blocking so nothing is queued
+        return 0;
+    }
+
+    public boolean suspendReading() {
+        // Traffic of the server is never suspended
+        return false;
+    }
+
+    public void resumeReading() {
+        // Do nothing
+    }
+
     public void setSocketStatistic(SocketStatistic socketStatistic) {
         this.socketStatistic = socketStatistic;
     }
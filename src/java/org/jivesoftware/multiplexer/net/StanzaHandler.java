@@ -21,14 +21,12 @@
 package org.jivesoftware.multiplexer.net;
 
 import org.dom4j.Element;
-import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.multiplexer.*;
 import org.jivesoftware.multiplexer.net.http.FlashCrossDomainServlet;
 import org.jivesoftware.util.Log;
 import org.jivesoftware.util.StringUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 
 import java.io.IOException;
 import java.io.StringReader;
@@ -44,11 +42,6 @@ abstract class StanzaHandler {
      * The utf-8 charset for decoding and encoding Jabber packet streams.
      */
     protected static String CHARSET = "UTF-8";
-    /**
-     * Reuse the same factory for all the connections.
-     */
-    private static XmlPullParserFactory factory = null;
-
     private Connection connection;
 
     // DANIELE: Indicate if a session is already created
@@ -78,16 +71,6 @@ abstract class StanzaHandler {
      */
     private PacketRouter router;
 
-    static {
-        try {
-            factory = XmlPullParserFactory.newInstance(MXParser.class.getName(), null);
-            factory.setNamespaceAware(true);
-        }
-        catch (XmlPullParserException e) {
-            Log.error("Error creating a parser factory", e);
-        }
-    }
-
     /**
      * Creates a dedicated reader for a socket.
      *
@@ -144,21 +127,23 @@ abstract class StanzaHandler {
         if (stanza.startsWith("<?xml")) {
             return;
         }
-        // Reset XPP parser with new stanza
-        parser.setInput(new StringReader(stanza));
-        parser.next();
-        String tag = parser.getName();
-        // Verify that XML stanza is valid (i.e. well-formed)
-        boolean valid;
+        // Verify that XML stanza is valid (i.e. well-formed) and get the root tag in the same pass
+        StanzaScanner scanner;
         try {
-            valid = validateStanza(stanza, parser);
-        } catch (IllegalArgumentException e) {
-            // Specify TO address was incorrect so do not process this stanza
+            scanner = StanzaScanner.scan(stanza);
+        } catch (XMLNotWellFormedException e) {
+            Log.error("Error parsing XML stanza: " + stanza, e);
+            session.close();
             return;
         }
-
-        if (!valid) {
-            session.close();
+        String tag = scanner.getName();
+        try {
+            if (!validateStanza(scanner)) {
+                session.close();
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            // Specify TO address was incorrect so do not process this stanza
             return;
         }
         if ("starttls".equals(tag)) {
@@ -186,58 +171,39 @@ abstract class StanzaHandler {
         }
     }
 
-    private boolean validateStanza(String stanza, XmlPullParser parser) {
-        // TODO Detect when XML stanza is not complete
-        int eventType;
-        try {
-            eventType = parser.getEventType();
-        } catch (XmlPullParserException e) {
-            Log.error("Error parsing XML stanza: " + stanza, e);
-            return false;
-        }
-        if (eventType == XmlPullParser.START_TAG) {
-            String to = parser.getAttributeValue("", "to");
-            if (to != null) {
-                // Validate the to address
-                if (!StringUtils.validateJID(to)) {
-                    StringBuilder reply = new StringBuilder();
-                    String stanzaType;
-                    if (parser.getName().equals("message")) {
-                        stanzaType ="message";
-                    }
-                    else if (parser.getName().equals("iq")) {
-                        stanzaType ="iq";
-                    }
-                    else if (parser.getName().equals("presence")) {
-                        stanzaType ="presence";
-                    }
-                    else {
-                        return false;
-                    }
-                    reply.append("<").append(stanzaType).append(" type='error'");
-                    String id = parser.getAttributeValue("", "id");
-                    if (id != null) {
-                        reply.append(" id='").append(id).append("'");
-                    }
-                    reply.append(">");
-                    reply.append("<error type='modify'><jid-malformed xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/>");
-                    reply.append("</error>");
-                    reply.append("</").append(stanzaType).append(">");
-
-                    connection.deliverRawText(reply.toString());
-                    throw new IllegalArgumentException("Illegal TO address");
+    private boolean validateStanza(StanzaScanner scanner) {
+        String to = scanner.getTo();
+        if (to != null) {
+            // Validate the to address
+            if (!StringUtils.validateJID(to)) {
+                StringBuilder reply = new StringBuilder();
+                String stanzaType;
+                if (scanner.getName().equals("message")) {
+                    stanzaType ="message";
                 }
+                else if (scanner.getName().equals("iq")) {
+                    stanzaType ="iq";
+                }
+                else if (scanner.getName().equals("presence")) {
+                    stanzaType ="presence";
+                }
+                else {
+                    return false;
+                }
+                reply.append("<").append(stanzaType).append(" type='error'");
+                String id = scanner.getId();
+                if (id != null) {
+                    reply.append(" id='").append(id).append("'");
+                }
+                reply.append(">");
+                reply.append("<error type='modify'><jid-malformed xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/>");
+                reply.append("</error>");
+                reply.append("</").append(stanzaType).append(">");
+
+                connection.deliverRawText(reply.toString());
+                throw new IllegalArgumentException("Illegal TO address");
             }
         }
-        try {
-            while (eventType != XmlPullParser.END_DOCUMENT) {
-                eventType = parser.next();
-            }
-        } catch (Exception e) {
-            Log.error("Error parsing XML stanza: " + stanza, e);
-            return false;
-        }
-
         return true;
     }
 
@@ -292,18 +258,8 @@ abstract class StanzaHandler {
      */
     private void tlsNegotiated() {
         // Offer stream features including SASL Mechanisms
-        StringBuilder sb = new StringBuilder(620);
-        sb.append(geStreamHeader());
-        sb.append("<stream:features>");
-        // Include available SASL Mechanisms
-        sb.append(ConnectionManager.getInstance().getServerSurrogate().getSASLMechanisms(session));
-        // Include specific features such as auth and register for client sessions
-        String specificFeatures = session.getAvailableStreamFeatures();
-        if (specificFeatures != null) {
-            sb.append(specificFeatures);
-        }
-        sb.append("</stream:features>");
-        connection.deliverRawText(sb.toString());
+        connection.deliverRawText(geStreamHeader() +
+                ((ClientSession) session).getStreamFeatures(false, true));
     }
 
     /**
@@ -313,18 +269,10 @@ abstract class StanzaHandler {
      * to servers or external components)
      */
     private void saslSuccessful() {
-        StringBuilder sb = new StringBuilder(420);
-        sb.append(geStreamHeader());
-        sb.append("<stream:features>");
-
         // Include specific features such as resource binding and session establishment
         // for client sessions
-        String specificFeatures = session.getAvailableStreamFeatures();
-        if (specificFeatures != null) {
-            sb.append(specificFeatures);
-        }
-        sb.append("</stream:features>");
-        connection.deliverRawText(sb.toString());
+        connection.deliverRawText(geStreamHeader() +
+                ((ClientSession) session).getStreamFeatures(false, false));
     }
 
     /**
@@ -352,11 +300,9 @@ abstract class StanzaHandler {
             Log.warn("Client requested compression and connection is already compressed. Closing " +
                     "connection : " + connection);
         } else {
-            XMPPPacketReader xmppReader = new XMPPPacketReader();
-            xmppReader.setXPPFactory(factory);
             Element doc;
             try {
-                doc = xmppReader.read(new StringReader(stanza)).getRootElement();
+                doc = ParserCache.getReader().read(new StringReader(stanza)).getRootElement();
             } catch (Exception e) {
                 Log.error("Error parsing compression stanza: " + stanza, e);
                 connection.close();
@@ -394,23 +340,10 @@ abstract class StanzaHandler {
      * to servers or external components)
      */
     private void compressionSuccessful() {
-        StringBuilder sb = new StringBuilder(340);
-        sb.append(geStreamHeader());
-        sb.append("<stream:features>");
         // Include SASL mechanisms only if client has not been authenticated
-        if (session.getStatus() != Session.STATUS_AUTHENTICATED) {
-            // Include available SASL Mechanisms
-            sb.append(ConnectionManager.getInstance().getServerSurrogate().getSASLMechanisms(
-                    session));
-        }
-        // Include specific features such as resource binding and session establishment
-        // for client sessions
-        String specificFeatures = session.getAvailableStreamFeatures();
-        if (specificFeatures != null) {
-            sb.append(specificFeatures);
-        }
-        sb.append("</stream:features>");
-        connection.deliverRawText(sb.toString());
+        boolean includeSASL = session.getStatus() != Session.STATUS_AUTHENTICATED;
+        connection.deliverRawText(geStreamHeader() +
+                ((ClientSession) session).getStreamFeatures(false, includeSASL));
     }
 
     private String geStreamHeader() {
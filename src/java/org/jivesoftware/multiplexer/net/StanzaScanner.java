@@ -0,0 +1,410 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Verifies that a stanza framed by {@link XMLLightweightParser} is well-formed XML in a
+ * single pass. While the stanza is scanned, the name of the root element and the values of
+ * its <tt>to</tt> and <tt>id</tt> attributes are kept so that the stanza does not have to
+ * be parsed again to route it.<p>
+ *
+ * The scanner checks element nesting, attribute syntax and duplicates, entity and character
+ * references, comments, CDATA sections and processing instructions. It also checks that
+ * namespace prefixes were declared in the stanza. Document type declarations are not
+ * allowed in XMPP so they are rejected.
+ */
+final class StanzaScanner {
+
+    private final String stanza;
+    private final int length;
+    private int pos = 0;
+
+    private String name;
+    private String to;
+    private String id;
+
+    /**
+     * Names of the open elements.
+     */
+    private final List<String> elements = new ArrayList<String>();
+    /**
+     * Namespace prefixes declared by the open elements and the number of elements open when
+     * the prefix was declared.
+     */
+    private final List<String> prefixes = new ArrayList<String>();
+    private final List<Integer> prefixDepths = new ArrayList<Integer>();
+
+    /**
+     * Scans the specified stanza.
+     *
+     * @param stanza the stanza to scan.
+     * @return the scanner with the name, to and id of the stanza.
+     * @throws XMLNotWellFormedException if the stanza is not well-formed XML.
+     */
+    static StanzaScanner scan(String stanza) throws XMLNotWellFormedException {
+        StanzaScanner scanner = new StanzaScanner(stanza);
+        scanner.scan();
+        return scanner;
+    }
+
+    private StanzaScanner(String stanza) {
+        this.stanza = stanza;
+        this.length = stanza.length();
+    }
+
+    /**
+     * Returns the name of the root element of the stanza (e.g. message).
+     *
+     * @return the name of the root element of the stanza.
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the value of the <tt>to</tt> attribute of the root element or <tt>null</tt>
+     * if the attribute was not present.
+     *
+     * @return the value of the to attribute of the root element or null if none.
+     */
+    String getTo() {
+        return to;
+    }
+
+    /**
+     * Returns the value of the <tt>id</tt> attribute of the root element or <tt>null</tt>
+     * if the attribute was not present.
+     *
+     * @return the value of the id attribute of the root element or null if none.
+     */
+    String getId() {
+        return id;
+    }
+
+    private void scan() throws XMLNotWellFormedException {
+        while (pos < length) {
+            char ch = stanza.charAt(pos);
+            if (ch == '<') {
+                if (stanza.startsWith("<!--", pos)) {
+                    pos = skipPast("-->", pos + 4);
+                }
+                else if (stanza.startsWith("<![CDATA[", pos)) {
+                    if (elements.isEmpty()) {
+                        throw error("CDATA section outside of the root element");
+                    }
+                    pos = skipPast("]]>", pos + 9);
+                }
+                else if (stanza.startsWith("<?", pos)) {
+                    pos = skipPast("?>", pos + 2);
+                }
+                else if (stanza.startsWith("<!", pos)) {
+                    throw error("Document type declarations are not allowed");
+                }
+                else if (stanza.startsWith("</", pos)) {
+                    readEndTag();
+                }
+                else {
+                    readStartTag();
+                }
+            }
+            else if (elements.isEmpty()) {
+                if (!isWhitespace(ch)) {
+                    throw error("Content outside of the root element");
+                }
+                pos++;
+            }
+            else if (ch == '&') {
+                pos = readReference(pos, null);
+            }
+            else {
+                pos++;
+            }
+        }
+        if (name == null) {
+            throw error("No root element was found");
+        }
+        if (!elements.isEmpty()) {
+            throw error("Element was not closed: " + elements.get(elements.size() - 1));
+        }
+    }
+
+    private void readStartTag() throws XMLNotWellFormedException {
+        if (name != null && elements.isEmpty()) {
+            throw error("Found more than one root element");
+        }
+        boolean root = name == null;
+        pos++;
+        String element = readName();
+        int depth = elements.size() + 1;
+        List<String> attributes = null;
+        List<String> attributePrefixes = null;
+        while (true) {
+            int start = pos;
+            skipWhitespace();
+            if (pos >= length) {
+                throw error("Start tag was not closed: " + element);
+            }
+            char ch = stanza.charAt(pos);
+            if (ch == '>' || ch == '/') {
+                break;
+            }
+            if (pos == start) {
+                throw error("Missing whitespace between attributes of: " + element);
+            }
+            String attribute = readName();
+            skipWhitespace();
+            expect('=');
+            skipWhitespace();
+            if (pos >= length) {
+                throw error("Missing value of attribute: " + attribute);
+            }
+            char quote = stanza.charAt(pos);
+            if (quote != '"' && quote != '\'') {
+                throw error("Value of attribute is not quoted: " + attribute);
+            }
+            int valueStart = ++pos;
+            int valueEnd = stanza.indexOf(quote, valueStart);
+            if (valueEnd < 0) {
+                throw error("Value of attribute was not closed: " + attribute);
+            }
+            StringBuilder value = root ? new StringBuilder(valueEnd - valueStart) : null;
+            for (int i = valueStart; i < valueEnd;) {
+                char c = stanza.charAt(i);
+                if (c == '<') {
+                    throw error("Character '<' is not allowed in value of attribute: " + attribute);
+                }
+                if (c == '&') {
+                    i = readReference(i, value);
+                }
+                else {
+                    if (value != null) {
+                        value.append(c);
+                    }
+                    i++;
+                }
+            }
+            pos = valueEnd + 1;
+
+            if (attributes == null) {
+                attributes = new ArrayList<String>();
+            }
+            else if (attributes.contains(attribute)) {
+                throw error("Duplicate attribute: " + attribute);
+            }
+            attributes.add(attribute);
+            if (attribute.startsWith("xmlns:")) {
+                prefixes.add(attribute.substring(6));
+                prefixDepths.add(depth);
+            }
+            else if (attribute.indexOf(':') > 0) {
+                if (attributePrefixes == null) {
+                    attributePrefixes = new ArrayList<String>();
+                }
+                attributePrefixes.add(attribute);
+            }
+            if (root) {
+                if ("to".equals(attribute)) {
+                    to = value.toString();
+                }
+                else if ("id".equals(attribute)) {
+                    id = value.toString();
+                }
+            }
+        }
+        // Prefixes can be declared after they were used in the same start tag
+        checkPrefix(element);
+        if (attributePrefixes != null) {
+            for (String attribute : attributePrefixes) {
+                checkPrefix(attribute);
+            }
+        }
+        if (root) {
+            name = element;
+        }
+        if (stanza.charAt(pos) == '/') {
+            pos++;
+            expect('>');
+            removePrefixes(depth);
+        }
+        else {
+            pos++;
+            elements.add(element);
+        }
+    }
+
+    private void readEndTag() throws XMLNotWellFormedException {
+        pos += 2;
+        String element = readName();
+        skipWhitespace();
+        expect('>');
+        if (elements.isEmpty()) {
+            throw error("Found end tag without a start tag: " + element);
+        }
+        String open = elements.remove(elements.size() - 1);
+        if (!open.equals(element)) {
+            throw error("End tag " + element + " does not match start tag " + open);
+        }
+        removePrefixes(elements.size() + 1);
+    }
+
+    /**
+     * Reads a reference that starts at the specified position and returns the position
+     * after the reference. The referenced character is appended to the specified builder
+     * if one was provided.
+     */
+    private int readReference(int start, StringBuilder value) throws XMLNotWellFormedException {
+        int end = stanza.indexOf(';', start + 1);
+        if (end < 0 || end == start + 1) {
+            throw error("Invalid reference");
+        }
+        String reference = stanza.substring(start + 1, end);
+        char ch;
+        if (reference.charAt(0) == '#') {
+            boolean hex = reference.length() > 1 && reference.charAt(1) == 'x';
+            String digits = reference.substring(hex ? 2 : 1);
+            int codePoint;
+            try {
+                // Signs are accepted by the parser but not by XML
+                if (digits.length() == 0 || !Character.isLetterOrDigit(digits.charAt(0))) {
+                    throw new NumberFormatException();
+                }
+                codePoint = Integer.parseInt(digits, hex ? 16 : 10);
+            }
+            catch (NumberFormatException e) {
+                throw error("Invalid character reference: " + reference);
+            }
+            if (!isXMLChar(codePoint)) {
+                throw error("Invalid character reference: " + reference);
+            }
+            if (value != null) {
+                value.appendCodePoint(codePoint);
+            }
+            return end + 1;
+        }
+        else if ("amp".equals(reference)) {
+            ch = '&';
+        }
+        else if ("lt".equals(reference)) {
+            ch = '<';
+        }
+        else if ("gt".equals(reference)) {
+            ch = '>';
+        }
+        else if ("quot".equals(reference)) {
+            ch = '"';
+        }
+        else if ("apos".equals(reference)) {
+            ch = '\'';
+        }
+        else {
+            throw error("Undefined entity: " + reference);
+        }
+        if (value != null) {
+            value.append(ch);
+        }
+        return end + 1;
+    }
+
+    private String readName() throws XMLNotWellFormedException {
+        int start = pos;
+        if (pos >= length || !isNameStartChar(stanza.charAt(pos))) {
+            throw error("Invalid name");
+        }
+        pos++;
+        while (pos < length && isNameChar(stanza.charAt(pos))) {
+            pos++;
+        }
+        return stanza.substring(start, pos);
+    }
+
+    private void checkPrefix(String qualifiedName) throws XMLNotWellFormedException {
+        int index = qualifiedName.indexOf(':');
+        if (index < 0) {
+            return;
+        }
+        String prefix = qualifiedName.substring(0, index);
+        if (index == 0 || index == qualifiedName.length() - 1) {
+            throw error("Invalid qualified name: " + qualifiedName);
+        }
+        if (!"xml".equals(prefix) && !"xmlns".equals(prefix) && !prefixes.contains(prefix)) {
+            throw error("Undeclared namespace prefix: " + prefix);
+        }
+    }
+
+    private void removePrefixes(int depth) {
+        for (int i = prefixDepths.size() - 1; i >= 0 && prefixDepths.get(i) == depth; i--) {
+            prefixes.remove(i);
+            prefixDepths.remove(i);
+        }
+    }
+
+    private int skipPast(String delimiter, int start) throws XMLNotWellFormedException {
+        int index = stanza.indexOf(delimiter, start);
+        if (index < 0) {
+            throw error("Missing " + delimiter);
+        }
+        return index + delimiter.length();
+    }
+
+    private void skipWhitespace() {
+        while (pos < length && isWhitespace(stanza.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private void expect(char ch) throws XMLNotWellFormedException {
+        if (pos >= length || stanza.charAt(pos) != ch) {
+            throw error("Expected '" + ch + "'");
+        }
+        pos++;
+    }
+
+    private XMLNotWellFormedException error(String message) {
+        return new XMLNotWellFormedException(message + " (position " + pos + ")");
+    }
+
+    private static boolean isWhitespace(char ch) {
+        return ch == ' ' || ch == '\n' || ch == '\r' || ch == '\t';
+    }
+
+    /**
+     * Returns true if the specified code point is a character allowed by XML. Null
+     * characters, most control characters, surrogates and non-characters are not allowed.
+     */
+    private static boolean isXMLChar(int codePoint) {
+        return codePoint == 0x9 || codePoint == 0xA || codePoint == 0xD ||
+                (codePoint >= 0x20 && codePoint <= 0xD7FF) ||
+                (codePoint >= 0xE000 && codePoint <= 0xFFFD) ||
+                (codePoint >= 0x10000 && codePoint <= 0x10FFFF);
+    }
+
+    private static boolean isNameStartChar(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || ch == '_' || ch == ':' ||
+                ch >= 0x80;
+    }
+
+    private static boolean isNameChar(char ch) {
+        return isNameStartChar(ch) || (ch >= '0' && ch <= '9') || ch == '-' || ch == '.';
+    }
+}
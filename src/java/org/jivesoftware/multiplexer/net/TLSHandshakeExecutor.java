@@ -0,0 +1,321 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import org.apache.mina.common.IdleStatus;
+import org.apache.mina.common.IoFilterAdapter;
+import org.apache.mina.common.IoFilterChain;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.SSLFilter;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.Log;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Filter that runs the TLS handshakes of client connections on a dedicated pool of threads.
+ * The filter has to be placed right before the <tt>tls</tt> filter. Until the handshake of a
+ * connection is complete, the events of the connection are queued and processed in order by
+ * the handshake pool so the CPU spent negotiating TLS does not delay the threads that route
+ * the stanzas of established sessions. Once the handshake is complete and the queued events
+ * were processed, events go through the filter in the thread that received them.<p>
+ *
+ * The pool is bounded by the <tt>xmpp.processor.threads.handshake</tt> property and the
+ * number of connections waiting for a handshake thread is bounded by the
+ * <tt>xmpp.socket.ssl.handshake.queue</tt> property. New connections that do not fit in the
+ * queue are closed. During a reconnect storm only new logins are then delayed or refused.<p>
+ *
+ * The time from the beginning of each handshake until it completes, including the time waiting
+ * for a handshake thread, is kept in a histogram.
+ */
+public class TLSHandshakeExecutor extends IoFilterAdapter {
+
+    /**
+     * Upper bounds in milliseconds of the buckets of the latency histogram. The last bucket
+     * counts the handshakes that took longer than the last bound.
+     */
+    private static final long[] LATENCY_BOUNDS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000};
+
+    private static final String STATE = "TLSHandshakeExecutor.state";
+
+    private static TLSHandshakeExecutor instance;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLongArray latencies = new AtomicLongArray(LATENCY_BOUNDS.length + 1);
+    private final AtomicLong rejectedHandshakes = new AtomicLong();
+
+    /**
+     * Returns the filter that runs the TLS handshakes of client connections.
+     *
+     * @return the filter that runs the TLS handshakes of client connections.
+     */
+    public static synchronized TLSHandshakeExecutor getInstance() {
+        if (instance == null) {
+            instance = new TLSHandshakeExecutor();
+        }
+        return instance;
+    }
+
+    private TLSHandshakeExecutor() {
+        int threads = JiveGlobals.getIntProperty("xmpp.processor.threads.handshake",
+                Math.max(2, Runtime.getRuntime().availableProcessors()));
+        int queueSize = JiveGlobals.getIntProperty("xmpp.socket.ssl.handshake.queue", 1000);
+        executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+            private final AtomicInteger threadId = new AtomicInteger(0);
+
+            public Thread newThread(Runnable runnable) {
+                Thread t = new Thread(runnable, "TLS handshake thread - " + threadId.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Stops the threads of the handshake pool. Handshakes in progress are not completed.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.executor.shutdownNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * Returns the upper bounds in milliseconds of the buckets of the latency histogram.
+     *
+     * @return the upper bounds of the buckets of the latency histogram.
+     */
+    public static long[] getLatencyBounds() {
+        return LATENCY_BOUNDS.clone();
+    }
+
+    /**
+     * Returns the number of handshakes in each bucket of the latency histogram. The array has
+     * one more bucket than {@link #getLatencyBounds()} for handshakes that took longer.
+     *
+     * @return the number of handshakes in each bucket of the latency histogram.
+     */
+    public long[] getLatencyCounts() {
+        long[] counts = new long[latencies.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = latencies.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Returns the latency histogram formatted for logging. E.g.
+     * <tt>&lt;=10ms: 4, &lt;=25ms: 9, ..., &gt;5000ms: 0</tt>.
+     *
+     * @return the latency histogram formatted for logging.
+     */
+    public String getLatencyHistogram() {
+        StringBuilder sb = new StringBuilder(150);
+        for (int i = 0; i < latencies.length(); i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            if (i < LATENCY_BOUNDS.length) {
+                sb.append("<=").append(LATENCY_BOUNDS[i]);
+            }
+            else {
+                sb.append('>').append(LATENCY_BOUNDS[LATENCY_BOUNDS.length - 1]);
+            }
+            sb.append("ms: ").append(latencies.get(i));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the number of connections that were closed because the handshake queue was full.
+     *
+     * @return the number of connections whose handshake was refused.
+     */
+    public long getRejectedHandshakes() {
+        return rejectedHandshakes.get();
+    }
+
+    @Override
+    public void onPostAdd(IoFilterChain parent, String name, NextFilter nextFilter) {
+        parent.getSession().setAttribute(STATE, new HandshakeState(parent.getSession()));
+    }
+
+    @Override
+    public void onPostRemove(IoFilterChain parent, String name, NextFilter nextFilter) {
+        parent.getSession().removeAttribute(STATE);
+    }
+
+    @Override
+    public void messageReceived(final NextFilter nextFilter, final IoSession session,
+            final Object message) {
+        fire(session, new Runnable() {
+            public void run() {
+                nextFilter.messageReceived(session, message);
+            }
+        });
+    }
+
+    @Override
+    public void messageSent(final NextFilter nextFilter, final IoSession session,
+            final Object message) {
+        fire(session, new Runnable() {
+            public void run() {
+                nextFilter.messageSent(session, message);
+            }
+        });
+    }
+
+    @Override
+    public void sessionIdle(final NextFilter nextFilter, final IoSession session,
+            final IdleStatus status) {
+        fire(session, new Runnable() {
+            public void run() {
+                nextFilter.sessionIdle(session, status);
+            }
+        });
+    }
+
+    @Override
+    public void exceptionCaught(final NextFilter nextFilter, final IoSession session,
+            final Throwable cause) {
+        fire(session, new Runnable() {
+            public void run() {
+                nextFilter.exceptionCaught(session, cause);
+            }
+        });
+    }
+
+    @Override
+    public void sessionClosed(final NextFilter nextFilter, final IoSession session) {
+        fire(session, new Runnable() {
+            public void run() {
+                nextFilter.sessionClosed(session);
+            }
+        });
+    }
+
+    private void fire(IoSession session, Runnable event) {
+        HandshakeState state = (HandshakeState) session.getAttribute(STATE);
+        boolean submit = false;
+        if (state != null) {
+            synchronized (state) {
+                if (state.isQueueing()) {
+                    state.events.add(event);
+                    if (!state.scheduled) {
+                        state.scheduled = true;
+                        submit = true;
+                    }
+                    // Event will be processed by the handshake pool
+                    event = null;
+                }
+            }
+        }
+        if (event != null) {
+            // Handshake is complete so process the event in the current thread
+            event.run();
+        }
+        else if (submit) {
+            try {
+                executor.execute(state);
+            }
+            catch (RejectedExecutionException e) {
+                rejectedHandshakes.incrementAndGet();
+                synchronized (state) {
+                    state.events.clear();
+                    state.scheduled = false;
+                    state.rejected = true;
+                }
+                Log.debug("TLS handshake queue is full. Closing connection " + session);
+                session.close();
+            }
+        }
+    }
+
+    private void recordLatency(long latency) {
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS.length && latency > LATENCY_BOUNDS[bucket]) {
+            bucket++;
+        }
+        latencies.incrementAndGet(bucket);
+    }
+
+    /**
+     * Events of a connection waiting to be processed by the handshake pool. The state is
+     * processed by one handshake thread at a time so events are processed in order.
+     */
+    private class HandshakeState implements Runnable {
+
+        private final IoSession session;
+        private final long start = System.currentTimeMillis();
+        private final Queue<Runnable> events = new LinkedList<Runnable>();
+        private boolean scheduled;
+        private boolean complete;
+        private boolean rejected;
+
+        HandshakeState(IoSession session) {
+            this.session = session;
+        }
+
+        /**
+         * Returns true if events have to be processed by the handshake pool. Events of
+         * connections whose handshake was refused are not queued so that the connection
+         * can be closed.
+         */
+        boolean isQueueing() {
+            return !rejected && (!complete || scheduled);
+        }
+
+        public void run() {
+            while (true) {
+                Runnable event;
+                synchronized (this) {
+                    event = events.poll();
+                    if (event == null) {
+                        scheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    event.run();
+                }
+                catch (Throwable t) {
+                    Log.error("Error processing TLS handshake of " + session, t);
+                }
+                if (!complete && session.getAttribute(SSLFilter.SSL_SESSION) != null) {
+                    synchronized (this) {
+                        complete = true;
+                    }
+                    recordLatency(System.currentTimeMillis() - start);
+                }
+            }
+        }
+    }
+}
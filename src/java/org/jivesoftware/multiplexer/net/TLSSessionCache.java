@@ -0,0 +1,187 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import org.apache.mina.common.IoFilter;
+import org.apache.mina.common.IoFilterAdapter;
+import org.apache.mina.common.IoFilterChain;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.SSLFilter;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.Log;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Server side cache of TLS sessions shared by the client listeners. TLS sessions can only be
+ * resumed by the SSLContext that negotiated them so all the listeners that accept clients,
+ * the STARTTLS negotiation of client connections, the old SSL port and the SSL connector of the
+ * HTTP binding service, use the SSLContext of {@link SSLConfig}. Clients that reconnect, for
+ * instance after a load balancer failed over, then perform an abbreviated handshake instead
+ * of a full handshake.<p>
+ *
+ * The cache is bounded by the <tt>xmpp.socket.ssl.session.cache.size</tt> property and
+ * sessions expire after the seconds of the <tt>xmpp.socket.ssl.session.cache.timeout</tt>
+ * property. Stateless session tickets (RFC 5077), which let clients resume sessions that were
+ * evicted from the cache, are enabled unless the <tt>xmpp.socket.ssl.session.tickets</tt>
+ * property is false. Session tickets require a JVM that supports them on the server side.<p>
+ *
+ * The handshakes of the MINA listeners are counted to monitor the hit rate of the cache.
+ */
+public final class TLSSessionCache {
+
+    /**
+     * Session attribute that keeps when the TLS handshake of a connection started.
+     */
+    private static final String HANDSHAKE_START = "TLSSessionCache.handshakeStart";
+
+    private static final AtomicLong fullHandshakes = new AtomicLong();
+    private static final AtomicLong abbreviatedHandshakes = new AtomicLong();
+
+    private static final IoFilter handshakeTracker = new HandshakeTracker();
+
+    private TLSSessionCache() {
+    }
+
+    /**
+     * Enables or disables stateless session tickets. Tickets have to be configured before
+     * the first SSLContext is created since the JVM reads the setting only once. A value that
+     * was set as a system property when launching the JVM is not overridden.
+     */
+    static void configureSessionTickets() {
+        boolean enabled = JiveGlobals.getBooleanProperty("xmpp.socket.ssl.session.tickets", true);
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+                    String.valueOf(enabled));
+        }
+    }
+
+    /**
+     * Bounds the size and lifetime of the server sessions cached by the specified SSLContext.
+     *
+     * @param context the SSLContext shared by the client listeners.
+     */
+    static void configure(SSLContext context) {
+        SSLSessionContext sessionContext = context.getServerSessionContext();
+        if (sessionContext == null) {
+            return;
+        }
+        sessionContext.setSessionCacheSize(getCacheSize());
+        sessionContext.setSessionTimeout(getCacheTimeout());
+        Log.debug("TLS session cache size: " + getCacheSize() + ", timeout: " +
+                getCacheTimeout() + " seconds");
+    }
+
+    /**
+     * Returns the maximum number of TLS sessions kept by the server. Default is 20000.
+     *
+     * @return the maximum number of TLS sessions kept by the server.
+     */
+    public static int getCacheSize() {
+        return JiveGlobals.getIntProperty("xmpp.socket.ssl.session.cache.size", 20000);
+    }
+
+    /**
+     * Returns the seconds that a TLS session may be resumed after it was negotiated.
+     * Default is 3600 seconds.
+     *
+     * @return the seconds that a TLS session may be resumed.
+     */
+    public static int getCacheTimeout() {
+        return JiveGlobals.getIntProperty("xmpp.socket.ssl.session.cache.timeout", 3600);
+    }
+
+    /**
+     * Returns the filter that counts the handshakes of the connections secured by the
+     * <tt>tls</tt> filter. The filter has to be added right after the <tt>tls</tt> filter.
+     *
+     * @return the filter that counts the TLS handshakes.
+     */
+    public static IoFilter getHandshakeTracker() {
+        return handshakeTracker;
+    }
+
+    /**
+     * Returns the number of handshakes that negotiated a new TLS session.
+     *
+     * @return the number of full handshakes.
+     */
+    public static long getFullHandshakes() {
+        return fullHandshakes.get();
+    }
+
+    /**
+     * Returns the number of handshakes that resumed a cached TLS session or a session ticket.
+     *
+     * @return the number of abbreviated handshakes.
+     */
+    public static long getAbbreviatedHandshakes() {
+        return abbreviatedHandshakes.get();
+    }
+
+    /**
+     * Returns the ratio of handshakes that resumed a TLS session. E.g. 0.9 means that 9 out
+     * of 10 handshakes were abbreviated.
+     *
+     * @return the hit rate of the session cache or 0 if no handshake was completed.
+     */
+    public static double getHitRate() {
+        long abbreviated = abbreviatedHandshakes.get();
+        long total = abbreviated + fullHandshakes.get();
+        return total == 0 ? 0 : (double) abbreviated / total;
+    }
+
+    /**
+     * Counts the handshake of each connection when the SSLFilter notifies that the
+     * connection was secured. A session that was created before the handshake started was
+     * resumed. Notifications are not passed to the next filters.
+     */
+    private static class HandshakeTracker extends IoFilterAdapter {
+
+        @Override
+        public void onPostAdd(IoFilterChain parent, String name, NextFilter nextFilter) {
+            IoSession session = parent.getSession();
+            session.setAttribute(HANDSHAKE_START, System.currentTimeMillis());
+            session.setAttribute(SSLFilter.USE_NOTIFICATION, Boolean.TRUE);
+        }
+
+        @Override
+        public void messageReceived(NextFilter nextFilter, IoSession session, Object message) {
+            if (message == SSLFilter.SESSION_SECURED) {
+                SSLSession sslSession = (SSLSession) session.getAttribute(SSLFilter.SSL_SESSION);
+                Long start = (Long) session.getAttribute(HANDSHAKE_START);
+                if (sslSession != null && start != null) {
+                    if (sslSession.getCreationTime() < start) {
+                        abbreviatedHandshakes.incrementAndGet();
+                    }
+                    else {
+                        fullHandshakes.incrementAndGet();
+                    }
+                }
+            }
+            else if (message != SSLFilter.SESSION_UNSECURED) {
+                nextFilter.messageReceived(session, message);
+            }
+        }
+    }
+}
@@ -29,7 +29,6 @@ import javax.net.ssl.SSLEngineResult.Status;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.KeyManagementException;
-import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 
 /**
@@ -74,26 +73,19 @@ public class TLSWrapper {
 
         // Create/initialize the SSLContext with key material
         try {
-            // First initialize the key and trust material.
-            KeyStore ksKeys = SSLConfig.getKeyStore();
-            String keypass = SSLConfig.getKeyPassword();
-
-            KeyStore ksTrust = SSLConfig.getTrustStore();
-            String trustpass = SSLConfig.getTrustPassword();
-
-            // KeyManager's decide which key material to use.
-            KeyManager[] km = SSLJiveKeyManagerFactory.getKeyManagers(ksKeys, keypass);
-
-            // TrustManager's decide whether to allow connections.
-            TrustManager[] tm = SSLJiveTrustManagerFactory.getTrustManagers(ksTrust, trustpass);
+            // Contexts are shared by all the connections and only built again when the
+            // certificates change
+            SSLContext tlsContext;
             if (clientMode || needClientAuth) {
                 // Check if we can trust certificates presented by the server
-                tm = new TrustManager[]{new ServerTrustManager(remoteServer, ksTrust)};
+                tlsContext = SSLConfig.getClientSSLContext(remoteServer);
+            }
+            else {
+                tlsContext = SSLConfig.getSSLContext();
+                if (tlsContext == null) {
+                    throw new IOException("SSLContext of client connections is not available");
+                }
             }
-
-            SSLContext tlsContext = SSLContext.getInstance(algorithm);
-
-            tlsContext.init(km, tm, null);
 
             /*
                 * Configure the tlsEngine to act as a server in the SSL/TLS handshake. We're a server,
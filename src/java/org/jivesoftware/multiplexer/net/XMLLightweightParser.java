@@ -19,10 +19,7 @@
 
 package org.jivesoftware.multiplexer.net;
 
-import java.nio.CharBuffer;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetDecoder;
-import java.nio.charset.CodingErrorAction;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -40,7 +37,12 @@ import org.jivesoftware.util.PropertyEventListener;
  * the channel.
  * When a message is complete you can retrieve messages invoking the method
  * getMsgs() and you can invoke the method areThereMsgs() to know if at least
- * an message is presents.
+ * an message is presents.<p>
+ *
+ * The parser works on the received bytes and only decodes a message once it is complete.
+ * The charset has to be ASCII compatible (e.g. UTF-8) since the characters that delimit
+ * messages are looked up as bytes. Bytes of partial messages are kept between reads and
+ * are not copied again unless the buffer needs to grow.
  *
  * @author Daniele Piras
  * @author Gaston Dombiak
@@ -51,13 +53,19 @@ class XMLLightweightParser {
 
     private static final String MAX_PROPERTY_NAME = "xmpp.parser.buffer.size";
     private static int maxBufferSize;
+    // Initial size of the buffer used for keeping the bytes of partial messages
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    // Buffers bigger than this size are discarded when they are no longer used
+    private static final int MAX_IDLE_BUFFER_SIZE = 65536;
     // Chars that rappresent CDATA section start
     protected static char[] CDATA_START = {'<', '!', '[', 'C', 'D', 'A', 'T', 'A', '['};
     // Chars that rappresent CDATA section end
     protected static char[] CDATA_END = {']', ']', '>'};
 
     // Buffer with all data retrieved
-    protected StringBuilder buffer = new StringBuilder();
+    protected byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    // Number of bytes in the buffer
+    protected int bufferLength = 0;
 
     // ---- INTERNAL STATUS -------
     // Initial status
@@ -88,6 +96,11 @@ class XMLLightweightParser {
     // Index to looking for a CDATA section start or end.
     protected int cdataOffset = 0;
 
+    // Flag used when the last byte was the first byte of an encoded surrogate char
+    private boolean surrogateLead = false;
+    // Flag used when a high surrogate char was found and a low surrogate is expected
+    private boolean isHighSurrogate = false;
+
     // Number of chars that machs with the head tag. If the tailCount is equal to
     // the head length so a close tag is found.
     protected int tailCount = 0;
@@ -103,7 +116,7 @@ class XMLLightweightParser {
 
     protected boolean insideChildrenTag = false;
 
-    CharsetDecoder encoder;
+    private Charset charset;
 
     static {
         // Set default max buffer size to 1MB. If limit is reached then close connection
@@ -113,9 +126,14 @@ class XMLLightweightParser {
     }
 
     public XMLLightweightParser(String charset) {
-        encoder = Charset.forName(charset).newDecoder()
-			.onMalformedInput(CodingErrorAction.REPLACE)
-			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.charset = Charset.forName(charset);
+    }
+
+    /*
+    * @return the number of bytes allocated by the buffer of the parser
+    */
+    public int getBufferCapacity() {
+        return buffer.length;
     }
 
     /*
@@ -142,15 +160,25 @@ class XMLLightweightParser {
     * Method use to re-initialize the buffer
     */
     protected void invalidateBuffer() {
-        if (buffer.length() > 0) {
-            String str = buffer.substring(startLastMsg);
-            buffer.delete(0, buffer.length());
-            buffer.append(str);
-            buffer.trimToSize();
+        if (startLastMsg > 0) {
+            // Move the bytes of the partial message to the beginning of the buffer
+            bufferLength -= startLastMsg;
+            System.arraycopy(buffer, startLastMsg, buffer, 0, bufferLength);
+        }
+        if (bufferLength == 0 && buffer.length > MAX_IDLE_BUFFER_SIZE) {
+            // Release the memory used by a big message
+            buffer = new byte[INITIAL_BUFFER_SIZE];
         }
         startLastMsg = 0;
     }
 
+    /*
+    * Returns the message that is in the buffer between the specified positions.
+    */
+    private String getMsg(int start, int end) {
+        return new String(buffer, start, end - start, charset);
+    }
+
 
     /*
     * Method that add a message to the list and reinit parser.
@@ -179,50 +207,67 @@ class XMLLightweightParser {
     public void read(ByteBuffer byteBuffer) throws Exception {
         invalidateBuffer();
         // Check that the buffer is not bigger than 1 Megabyte. For security reasons
-        // we will abort parsing when 1 Mega of queued chars was found.
-        if (buffer.length() > maxBufferSize) {
+        // we will abort parsing when 1 Mega of queued bytes was found.
+        if (bufferLength > maxBufferSize) {
             throw new Exception("Stopped parsing never ending stanza");
         }
-        CharBuffer charBuffer = CharBuffer.allocate(byteBuffer.capacity());
-        encoder.reset();
-        encoder.decode(byteBuffer.buf(), charBuffer, false);
-        char[] buf = new char[charBuffer.position()];
-        charBuffer.flip();charBuffer.get(buf);
-        int readChar = buf.length;
+        int readByte = byteBuffer.remaining();
 
         // Just return if nothing was read
-        if (readChar == 0) {
+        if (readByte == 0) {
             return;
         }
 
-        buffer.append(buf);
+        if (bufferLength + readByte > buffer.length) {
+            // Grow the buffer to hold the new bytes
+            byte[] newBuffer = new byte[Math.max(buffer.length * 2, bufferLength + readByte)];
+            System.arraycopy(buffer, 0, newBuffer, 0, bufferLength);
+            buffer = newBuffer;
+        }
+        int offset = bufferLength;
+        byteBuffer.get(buffer, offset, readByte);
+        bufferLength += readByte;
 
-        // Robot.
+        // Robot. Characters that delimit messages are ASCII so bytes are compared
+        // to them. Bytes of multi-byte characters are never equal to ASCII chars.
         char ch;
-        boolean isHighSurrogate = false;
-        for (int i = 0; i < readChar; i++) {
-            ch = buf[i];
-            if (ch < 0x20 && ch != 0x9 && ch != 0xA && ch != 0xD && ch != 0x0) {
+        for (int i = offset; i < bufferLength; i++) {
+            int b = buffer[i] & 0xFF;
+            ch = (char) b;
+            if (b < 0x20 && b != 0x9 && b != 0xA && b != 0xD && b != 0x0) {
                  //Unicode characters in the range 0x0000-0x001F other than 9, A, and D are not allowed in XML
                  //We need to allow the NULL character, however, for Flash XMLSocket clients to work.
                 throw new XMLNotWellFormedException("Character is invalid in: " + ch);
             }
-            if (isHighSurrogate) {
-                if (Character.isLowSurrogate(ch)) {
+            if (surrogateLead) {
+                // Surrogate chars are encoded as 0xED followed by 0xA0-0xAF (high surrogates)
+                // or 0xB0-0xBF (low surrogates)
+                surrogateLead = false;
+                if (b >= 0xB0 && b <= 0xBF) {
+                    if (!isHighSurrogate) {
+                        // Trigger error. Found low surrogate char without a preceding high surrogate
+                        throw new Exception("Found low surrogate char without a preceding high surrogate");
+                    }
                     // Everything is fine. Clean up traces for surrogates
                     isHighSurrogate = false;
                 }
-                else {
+                else if (isHighSurrogate) {
                     // Trigger error. Found high surrogate not followed by low surrogate
                     throw new Exception("Found high surrogate not followed by low surrogate");
                 }
+                else if (b >= 0xA0 && b <= 0xAF) {
+                    isHighSurrogate = true;
+                }
             }
-            else if (Character.isHighSurrogate(ch)) {
-                isHighSurrogate = true;
-            }
-            else if (Character.isLowSurrogate(ch)) {
-                // Trigger error. Found low surrogate char without a preceding high surrogate
-                throw new Exception("Found low surrogate char without a preceding high surrogate");
+            else if ((b & 0xC0) != 0x80) {
+                // Found the first byte of a new char
+                if (b == 0xED) {
+                    surrogateLead = true;
+                }
+                else if (isHighSurrogate) {
+                    // Trigger error. Found high surrogate not followed by low surrogate
+                    throw new Exception("Found high surrogate not followed by low surrogate");
+                }
             }
             if (status == XMLLightweightParser.TAIL) {
                 // Looking for the close tag
@@ -231,8 +276,8 @@ class XMLLightweightParser {
                     if (tailCount == head.length()) {
                         // Close stanza found!
                         // Calculate the correct start,end position of the message into the buffer
-                        int end = buffer.length() - readChar + (i + 1);
-                        String msg = buffer.substring(startLastMsg, end);
+                        int end = i + 1;
+                        String msg = getMsg(startLastMsg, end);
                         // Add message to the list
                         foundMsg(msg);
                         startLastMsg = end;
@@ -270,8 +315,8 @@ class XMLLightweightParser {
                     status = XMLLightweightParser.OUTSIDE;
                     if (depth < 1) {
                         // Found a tag in the form <tag />
-                        int end = buffer.length() - readChar + (i + 1);
-                        String msg = buffer.substring(startLastMsg, end);
+                        int end = i + 1;
+                        String msg = getMsg(startLastMsg, end);
                         // Add message to the list
                         foundMsg(msg);
                         startLastMsg = end;
@@ -316,12 +361,12 @@ class XMLLightweightParser {
                     if (insideRootTag && ("stream:stream>".equals(head.toString()) ||
                             ("?xml>".equals(head.toString())) || ("flash:stream>".equals(head.toString())))) {
                         // Found closing stream:stream
-                        int end = buffer.length() - readChar + (i + 1);
+                        int end = i + 1;
                         // Skip LF, CR and other "weird" characters that could appear
-                        while (startLastMsg < end && '<' != buffer.charAt(startLastMsg)) {
+                        while (startLastMsg < end && '<' != buffer[startLastMsg]) {
                             startLastMsg++;
                         }
-                        String msg = buffer.substring(startLastMsg, end);
+                        String msg = getMsg(startLastMsg, end);
                         foundMsg(msg);
                         startLastMsg = end;
                     }
@@ -383,6 +428,9 @@ class XMLLightweightParser {
 	 */
 	public static boolean hasIllegalCharacterReferences(String string) {
 		// If there's no character reference, don't bother to do more specific checking.
+		if (string.indexOf("&#") < 0) {
+			return false;
+		}
 		final Matcher matcher = XML_HAS_CHARREF.matcher(string);
 
 		while (matcher.find()) {
@@ -38,6 +38,11 @@ public class XMPPDecoder extends CumulativeProtocolDecoder {
             throws Exception {
         // Get the XML light parser from the IoSession
         XMLLightweightParser parser = (XMLLightweightParser) session.getAttribute(ConnectionHandler.XML_PARSER);
+        if (parser == null) {
+            // Create a new XML parser for sessions whose handler did not provide one
+            parser = new XMLLightweightParser(ConnectionHandler.CHARSET);
+            session.setAttribute(ConnectionHandler.XML_PARSER, parser);
+        }
         // Parse as many stanzas as possible from the received data
         parser.read(in);
 
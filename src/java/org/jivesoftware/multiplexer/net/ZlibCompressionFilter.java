@@ -0,0 +1,364 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import com.jcraft.jzlib.JZlib;
+import com.jcraft.jzlib.ZStream;
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoFilterAdapter;
+import org.apache.mina.common.IoFilterChain;
+import org.apache.mina.common.IoSession;
+import org.jivesoftware.util.JiveGlobals;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Filter that compresses the traffic of a connection using zlib (XEP-0138). Unlike the
+ * CompressionFilter of MINA, the compression level and the size of the window used to
+ * compress outgoing data are configurable so that the CPU and the memory used by each
+ * compressed connection can be traded against the compression ratio.<p>
+ *
+ * The deflater of a connection uses about 2<sup>windowBits + 2</sup> bytes for its window and
+ * matches plus about 128K for its hash table and pending output. A window of 15 bits (32K) is
+ * the zlib default. Client connections use a window of 12 bits (4K) when the
+ * <tt>xmpp.client.compression.bounded</tt> property is true. Incoming data is always inflated
+ * with the largest window since the window is chosen by the peer.<p>
+ *
+ * Preset dictionaries are not used. XEP-0138 negotiates plain zlib streams and a stream
+ * deflated with a preset dictionary can only be inflated by a peer that has the same
+ * dictionary, which clients do not have. Short stanzas still share the window of the
+ * connection since each write is flushed with Z_SYNC_FLUSH instead of ending the stream.<p>
+ *
+ * Compressed and uncompressed bytes are counted for each connection and in total.
+ */
+public class ZlibCompressionFilter extends IoFilterAdapter {
+
+    private static final String STATE = "ZlibCompressionFilter.state";
+
+    /**
+     * Largest window supported by zlib (32K).
+     */
+    private static final int MAX_WINDOW_BITS = 15;
+
+    /**
+     * Window used by client connections in memory bounded mode.
+     */
+    private static final int BOUNDED_WINDOW_BITS = 12;
+
+    private static final AtomicLong totalBytesWritten = new AtomicLong();
+    private static final AtomicLong totalCompressedBytesWritten = new AtomicLong();
+
+    /**
+     * Buffer of each thread where zlib writes its output. Buffers are not kept per connection
+     * to not add to the memory of each compressed connection.
+     */
+    private static final ThreadLocal<byte[]> localChunk = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+
+    private final int level;
+    private final int windowBits;
+
+    /**
+     * Creates a new filter.
+     *
+     * @param level the compression level from 0 (no compression) to 9 (best compression).
+     * @param windowBits the base two logarithm of the window used to compress outgoing data,
+     *        from 9 to 15.
+     */
+    public ZlibCompressionFilter(int level, int windowBits) {
+        this.level = Math.max(JZlib.Z_NO_COMPRESSION, Math.min(JZlib.Z_BEST_COMPRESSION, level));
+        this.windowBits = Math.max(9, Math.min(MAX_WINDOW_BITS, windowBits));
+    }
+
+    /**
+     * Returns the compression level of client connections. Default is 6, which compresses
+     * short stanzas almost as well as the best compression at a fraction of its CPU cost.
+     *
+     * @return the compression level of client connections.
+     */
+    public static int getClientLevel() {
+        return JiveGlobals.getIntProperty("xmpp.client.compression.level", 6);
+    }
+
+    /**
+     * Returns the base two logarithm of the window used to compress the traffic sent to
+     * clients. Default is 15 (32K) or 12 (4K) in memory bounded mode.
+     *
+     * @return the base two logarithm of the window used to compress the traffic to clients.
+     */
+    public static int getClientWindowBits() {
+        boolean bounded = JiveGlobals.getBooleanProperty("xmpp.client.compression.bounded", false);
+        return JiveGlobals.getIntProperty("xmpp.client.compression.window",
+                bounded ? BOUNDED_WINDOW_BITS : MAX_WINDOW_BITS);
+    }
+
+    /**
+     * Returns the compression level of the connections to the server. Default is 6.
+     *
+     * @return the compression level of the connections to the server.
+     */
+    public static int getServerLevel() {
+        return JiveGlobals.getIntProperty("xmpp.server.compression.level", 6);
+    }
+
+    /**
+     * Returns the base two logarithm of the window used to compress the traffic sent to the
+     * server. Default is 15 (32K).
+     *
+     * @return the base two logarithm of the window used to compress the traffic to the server.
+     */
+    public static int getServerWindowBits() {
+        return JiveGlobals.getIntProperty("xmpp.server.compression.window", MAX_WINDOW_BITS);
+    }
+
+    /**
+     * Returns the compression counters of a connection or <tt>null</tt> if the connection is
+     * not compressed.
+     *
+     * @param session the session of the connection.
+     * @return the compression counters of the connection or null if it is not compressed.
+     */
+    public static CompressionStats getStats(IoSession session) {
+        ZlibState state = (ZlibState) session.getAttribute(STATE);
+        return state == null ? null : state.stats;
+    }
+
+    /**
+     * Returns the ratio between the compressed size of the data sent by all compressed
+     * connections and its size before compression.
+     *
+     * @return the compression ratio of outgoing data or 1 if nothing was compressed.
+     */
+    public static double getCompressionRatio() {
+        long written = totalBytesWritten.get();
+        return written == 0 ? 1 : (double) totalCompressedBytesWritten.get() / written;
+    }
+
+    @Override
+    public void onPreAdd(IoFilterChain parent, String name, NextFilter nextFilter) {
+        if (parent.contains(ZlibCompressionFilter.class)) {
+            throw new IllegalStateException("Only one " + ZlibCompressionFilter.class +
+                    " is permitted.");
+        }
+        parent.getSession().setAttribute(STATE, new ZlibState(level, windowBits));
+    }
+
+    @Override
+    public void onPostRemove(IoFilterChain parent, String name, NextFilter nextFilter) {
+        ZlibState state = (ZlibState) parent.getSession().removeAttribute(STATE);
+        if (state != null) {
+            state.end();
+        }
+    }
+
+    @Override
+    public void sessionClosed(NextFilter nextFilter, IoSession session) {
+        ZlibState state = (ZlibState) session.getAttribute(STATE);
+        if (state != null) {
+            state.end();
+        }
+        nextFilter.sessionClosed(session);
+    }
+
+    @Override
+    public void messageReceived(NextFilter nextFilter, IoSession session, Object message)
+            throws IOException {
+        ZlibState state = (ZlibState) session.getAttribute(STATE);
+        if (state == null || !(message instanceof ByteBuffer)) {
+            nextFilter.messageReceived(session, message);
+            return;
+        }
+        ByteBuffer in = (ByteBuffer) message;
+        if (!in.hasRemaining()) {
+            nextFilter.messageReceived(session, message);
+            return;
+        }
+        ByteBuffer out = state.inflate(in);
+        in.release();
+        nextFilter.messageReceived(session, out);
+    }
+
+    @Override
+    public void filterWrite(NextFilter nextFilter, IoSession session, WriteRequest writeRequest)
+            throws IOException {
+        ZlibState state = (ZlibState) session.getAttribute(STATE);
+        Object message = writeRequest.getMessage();
+        if (state == null || !(message instanceof ByteBuffer) ||
+                !((ByteBuffer) message).hasRemaining()) {
+            nextFilter.filterWrite(session, writeRequest);
+            return;
+        }
+        ByteBuffer in = (ByteBuffer) message;
+        // Compressed data has to be written in the order it was deflated
+        synchronized (state.deflater) {
+            ByteBuffer out = state.deflate(in);
+            in.release();
+            nextFilter.filterWrite(session, new WriteRequest(out, writeRequest.getFuture(),
+                    writeRequest.getDestination()));
+        }
+    }
+
+    /**
+     * Compressed and uncompressed bytes read and written by a compressed connection.
+     */
+    public static class CompressionStats {
+
+        private volatile long compressedBytesRead;
+        private volatile long bytesRead;
+        private volatile long compressedBytesWritten;
+        private volatile long bytesWritten;
+
+        /**
+         * Returns the number of compressed bytes received from the peer.
+         *
+         * @return the number of compressed bytes received from the peer.
+         */
+        public long getCompressedBytesRead() {
+            return compressedBytesRead;
+        }
+
+        /**
+         * Returns the number of bytes received from the peer after they were inflated.
+         *
+         * @return the number of inflated bytes received from the peer.
+         */
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        /**
+         * Returns the number of compressed bytes sent to the peer.
+         *
+         * @return the number of compressed bytes sent to the peer.
+         */
+        public long getCompressedBytesWritten() {
+            return compressedBytesWritten;
+        }
+
+        /**
+         * Returns the number of bytes sent to the peer before they were deflated.
+         *
+         * @return the number of bytes sent to the peer before compression.
+         */
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        @Override
+        public String toString() {
+            return "read " + compressedBytesRead + "/" + bytesRead + " bytes, written " +
+                    compressedBytesWritten + "/" + bytesWritten + " bytes (compressed/plain)";
+        }
+    }
+
+    /**
+     * Inflater and deflater of a connection. Each stream is guarded by its own lock.
+     */
+    private static class ZlibState {
+
+        private final ZStream inflater = new ZStream();
+        private final ZStream deflater = new ZStream();
+        private final CompressionStats stats = new CompressionStats();
+        private boolean ended;
+
+        ZlibState(int level, int windowBits) {
+            inflater.inflateInit();
+            deflater.deflateInit(level, windowBits);
+        }
+
+        ByteBuffer inflate(ByteBuffer in) throws IOException {
+            byte[] input = new byte[in.remaining()];
+            in.get(input);
+            synchronized (inflater) {
+                if (ended) {
+                    throw new IOException("Connection is closed");
+                }
+                ByteBuffer out = ByteBuffer.allocate(input.length * 2).setAutoExpand(true);
+                inflater.next_in = input;
+                inflater.next_in_index = 0;
+                inflater.avail_in = input.length;
+                process(inflater, false, out);
+                stats.compressedBytesRead += input.length;
+                stats.bytesRead += out.position();
+                return out.flip();
+            }
+        }
+
+        ByteBuffer deflate(ByteBuffer in) throws IOException {
+            // Caller holds the lock of the deflater
+            if (ended) {
+                throw new IOException("Connection is closed");
+            }
+            byte[] input = new byte[in.remaining()];
+            in.get(input);
+            ByteBuffer out = ByteBuffer.allocate(input.length / 2 + 64).setAutoExpand(true);
+            deflater.next_in = input;
+            deflater.next_in_index = 0;
+            deflater.avail_in = input.length;
+            process(deflater, true, out);
+            stats.bytesWritten += input.length;
+            stats.compressedBytesWritten += out.position();
+            totalBytesWritten.addAndGet(input.length);
+            totalCompressedBytesWritten.addAndGet(out.position());
+            return out.flip();
+        }
+
+        private static void process(ZStream stream, boolean deflate, ByteBuffer out)
+                throws IOException {
+            byte[] chunk = localChunk.get();
+            do {
+                stream.next_out = chunk;
+                stream.next_out_index = 0;
+                stream.avail_out = chunk.length;
+                int result = deflate ? stream.deflate(JZlib.Z_SYNC_FLUSH) :
+                        stream.inflate(JZlib.Z_SYNC_FLUSH);
+                if (result != JZlib.Z_OK && result != JZlib.Z_BUF_ERROR) {
+                    throw new IOException((deflate ? "Deflate" : "Inflate") + " error: " +
+                            result + " " + stream.msg);
+                }
+                out.put(chunk, 0, chunk.length - stream.avail_out);
+                if (result == JZlib.Z_BUF_ERROR) {
+                    // No progress was possible so all the input was processed
+                    break;
+                }
+            }
+            while (stream.avail_in > 0 || stream.avail_out == 0);
+            stream.next_in = null;
+            stream.next_out = null;
+        }
+
+        void end() {
+            synchronized (inflater) {
+                synchronized (deflater) {
+                    if (!ended) {
+                        ended = true;
+                        inflater.inflateEnd();
+                        deflater.deflateEnd();
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.http;
+
+import org.apache.mina.common.ByteBuffer;
+import org.dom4j.Element;
+import org.jivesoftware.util.StringUtils;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Stanza sent by the server that is waiting to be delivered, or that was delivered and may
+ * be sent again, to a client of an HTTP binding session. The stanza is encoded in UTF-8 once
+ * when it is received from the server and the attributes needed for bouncing it are kept
+ * along with the encoded bytes. The stanza never needs to be parsed again to be delivered, retransmitted
+ * or to inform the server that it could not be delivered.
+ */
+class BufferedStanza {
+
+    private static final String CLIENT_NAMESPACE = " xmlns=\"jabber:client\"";
+
+    private final String kind;
+    private final String from;
+    private final String to;
+    private final String id;
+    private final String type;
+    private final byte[] bytes;
+
+    private BufferedStanza(Element packet, byte[] bytes) {
+        this.kind = packet.getName();
+        this.from = packet.attributeValue("from");
+        this.to = packet.attributeValue("to");
+        this.id = packet.attributeValue("id");
+        this.type = packet.attributeValue("type");
+        this.bytes = bytes;
+    }
+
+    /**
+     * Encodes the specified stanza. Stanzas in the default namespace are rewritten to the
+     * <tt>jabber:client</tt> namespace as required by XEP-0206.
+     *
+     * @param packet the stanza sent by the server.
+     * @return the encoded stanza.
+     */
+    static BufferedStanza create(Element packet) {
+        String name = packet.getName();
+        String xml = packet.asXML();
+        if ("message".equals(name) || "presence".equals(name) || "iq".equals(name)) {
+            // Rewrite packet namespace according XEP-0206
+            StringBuilder sb = new StringBuilder(xml.length() + CLIENT_NAMESPACE.length());
+            sb.append('<').append(name).append(CLIENT_NAMESPACE);
+            sb.append(xml, name.length() + 1, xml.length());
+            xml = sb.toString();
+        }
+        try {
+            return new BufferedStanza(packet, xml.getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the name of the stanza element. E.g. <tt>message</tt>, <tt>presence</tt>
+     * or <tt>iq</tt>.
+     *
+     * @return the name of the stanza element.
+     */
+    String getKind() {
+        return kind;
+    }
+
+    String getFrom() {
+        return from;
+    }
+
+    String getTo() {
+        return to;
+    }
+
+    String getID() {
+        return id;
+    }
+
+    String getType() {
+        return type;
+    }
+
+    /**
+     * Returns the XML of the stanza as it is sent to the client.
+     *
+     * @return the XML of the stanza.
+     */
+    String getXML() {
+        try {
+            return new String(bytes, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the number of bytes of the encoded stanza.
+     *
+     * @return the number of bytes of the encoded stanza.
+     */
+    int getLength() {
+        return bytes.length;
+    }
+
+    /**
+     * Writes the encoded stanza to a response body.
+     *
+     * @param buffer the response body.
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.put(bytes);
+    }
+
+    /**
+     * Returns true if the stanza is an IQ request that expects a reply.
+     *
+     * @return true if the stanza is an IQ request that expects a reply.
+     */
+    boolean isRequest() {
+        return "iq".equals(kind) && (type == null || "get".equals(type) || "set".equals(type));
+    }
+
+    /**
+     * Creates the <tt>unexpected-request</tt> error that is returned to the sender of an IQ
+     * request that could not be delivered. The payload of the request is copied from the
+     * encoded stanza.
+     *
+     * @return the error reply to the IQ request.
+     */
+    String createErrorReply() {
+        String xml = getXML();
+        StringBuilder sb = new StringBuilder(xml.length() + 200);
+        sb.append("<iq").append(CLIENT_NAMESPACE).append(" type=\"error\"");
+        appendAttribute(sb, "id", id);
+        appendAttribute(sb, "from", to);
+        appendAttribute(sb, "to", from);
+        sb.append('>');
+        // Greater than signs are escaped in attribute values so this is the end of the start tag
+        int startTagEnd = xml.indexOf('>');
+        if (xml.charAt(startTagEnd - 1) != '/') {
+            sb.append(xml, startTagEnd + 1, xml.length() - "</iq>".length());
+        }
+        sb.append("<error type=\"wait\"><unexpected-request ");
+        sb.append("xmlns=\"urn:ietf:params:xml:ns:xmpp-stanzas\"/></error></iq>");
+        return sb.toString();
+    }
+
+    private static void appendAttribute(StringBuilder sb, String name, String value) {
+        if (value != null) {
+            sb.append(' ').append(name).append("=\"").append(StringUtils.escapeForXML(value))
+                    .append('"');
+        }
+    }
+}
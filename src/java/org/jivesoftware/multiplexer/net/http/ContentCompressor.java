@@ -0,0 +1,278 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses the responses of the HTTP binding service using the <tt>gzip</tt> or
+ * <tt>deflate</tt> content encodings and decompresses requests that were sent with one of
+ * them. Each thread keeps its own deflaters and output buffer so compressing a response does
+ * not create native zlib state nor allocate memory once the thread compressed its first
+ * response.<p>
+ *
+ * The number of bytes before and after compression are counted for all the responses that
+ * were compressed in order to monitor the compression ratio.
+ */
+final class ContentCompressor {
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    /**
+     * Header of gzip members without optional fields or modification time.
+     */
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+    /**
+     * Output buffers that grew beyond this size are not kept by the thread.
+     */
+    private static final int MAX_RETAINED_OUTPUT = 64 * 1024;
+
+    private static final AtomicLong uncompressedBytes = new AtomicLong();
+    private static final AtomicLong compressedBytes = new AtomicLong();
+    private static final AtomicLong compressedResponses = new AtomicLong();
+
+    private static final ThreadLocal<ContentCompressor> localCompressor =
+            new ThreadLocal<ContentCompressor>() {
+        @Override
+        protected ContentCompressor initialValue() {
+            return new ContentCompressor();
+        }
+    };
+
+    private Deflater gzipDeflater;
+    private Deflater zlibDeflater;
+    private final CRC32 crc = new CRC32();
+    private byte[] output = new byte[4096];
+    private int outputLength;
+
+    private ContentCompressor() {
+    }
+
+    /**
+     * Returns the compressor of the current thread.
+     *
+     * @return the compressor of the current thread.
+     */
+    static ContentCompressor getInstance() {
+        return localCompressor.get();
+    }
+
+    /**
+     * Returns the preferred content encoding accepted by a client or <tt>null</tt> if the
+     * client does not accept compressed content. Gzip is preferred over deflate.
+     *
+     * @param acceptEncoding the value of the Accept-Encoding header of the request.
+     * @return gzip, deflate or null if the client does not accept compressed content.
+     */
+    static String getAcceptedEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        boolean deflate = false;
+        for (String coding : acceptEncoding.split(",")) {
+            String name = coding;
+            int parameters = coding.indexOf(';');
+            if (parameters != -1) {
+                name = coding.substring(0, parameters);
+                if (isRefused(coding.substring(parameters + 1))) {
+                    continue;
+                }
+            }
+            name = name.trim();
+            if (GZIP.equalsIgnoreCase(name)) {
+                return GZIP;
+            }
+            deflate |= DEFLATE.equalsIgnoreCase(name);
+        }
+        return deflate ? DEFLATE : null;
+    }
+
+    private static boolean isRefused(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.startsWith("q=")) {
+                try {
+                    return Double.parseDouble(parameter.substring(2)) <= 0;
+                }
+                catch (NumberFormatException e) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns a stream that decompresses the content of a request that was sent with the
+     * specified content encoding. The stream of the request is returned when the content was
+     * not compressed.
+     *
+     * @param request the stream of the request.
+     * @param contentEncoding the value of the Content-Encoding header of the request.
+     * @return the stream of the decompressed content.
+     * @throws IOException if the gzip header of the request could not be read.
+     */
+    static InputStream getDecompressedStream(InputStream request, String contentEncoding)
+            throws IOException {
+        if (contentEncoding == null) {
+            return request;
+        }
+        contentEncoding = contentEncoding.trim();
+        if (GZIP.equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(request);
+        }
+        else if (DEFLATE.equalsIgnoreCase(contentEncoding)) {
+            return new InflaterInputStream(request);
+        }
+        return request;
+    }
+
+    /**
+     * Compresses the specified bytes using the specified content encoding. The compressed
+     * bytes are available from {@link #getOutput()} until the thread compresses other bytes.
+     *
+     * @param encoding gzip or deflate.
+     * @param bytes the bytes to compress.
+     * @param offset the offset of the first byte to compress.
+     * @param length the number of bytes to compress.
+     * @return the number of compressed bytes.
+     */
+    int compress(String encoding, byte[] bytes, int offset, int length) {
+        outputLength = 0;
+        if (output.length > MAX_RETAINED_OUTPUT) {
+            output = new byte[4096];
+        }
+        Deflater deflater;
+        if (GZIP.equals(encoding)) {
+            if (gzipDeflater == null) {
+                gzipDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            }
+            deflater = gzipDeflater;
+            write(GZIP_HEADER, 0, GZIP_HEADER.length);
+        }
+        else {
+            if (zlibDeflater == null) {
+                zlibDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            }
+            deflater = zlibDeflater;
+        }
+
+        deflater.reset();
+        deflater.setInput(bytes, offset, length);
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (outputLength == output.length) {
+                grow(output.length * 2);
+            }
+            outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+        }
+
+        if (GZIP.equals(encoding)) {
+            crc.reset();
+            crc.update(bytes, offset, length);
+            writeIntLE((int) crc.getValue());
+            writeIntLE(length);
+        }
+
+        uncompressedBytes.addAndGet(length);
+        compressedBytes.addAndGet(outputLength);
+        compressedResponses.incrementAndGet();
+        return outputLength;
+    }
+
+    /**
+     * Returns the buffer that holds the bytes of the last compression.
+     *
+     * @return the buffer that holds the bytes of the last compression.
+     */
+    byte[] getOutput() {
+        return output;
+    }
+
+    private void write(byte[] bytes, int offset, int length) {
+        if (outputLength + length > output.length) {
+            grow(Math.max(output.length * 2, outputLength + length));
+        }
+        System.arraycopy(bytes, offset, output, outputLength, length);
+        outputLength += length;
+    }
+
+    private void writeIntLE(int value) {
+        if (outputLength + 4 > output.length) {
+            grow(output.length * 2);
+        }
+        for (int i = 0; i < 4; i++) {
+            output[outputLength++] = (byte) (value >> (8 * i));
+        }
+    }
+
+    private void grow(int capacity) {
+        byte[] newOutput = new byte[capacity];
+        System.arraycopy(output, 0, newOutput, 0, outputLength);
+        output = newOutput;
+    }
+
+    /**
+     * Returns the number of responses that were compressed.
+     *
+     * @return the number of responses that were compressed.
+     */
+    static long getCompressedResponses() {
+        return compressedResponses.get();
+    }
+
+    /**
+     * Returns the number of bytes of the compressed responses before they were compressed.
+     *
+     * @return the number of bytes of the compressed responses before compression.
+     */
+    static long getUncompressedBytes() {
+        return uncompressedBytes.get();
+    }
+
+    /**
+     * Returns the number of bytes of the compressed responses after they were compressed.
+     *
+     * @return the number of bytes of the compressed responses after compression.
+     */
+    static long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    /**
+     * Returns the ratio between the size of the compressed responses and their size before
+     * compression. E.g. 0.25 means that responses were compressed to a quarter of their size.
+     *
+     * @return the compression ratio of the compressed responses or 1 if no response was
+     *         compressed.
+     */
+    static double getCompressionRatio() {
+        long uncompressed = uncompressedBytes.get();
+        return uncompressed == 0 ? 1 : (double) compressedBytes.get() / uncompressed;
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.http;
+
+import org.jivesoftware.multiplexer.net.MXParser;
+import org.jivesoftware.multiplexer.net.ParserCache;
+import org.jivesoftware.util.StringUtils;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wrapper element of a request sent by a client of the HTTP binding service. The request is
+ * parsed with the pull parser of the current thread without building a DOM. The attributes of
+ * the wrapper element are kept and the stanzas it contains are kept as they were sent by the
+ * client so that they can be forwarded to the server without being serialized again.<p>
+ *
+ * Attributes that have a namespace prefix are kept by their qualified name. E.g.
+ * <tt>xml:lang</tt> or <tt>xmpp:restart</tt>. Namespaces declared by the wrapper element
+ * are declared again by each stanza that does not declare them itself so that stanzas
+ * keep their meaning once they are taken out of the wrapper element.
+ */
+public class HttpBindBody {
+
+    private final String text;
+    private final String name;
+    private final Map<String, String> attributes;
+    private final List<String> stanzas;
+
+    private HttpBindBody(String text, String name, Map<String, String> attributes,
+            List<String> stanzas) {
+        this.text = text;
+        this.name = name;
+        this.attributes = attributes;
+        this.stanzas = stanzas;
+    }
+
+    /**
+     * Parses the wrapper element of a request.
+     *
+     * @param text the content of the request.
+     * @return the parsed wrapper element.
+     * @throws XmlPullParserException if the request is not well-formed XML.
+     * @throws IOException if the request could not be read.
+     */
+    static HttpBindBody parse(String text) throws XmlPullParserException, IOException {
+        XmlPullParser parser = ParserCache.getParser();
+        parser.setInput(new StringReader(text));
+        int eventType = parser.getEventType();
+        while (eventType != XmlPullParser.START_TAG) {
+            if (eventType == XmlPullParser.END_DOCUMENT) {
+                throw new XmlPullParserException("Request does not contain an element");
+            }
+            eventType = parser.next();
+        }
+
+        String name = parser.getName();
+        Map<String, String> attributes = new HashMap<String, String>();
+        for (int i = 0; i < parser.getAttributeCount(); i++) {
+            String prefix = parser.getAttributePrefix(i);
+            String attributeName = parser.getAttributeName(i);
+            attributes.put(prefix == null ? attributeName : prefix + ":" + attributeName,
+                    parser.getAttributeValue(i));
+        }
+
+        // Namespaces declared by the wrapper element
+        int namespaceStart = parser.getNamespaceCount(0);
+        int namespaceEnd = parser.getNamespaceCount(1);
+
+        // Keep each child element of the wrapper element as it was sent. Parsing stops at the
+        // end of the wrapper element since the parser does not expect the input to end.
+        List<String> stanzas = Collections.emptyList();
+        int stanzaStart = -1;
+        int nameEnd = -1;
+        String declarations = null;
+        while (eventType != XmlPullParser.END_TAG || parser.getDepth() != 1) {
+            eventType = parser.next();
+            if (parser.getDepth() != 2) {
+                continue;
+            }
+            if (eventType == XmlPullParser.START_TAG) {
+                // Less than signs are not allowed in attribute values so the last one before
+                // the end of the tag is the start of the tag
+                stanzaStart = text.lastIndexOf('<', getInputOffset(parser) - 1);
+                if (namespaceStart < namespaceEnd) {
+                    String prefix = parser.getPrefix();
+                    nameEnd = stanzaStart + 1 + parser.getName().length() +
+                            (prefix == null ? 0 : prefix.length() + 1);
+                    declarations = getMissingDeclarations(parser, namespaceStart, namespaceEnd);
+                }
+            }
+            else if (eventType == XmlPullParser.END_TAG) {
+                if (stanzas.isEmpty()) {
+                    stanzas = new ArrayList<String>();
+                }
+                int stanzaEnd = getInputOffset(parser);
+                if (declarations == null || declarations.length() == 0) {
+                    stanzas.add(text.substring(stanzaStart, stanzaEnd));
+                }
+                else {
+                    stanzas.add(new StringBuilder(stanzaEnd - stanzaStart + declarations.length())
+                            .append(text, stanzaStart, nameEnd).append(declarations)
+                            .append(text, nameEnd, stanzaEnd).toString());
+                }
+            }
+        }
+        return new HttpBindBody(text, name, attributes, stanzas);
+    }
+
+    /**
+     * Returns the declarations of the namespaces of the wrapper element that are not
+     * declared by the child element the parser is positioned at.
+     */
+    private static String getMissingDeclarations(XmlPullParser parser, int namespaceStart,
+            int namespaceEnd) throws XmlPullParserException {
+        int childEnd = parser.getNamespaceCount(2);
+        StringBuilder sb = new StringBuilder();
+        for (int i = namespaceStart; i < namespaceEnd; i++) {
+            String prefix = parser.getNamespacePrefix(i);
+            boolean declared = false;
+            for (int j = namespaceEnd; j < childEnd && !declared; j++) {
+                String childPrefix = parser.getNamespacePrefix(j);
+                declared = prefix == null ? childPrefix == null : prefix.equals(childPrefix);
+            }
+            if (!declared) {
+                sb.append(prefix == null ? " xmlns" : " xmlns:" + prefix).append("=\"")
+                        .append(StringUtils.escapeForXML(parser.getNamespaceUri(i))).append('"');
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int getInputOffset(XmlPullParser parser) {
+        return ((MXParser) parser).getInputOffset();
+    }
+
+    /**
+     * Returns the name of the wrapper element. Requests are expected to be wrapped by a
+     * <tt>body</tt> element.
+     *
+     * @return the name of the wrapper element.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the value of an attribute of the wrapper element or <tt>null</tt> if the
+     * attribute is not present.
+     *
+     * @param name the name of the attribute, including its prefix if it has one.
+     * @return the value of the attribute or null if the attribute is not present.
+     */
+    public String attributeValue(String name) {
+        return attributes.get(name);
+    }
+
+    /**
+     * Returns true if the client requested to restart the stream.
+     *
+     * @return true if the client requested to restart the stream.
+     */
+    public boolean isRestart() {
+        String restart = attributes.get("xmpp:restart");
+        if (restart == null) {
+            restart = attributes.get("restart");
+        }
+        return "true".equals(restart);
+    }
+
+    /**
+     * Returns the stanzas contained in the wrapper element as they were sent by the client.
+     *
+     * @return the stanzas contained in the wrapper element.
+     */
+    public List<String> getStanzas() {
+        return stanzas;
+    }
+
+    /**
+     * Returns the content of the request.
+     *
+     * @return the content of the request.
+     */
+    public String asXML() {
+        return text;
+    }
+}
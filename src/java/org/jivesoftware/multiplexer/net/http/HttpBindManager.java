@@ -60,6 +60,18 @@ public final class HttpBindManager {
 
     public static final int HTTP_BIND_SECURE_PORT_DEFAULT = 7443;
 
+    public static final String HTTP_BIND_COMPRESSION_ENABLED = "xmpp.httpbind.client.compression.enabled";
+
+    public static final boolean HTTP_BIND_COMPRESSION_ENABLED_DEFAULT = true;
+
+    public static final String HTTP_BIND_COMPRESSION_THRESHOLD = "xmpp.httpbind.client.compression.threshold";
+
+    public static final int HTTP_BIND_COMPRESSION_THRESHOLD_DEFAULT = 1024;
+
+    public static final String HTTP_BIND_MAX_BODY_SIZE = "xmpp.httpbind.client.body.max";
+
+    public static final int HTTP_BIND_MAX_BODY_SIZE_DEFAULT = 1024 * 1024;
+
     private static HttpBindManager instance = new HttpBindManager();
 
     private Server httpBindServer;
@@ -379,6 +391,48 @@ public final class HttpBindManager {
         return JiveGlobals.getBooleanProperty("xmpp.httpbind.scriptSyntax.enabled", false);
     }
 
+    /**
+     * Returns true if responses are compressed for clients that accept gzip or deflate
+     * encoded content.
+     *
+     * @return true if responses are compressed for clients that accept compressed content.
+     */
+    public boolean isCompressionEnabled() {
+        return JiveGlobals.getBooleanProperty(HTTP_BIND_COMPRESSION_ENABLED,
+                HTTP_BIND_COMPRESSION_ENABLED_DEFAULT);
+    }
+
+    /**
+     * Returns the minimum number of bytes of a response for compressing it. Compressing
+     * small responses, such as empty bodies, costs more than the bytes it saves.
+     *
+     * @return the minimum number of bytes of a response for compressing it.
+     */
+    public int getCompressionThreshold() {
+        return JiveGlobals.getIntProperty(HTTP_BIND_COMPRESSION_THRESHOLD,
+                HTTP_BIND_COMPRESSION_THRESHOLD_DEFAULT);
+    }
+
+    /**
+     * Returns the max number of bytes of the content of a request. The limit applies to
+     * the decompressed content of compressed requests.
+     *
+     * @return the max number of bytes of the content of a request.
+     */
+    public int getMaxBodySize() {
+        return JiveGlobals.getIntProperty(HTTP_BIND_MAX_BODY_SIZE, HTTP_BIND_MAX_BODY_SIZE_DEFAULT);
+    }
+
+    /**
+     * Returns the ratio between the size of the compressed responses and their size before
+     * compression.
+     *
+     * @return the compression ratio of the responses or 1 if no response was compressed.
+     */
+    public double getCompressionRatio() {
+        return ContentCompressor.getCompressionRatio();
+    }
+
     /**
      * Enables or disables script syntax.
      *
@@ -492,6 +546,7 @@ public final class HttpBindManager {
 
         @Override
         protected SSLContext createSSLContext() throws Exception {
+            // Share the TLS session cache with the other client listeners
             return SSLConfig.getSSLContext();
         }
     }
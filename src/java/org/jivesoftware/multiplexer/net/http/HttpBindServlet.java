@@ -19,17 +19,11 @@
 
 package org.jivesoftware.multiplexer.net.http;
 
-import org.xmlpull.v1.XmlPullParserFactory;
-import org.xmlpull.v1.XmlPullParserException;
+import org.apache.mina.common.ByteBuffer;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.Log;
-import org.jivesoftware.multiplexer.net.MXParser;
-import org.dom4j.io.XMPPPacketReader;
-import org.dom4j.Document;
-import org.dom4j.DocumentException;
 import org.dom4j.Element;
 import org.dom4j.DocumentHelper;
-import org.dom4j.QName;
 import org.eclipse.jetty.continuation.ContinuationSupport;
 import org.apache.commons.lang.StringEscapeUtils;
 
@@ -40,10 +34,13 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletConfig;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.net.InetAddress;
 import java.net.URLDecoder;
+import java.nio.charset.Charset;
 import java.util.Date;
+import java.util.zip.ZipException;
 
 /**
  * Servlet which handles requests to the HTTP binding service. It determines if there is currently
@@ -57,19 +54,6 @@ public class HttpBindServlet extends HttpServlet {
     private HttpSessionManager sessionManager;
     private HttpBindManager boshManager;
 
-    private static XmlPullParserFactory factory;
-
-    static {
-        try {
-            factory = XmlPullParserFactory.newInstance(MXParser.class.getName(), null);
-        }
-        catch (XmlPullParserException e) {
-            Log.error("Error creating a parser factory", e);
-        }
-    }
-
-    private ThreadLocal<XMPPPacketReader> localReader = new ThreadLocal<XMPPPacketReader>();
-
     public HttpBindServlet() {
     }
 
@@ -110,7 +94,7 @@ public class HttpBindServlet extends HttpServlet {
         }
         queryString = URLDecoder.decode(queryString, "UTF-8");
 
-        parseDocument(request, response, new ByteArrayInputStream(queryString.getBytes("UTF-8")));
+        parseDocument(request, response, queryString);
     }
 
     private void sendLegacyError(HttpServletResponse response, BoshBindingError error)
@@ -127,16 +111,56 @@ public class HttpBindServlet extends HttpServlet {
             return;
         }
 
-        parseDocument(request, response, request.getInputStream());
+        int maxBodySize = boshManager.getMaxBodySize();
+        if (request.getContentLength() > maxBodySize) {
+            Log.warn("Request exceeds max body size. [" + request.getRemoteAddr() + "]");
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        String content;
+        InputStream input = null;
+        try {
+            input = ContentCompressor.getDecompressedStream(
+                    request.getInputStream(), request.getHeader("Content-Encoding"));
+            content = readContent(input, request.getContentLength(), maxBodySize);
+        }
+        catch (ZipException e) {
+            Log.warn("Error decompressing user request. [" + request.getRemoteAddr() + "]");
+            sendLegacyError(response, BoshBindingError.badRequest);
+            return;
+        }
+        catch (EOFException e) {
+            // Compressed content was truncated
+            Log.warn("Error decompressing user request. [" + request.getRemoteAddr() + "]");
+            sendLegacyError(response, BoshBindingError.badRequest);
+            return;
+        }
+        finally {
+            if (input != null) {
+                try {
+                    // Release the native zlib state of compressed requests
+                    input.close();
+                }
+                catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+        if (content == null) {
+            Log.warn("Decompressed request exceeds max body size. [" + request.getRemoteAddr() + "]");
+            response.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        parseDocument(request, response, content);
     }
 
     private void parseDocument(HttpServletRequest request, HttpServletResponse response,
-                               InputStream documentContent)
+                               String documentContent)
             throws IOException {
 
-        Document document;
+        HttpBindBody node;
         try {
-            document = createDocument(documentContent);
+            node = HttpBindBody.parse(documentContent);
         }
         catch (Exception e) {
             Log.warn("Error parsing user request. [" + request.getRemoteAddr() + "]");
@@ -144,8 +168,7 @@ public class HttpBindServlet extends HttpServlet {
             return;
         }
 
-        Element node = document.getRootElement();
-        if (node == null || !"body".equals(node.getName())) {
+        if (!"body".equals(node.getName())) {
             Log.warn("Body missing from request content. [" + request.getRemoteAddr() + "]");
             sendLegacyError(response, BoshBindingError.badRequest);
             return;
@@ -168,14 +191,12 @@ public class HttpBindServlet extends HttpServlet {
         if (session == null) {
             return false;
         }
-        synchronized (session) {
-            try {
-                respond(response, session.getResponse((Long) request.getAttribute("request")),
-                        request.getMethod());
-            }
-            catch (HttpBindException e) {
-                sendError(request, response, e.getBindingError(), session);
-            }
+        try {
+            respond(response, session.getResponse((Long) request.getAttribute("request")),
+                    request);
+        }
+        catch (HttpBindException e) {
+            sendError(request, response, e.getBindingError(), session);
         }
         return true;
     }
@@ -191,7 +212,7 @@ public class HttpBindServlet extends HttpServlet {
         	if ((session.getMajorVersion() == 1 && session.getMinorVersion() >= 6) || 
         			session.getMajorVersion() > 1) {
                 respond(response, createErrorBody(bindingError.getErrorType().getType(),
-                        bindingError.getCondition()), request.getMethod());
+                        bindingError.getCondition()), request);
             }
             else {
                 sendLegacyError(response, bindingError);
@@ -213,7 +234,7 @@ public class HttpBindServlet extends HttpServlet {
     }
 
     private void handleSessionRequest(String sid, HttpServletRequest request,
-                                      HttpServletResponse response, Element rootNode)
+                                      HttpServletResponse response, HttpBindBody rootNode)
             throws IOException
     {
     	if (JiveGlobals.getBooleanProperty("log.debug.enabled", false)) {
@@ -232,76 +253,78 @@ public class HttpBindServlet extends HttpServlet {
             response.sendError(HttpServletResponse.SC_NOT_FOUND, "Invalid SID.");
             return;
         }
+        HttpConnection connection;
+        BoshBindingError error = null;
+        // Requests of a session are forwarded one at a time so that the server receives the
+        // stanzas in the order they were accepted. Responses are written without the lock
+        // and stanzas sent by the server never wait for it.
         synchronized (session) {
-            HttpConnection connection;
             try {
                 connection = sessionManager.forwardRequest(rid, session,
                         request.isSecure(), rootNode);
             }
             catch (HttpBindException e) {
-                sendError(request, response, e.getBindingError(), session);
-                return;
+                connection = null;
+                error = e.getBindingError();
             }
             catch (HttpConnectionClosedException nc) {
+                connection = null;
                 Log.error("Error sending packet to client.", nc);
-                return;
             }
+        }
+        if (error != null) {
+            sendError(request, response, error, session);
+            return;
+        }
+        if (connection == null) {
+            return;
+        }
 
-            String type = rootNode.attributeValue("type");
-            String restartStream = rootNode.attributeValue(new QName("restart", rootNode.getNamespaceForPrefix("xmpp")));
-            int pauseDuration = getIntAttribue(rootNode.attributeValue("pause"), -1);
-            
-            if ("terminate".equals(type)) {
-                session.close();
-                respond(response, createEmptyBody(), request.getMethod());
-            }
-            else if ("true".equals(restartStream) && rootNode.elements().size() == 0) {
-            	try {
-            		respond(response, createSessionRestartResponse(session), request.getMethod());
-            	}
-            	catch (DocumentException e) {
-            		Log.error("Error sending session restart response to client.", e);
-            	}
-            }
-            else if (pauseDuration > 0 && pauseDuration <= session.getMaxPause()) {
-            	session.pause(pauseDuration);
-            	respond(response, createEmptyBody(), request.getMethod());
-            	session.setLastResponseEmpty(true);
+        String type = rootNode.attributeValue("type");
+        int pauseDuration = getIntAttribue(rootNode.attributeValue("pause"), -1);
+        
+        if ("terminate".equals(type)) {
+            session.close();
+            respond(response, createEmptyBody(), request);
+        }
+        else if (rootNode.isRestart() && rootNode.getStanzas().isEmpty()) {
+        	respond(response, createSessionRestartResponse(session), request);
+        }
+        else if (pauseDuration > 0 && pauseDuration <= session.getMaxPause()) {
+        	session.pause(pauseDuration);
+        	respond(response, createEmptyBody(), request);
+        	session.setLastResponseEmpty(true);
+        }
+        else {
+        	session.resetInactivityTimeout();
+            connection.setContinuation(ContinuationSupport.getContinuation(request));
+            request.setAttribute("request-session", connection.getSession());
+            request.setAttribute("request", connection.getRequestId());
+            try {
+                respond(response, session.getResponse(connection.getRequestId()),
+                        request);
             }
-            else {
-            	session.resetInactivityTimeout();
-                connection.setContinuation(ContinuationSupport.getContinuation(request));
-                request.setAttribute("request-session", connection.getSession());
-                request.setAttribute("request", connection.getRequestId());
-                try {
-                    respond(response, session.getResponse(connection.getRequestId()),
-                            request.getMethod());
-                }
-                catch (HttpBindException e) {
-                    sendError(request, response, e.getBindingError(), session);
-                }
+            catch (HttpBindException e) {
+                sendError(request, response, e.getBindingError(), session);
             }
         }
     }
 
-	private String createSessionRestartResponse(HttpSession session) throws DocumentException {
-        Element response = DocumentHelper.createElement("body");
-        response.addNamespace("", "http://jabber.org/protocol/httpbind");
-        response.addNamespace("stream", "http://etherx.jabber.org/streams");
-
-        Element features = response.addElement("stream:features");
-        for (Element feature : session.getAvailableStreamFeaturesElements()) {
-        	if (JiveGlobals.getBooleanProperty("log.debug.enabled", false)) {
-                System.out.println(new Date()+": Adding stream feature " + feature.asXML());
-            }
-            features.add(feature);
-        }
-
-        return response.asXML();
+	private String createSessionRestartResponse(HttpSession session) {
+        String features = session.getAvailableStreamFeatures();
+        if (JiveGlobals.getBooleanProperty("log.debug.enabled", false)) {
+            System.out.println(new Date()+": Adding stream features " + features);
+        }
+        StringBuilder sb = new StringBuilder(150 + features.length());
+        sb.append("<body xmlns=\"http://jabber.org/protocol/httpbind\"");
+        sb.append(" xmlns:stream=\"http://etherx.jabber.org/streams\">");
+        sb.append("<stream:features>").append(features).append("</stream:features>");
+        sb.append("</body>");
+        return sb.toString();
     }
     
     private void createNewSession(HttpServletRequest request, HttpServletResponse response,
-                                  Element rootNode)
+                                  HttpBindBody rootNode)
             throws IOException
     {
         long rid = getLongAttribue(rootNode.attributeValue("rid"), -1);
@@ -317,7 +340,7 @@ public class HttpBindServlet extends HttpServlet {
             if (JiveGlobals.getBooleanProperty("log.debug.enabled", false)) {
                 System.out.println(new Date()+": HTTP RECV(" + connection.getSession().getStreamID() + "): " + rootNode.asXML());
             }
-            respond(response, connection, request.getMethod());
+            respond(response, connection, request);
         }
         catch (HttpBindException e) {
             response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
@@ -325,23 +348,67 @@ public class HttpBindServlet extends HttpServlet {
 
     }
 
-    private void respond(HttpServletResponse response, HttpConnection connection, String method)
+    private void respond(HttpServletResponse response, HttpConnection connection,
+                         HttpServletRequest request)
             throws IOException
     {
-        String content;
+        ByteBuffer content = null;
         try {
             content = connection.getResponse();
         }
         catch (HttpBindTimeoutException e) {
-            content = createEmptyBody();
             connection.getSession().setLastResponseEmpty(true);
         }
 
-        respond(response, content, method);
+        if (content == null) {
+            respond(response, createEmptyBody(), request);
+        }
+        else {
+            respond(response, content, request);
+        }
+    }
+
+    /**
+     * Writes an encoded response to the client and releases its buffer. The bytes of
+     * responses to POST requests are written as they are.
+     *
+     * @param response the HTTP response.
+     * @param content the response encoded in UTF-8.
+     * @param request the HTTP request.
+     * @throws IOException if an error occured while writing the response.
+     */
+    private void respond(HttpServletResponse response, ByteBuffer content,
+                         HttpServletRequest request)
+            throws IOException {
+        try {
+            if ("GET".equals(request.getMethod()) ||
+                    JiveGlobals.getBooleanProperty("log.debug.enabled", false)) {
+                // Script syntax requires escaping the response as text
+                respond(response, content.getString(Charset.forName("UTF-8").newDecoder()),
+                        request);
+                return;
+            }
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("text/xml");
+            response.setCharacterEncoding("utf-8");
+            if (!content.isDirect()) {
+                write(request, response, content.array(),
+                        content.arrayOffset() + content.position(), content.remaining());
+            }
+            else {
+                byte[] bytes = new byte[content.remaining()];
+                content.get(bytes);
+                write(request, response, bytes, 0, bytes.length);
+            }
+        }
+        finally {
+            content.release();
+        }
     }
 
-    private void respond(HttpServletResponse response, String content, String method)
+    private void respond(HttpServletResponse response, String content, HttpServletRequest request)
             throws IOException {
+        String method = request.getMethod();
         response.setStatus(HttpServletResponse.SC_OK);
         response.setContentType("GET".equals(method) ? "text/javascript" : "text/xml");
         response.setCharacterEncoding("utf-8");
@@ -360,8 +427,38 @@ public class HttpBindServlet extends HttpServlet {
             System.out.println(new Date()+": HTTP SENT: " + content);
         }
         byte[] byteContent = content.getBytes("utf-8");
-        response.setContentLength(byteContent.length);
-        response.getOutputStream().write(byteContent);
+        write(request, response, byteContent, 0, byteContent.length);
+    }
+
+    /**
+     * Writes the content of a response. The content is compressed when compression is enabled,
+     * the content is not smaller than the compression threshold and the client accepts gzip
+     * or deflate encoded content.
+     *
+     * @param request the HTTP request.
+     * @param response the HTTP response.
+     * @param bytes the content of the response.
+     * @param offset the offset of the content.
+     * @param length the length of the content.
+     * @throws IOException if an error occured while writing the response.
+     */
+    private void write(HttpServletRequest request, HttpServletResponse response, byte[] bytes,
+                       int offset, int length)
+            throws IOException {
+        if (boshManager.isCompressionEnabled()) {
+            response.addHeader("Vary", "Accept-Encoding");
+            String encoding = length < boshManager.getCompressionThreshold() ? null :
+                    ContentCompressor.getAcceptedEncoding(request.getHeader("Accept-Encoding"));
+            if (encoding != null) {
+                ContentCompressor compressor = ContentCompressor.getInstance();
+                length = compressor.compress(encoding, bytes, offset, length);
+                bytes = compressor.getOutput();
+                offset = 0;
+                response.setHeader("Content-Encoding", encoding);
+            }
+        }
+        response.setContentLength(length);
+        response.getOutputStream().write(bytes, offset, length);
         response.getOutputStream().close();
     }
 
@@ -395,20 +492,30 @@ public class HttpBindServlet extends HttpServlet {
         }
     }
     
-    private XMPPPacketReader getPacketReader() {
-        // Reader is associated with a new XMPPPacketReader
-        XMPPPacketReader reader = localReader.get();
-        if (reader == null) {
-            reader = new XMPPPacketReader();
-            reader.setXPPFactory(factory);
-            localReader.set(reader);
-        }
-        return reader;
-    }
-
-    private Document createDocument(InputStream request) throws
-            DocumentException, IOException, XmlPullParserException
-    {
-        return getPacketReader().read("utf-8", request);
+    /**
+     * Reads the content of a request, which is expected to be encoded in UTF-8.
+     *
+     * @param request the stream of the request.
+     * @param contentLength the length of the content or -1 if not known.
+     * @return the content of the request.
+     * @throws IOException if an error occured while reading the request.
+     */
+    /**
+     * Reads the content of a request or returns <tt>null</tt> if the content is longer than
+     * the specified number of bytes.
+     */
+    private String readContent(InputStream request, int contentLength, int maxLength)
+            throws IOException {
+        ByteArrayOutputStream content =
+                new ByteArrayOutputStream(contentLength > 0 ? contentLength : 1024);
+        byte[] buffer = new byte[contentLength > 0 ? Math.min(contentLength, 8192) : 1024];
+        int read;
+        while ((read = request.read(buffer)) != -1) {
+            if (content.size() + read > maxLength) {
+                return null;
+            }
+            content.write(buffer, 0, read);
+        }
+        return content.toString("UTF-8");
     }
 }
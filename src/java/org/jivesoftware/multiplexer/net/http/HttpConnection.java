@@ -20,27 +20,37 @@
 
 package org.jivesoftware.multiplexer.net.http;
 
+import org.apache.mina.common.ByteBuffer;
 import org.eclipse.jetty.continuation.Continuation;
 import org.jivesoftware.util.JiveConstants;
 
+import java.io.UnsupportedEncodingException;
+
 /**
  * Represents one HTTP connection with a client using the HTTP Binding service. The client will wait
  * on {@link #getResponse()} until the server forwards a message to it or the wait time on the
- * session timesout.
+ * session timesout.<p>
+ *
+ * The request thread and the thread delivering the response synchronize on the connection
+ * itself so that the session does not need to be locked while the request is processed.
+ * A response that is delivered before the request was suspended is kept by the connection
+ * and returned without suspending the request.
  *
  * @author Alexander Wenckus
  */
 public class HttpConnection {
     private long requestId;
-    private String body;
+    private ByteBuffer body;
     private HttpSession session;
     private Continuation continuation;
     private boolean isClosed;
     private boolean isSecure = false;
     private boolean isDelivered;
+    private final long creationTime;
 
     private static final String CONNECTION_CLOSED = "connection closed";
     private static final String SUSPENDED = "org.eclipse.jetty.continuation.Suspended";
+    private static final String RESPONSE_BODY = "response-body";
 
     /**
      * Constructs an HTTP Connection.
@@ -52,21 +62,21 @@ public class HttpConnection {
         this.requestId = requestId;
         this.isSecure = isSecure;
         this.isDelivered = false;
+        this.creationTime = System.currentTimeMillis();
     }
 
     /**
      * The connection should be closed without delivering a stanza to the requestor.
      */
-    public void close() {
+    public synchronized void close() {
         if (isClosed) {
             return;
         }
+        isClosed = true;
 
-        try {
-            deliverBody(CONNECTION_CLOSED);
-        }
-        catch (HttpConnectionClosedException e) {
-            /* Shouldn't happen */
+        if (isSuspended()) {
+            continuation.setAttribute(RESPONSE_BODY, CONNECTION_CLOSED);
+            continuation.resume();
         }
     }
 
@@ -76,7 +86,7 @@ public class HttpConnection {
      *
      * @return true if this connection has been closed.
      */
-    public boolean isClosed() {
+    public synchronized boolean isClosed() {
         return isClosed;
     }
 
@@ -89,7 +99,7 @@ public class HttpConnection {
         return isSecure;
     }
 
-    public boolean isDelivered() {
+    public synchronized boolean isDelivered() {
         return isDelivered;
     }
 
@@ -104,6 +114,28 @@ public class HttpConnection {
      * a deliverable to forward to the client
      */
     public void deliverBody(String body) throws HttpConnectionClosedException {
+        if(body == null) {
+            throw new IllegalArgumentException("Body cannot be null!");
+        }
+        try {
+            deliverBody(ByteBuffer.wrap(body.getBytes("UTF-8")));
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Delivers already encoded content to the client. The content should be valid XMPP
+     * wrapped inside of a body encoded in UTF-8. The buffer is released once it was written
+     * to the client.
+     *
+     * @param body the encoded content to be forwarded to the client.
+     *
+     * @throws HttpConnectionClosedException when this connection to the client has already recieved
+     * a deliverable to forward to the client
+     */
+    public synchronized void deliverBody(ByteBuffer body) throws HttpConnectionClosedException {
         if(body == null) {
             throw new IllegalArgumentException("Body cannot be null!");
         }
@@ -116,8 +148,8 @@ public class HttpConnection {
             isClosed = true;
         }
 
-        if (continuation != null) {
-            continuation.setAttribute("response-body", body);
+        if (isSuspended()) {
+            continuation.setAttribute(RESPONSE_BODY, body);
             continuation.resume();
         }
         else {
@@ -129,12 +161,17 @@ public class HttpConnection {
      * A call that will suspend the request if there is no deliverable currently available.
      * Once the response becomes available, it is returned.
      *
-     * @return the deliverable to send to the client
+     * @return the encoded deliverable to send to the client or null if the connection was
+     * closed without a deliverable.
      * @throws HttpBindTimeoutException to indicate that the maximum wait time requested by the
      * client has been surpassed and an empty response should be returned.
      */
-    public String getResponse() throws HttpBindTimeoutException {
-        if (body == null && continuation != null) {
+    public synchronized ByteBuffer getResponse() throws HttpBindTimeoutException {
+        if (body == null && continuation != null && isClosed && !isSuspended()) {
+            // The connection was closed before the request was suspended
+            return null;
+        }
+        else if (body == null && continuation != null) {
             try {
                 body = waitForResponse();
             }
@@ -143,12 +180,22 @@ public class HttpConnection {
                 throw e;
             }
         }
-        else if (body == null) {
+        else if (body == null && !isClosed) {
             throw new IllegalStateException("Continuation not set, cannot wait for deliverable.");
         }
         return body;
     }
 
+    /**
+     * Returns the time in milliseconds since the epoch when the request of this connection
+     * was received.
+     *
+     * @return the time when the request of this connection was received.
+     */
+    public long getCreationTime() {
+        return creationTime;
+    }
+
     /**
      * Returns the ID which uniquely identifies this connection.
      *
@@ -176,11 +223,15 @@ public class HttpConnection {
         return session;
     }
 
-    void setContinuation(Continuation continuation) {
+    synchronized void setContinuation(Continuation continuation) {
         this.continuation = continuation;
     }
 
-    private String waitForResponse() throws HttpBindTimeoutException {
+    private boolean isSuspended() {
+        return continuation != null && Boolean.TRUE.equals(continuation.getAttribute(SUSPENDED));
+    }
+
+    private ByteBuffer waitForResponse() throws HttpBindTimeoutException {
         // we enter this method when we have no messages pending delivery
         // when we resume a suspended continuation, or when we time out
         if (!Boolean.TRUE.equals(continuation.getAttribute(SUSPENDED))) {
@@ -191,7 +242,7 @@ public class HttpConnection {
         }
 
         if (continuation.isResumed()) {
-            String deliverable = (String) continuation.getAttribute("response-body");
+            Object deliverable = continuation.getAttribute(RESPONSE_BODY);
             // This will occur when the hold attribute of a session has been exceded.
             this.isDelivered = true;
             if (deliverable == null) {
@@ -200,7 +251,7 @@ public class HttpConnection {
             else if(CONNECTION_CLOSED.equals(deliverable)) {
                 return null;
             }
-            return deliverable;
+            return (ByteBuffer) deliverable;
         }
 
         this.isDelivered = true;
@@ -19,62 +19,60 @@
 
 package org.jivesoftware.multiplexer.net.http;
 
-import org.dom4j.DocumentHelper;
+import org.apache.mina.common.ByteBuffer;
 import org.dom4j.Element;
-import org.dom4j.Namespace;
-import org.dom4j.QName;
-import org.dom4j.io.XMPPPacketReader;
 import org.jivesoftware.multiplexer.ClientSession;
 import org.jivesoftware.multiplexer.ConnectionManager;
+import org.jivesoftware.multiplexer.ServerSurrogate;
 import org.jivesoftware.multiplexer.Session;
-import org.jivesoftware.multiplexer.net.MXParser;
 import org.jivesoftware.util.JiveConstants;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.Log;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
+import org.jivesoftware.util.TaskEngine;
 
-import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A session represents a serious of interactions with an XMPP client sending packets using the HTTP
  * Binding protocol specified in <a href="http://www.xmpp.org/extensions/xep-0124.html">XEP-0124</a>.
  * A session can have several client connections open simultaneously while awaiting packets bound
- * for the client from the server.
+ * for the client from the server.<p>
+ *
+ * The state of the session is guarded by a lock that is never held while writing to the
+ * client. Stanzas sent by the server never wait for that lock: they are added to a queue and
+ * the thread that holds the lock, or the delivering thread if the lock is free, moves them
+ * to the connections of the session. A packet reader of the server is then never blocked by
+ * the processing of a request of the client.
  *
  * @author Alexander Wenckus
  */
 public class HttpSession extends ClientSession {
-    private static XmlPullParserFactory factory = null;
-    private static ThreadLocal<XMPPPacketReader> localParser = null;
-    static {
-        try {
-            factory = XmlPullParserFactory.newInstance(MXParser.class.getName(), null);
-            factory.setNamespaceAware(true);
-        }
-        catch (XmlPullParserException e) {
-            Log.error("Error creating a parser factory", e);
-        }
-        // Create xmpp parser to keep in each thread
-        localParser = new ThreadLocal<XMPPPacketReader>() {
-            @Override
-			protected XMPPPacketReader initialValue() {
-                XMPPPacketReader parser = new XMPPPacketReader();
-                factory.setNamespaceAware(true);
-                parser.setXPPFactory(factory);
-                return parser;
-            }
-        };
-    }
-
     private int wait;
     private int hold = 0;
     private String language;
-    private final List<HttpConnection> connectionQueue = new LinkedList<HttpConnection>();
+    /**
+     * Connections awaiting a response or whose response was not yet returned to the client,
+     * indexed by their request ID.
+     */
+    private final RequestRing<HttpConnection> connectionQueue = new RequestRing<HttpConnection>(2);
     private final List<Deliverable> pendingElements = new ArrayList<Deliverable>();
-    private final List<Delivered> sentElements = new ArrayList<Delivered>();
+    /**
+     * Stanzas sent by the server that were not yet moved to a connection or to the pending
+     * elements by a holder of the lock of the session.
+     */
+    private final Queue<Deliverable> outboundElements = new ConcurrentLinkedQueue<Deliverable>();
+    /**
+     * Guards the connections, the pending and sent elements and the request IDs of the session.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * Responses of the latest requests kept for retransmission, indexed by their request ID.
+     */
+    private final RequestRing<Delivered> sentElements = new RequestRing<Delivered>(1);
     private boolean isSecure;
     private int maxPollingInterval;
     private long lastPoll = -1;
@@ -82,22 +80,37 @@ public class HttpSession extends ClientSession {
     private volatile boolean isClosed;
     private int inactivityTimeout;
     private int defaultInactivityTimeout;
-    private long lastActivity;
+    private volatile long lastActivity;
     private long lastRequestID;
     private boolean lastResponseEmpty;
     private int maxRequests;
     private int maxPause;
     private int majorVersion = -1;
     private int minorVersion = -1;
+    private int aggregationWindow;
+    private int maxAggregatedStanzas = Integer.MAX_VALUE;
+    private int maxAggregatedBytes = Integer.MAX_VALUE;
+    /**
+     * Task that responds to the waiting connection once the aggregation window elapsed.
+     */
+    private TimerTask aggregationTask;
+    /**
+     * Bytes of the pending elements when they were last measured.
+     */
+    private volatile long pendingBytes;
 
-    // Semaphore which protects the packets to send, so, there can only be one consumer at a time.
+    // Statistics of the responses returned to the client, updated while holding the lock
+    private volatile long bytesSent;
+    private volatile long responseCount;
+    private volatile long totalResponseTime;
+    private volatile long maxResponseTime;
+    private volatile long stanzasSent;
+    private volatile long stanzaResponseCount;
+
+    private static final byte[] BODY_START = getBytes("<body xmlns='http://jabber.org/protocol/httpbind'");
+    private static final byte[] BODY_END = getBytes("</body>");
+    private static final byte[] EMPTY_BODY = getBytes("<body xmlns=\"http://jabber.org/protocol/httpbind\"/>");
 
-    private static final Comparator<HttpConnection> connectionComparator
-            = new Comparator<HttpConnection>() {
-        public int compare(HttpConnection o1, HttpConnection o2) {
-            return (int) (o1.getRequestId() - o2.getRequestId());
-        }
-    };
     private ConnectionManager connectionManager;
 
     public HttpSession(String serverName, String streamID, long rid) {
@@ -112,33 +125,32 @@ public class HttpSession extends ClientSession {
      *
      * @return the stream features which are available for this session.
      */
-    public Collection<Element> getAvailableStreamFeaturesElements() {
-        List<Element> elements = new ArrayList<Element>();
-
-        if (getStatus() != Session.STATUS_AUTHENTICATED) {
-            Element sasl = connectionManager.getServerSurrogate().getSASLMechanismsElement(this);
-        	if (true || sasl != null) {
-        		elements.add(sasl);
-        	}
-        }
-
-        Element bind = DocumentHelper.createElement(new QName("bind",
-                new Namespace("", "urn:ietf:params:xml:ns:xmpp-bind")));
-        elements.add(bind);
-
-        Element session = DocumentHelper.createElement(new QName("session",
-                new Namespace("", "urn:ietf:params:xml:ns:xmpp-session")));
-        elements.add(session);
-        return elements;
-    }
-
+    /**
+     * Returns the stream features offered to the client, which are the SASL mechanisms of the
+     * server if the client was not authenticated followed by resource binding and session
+     * establishment. Features only depend on whether the client was authenticated so they are
+     * taken from the cache of the {@link ServerSurrogate}.
+     *
+     * @return the stream features offered to the client.
+     */
     @Override
 	public String getAvailableStreamFeatures() {
-        StringBuilder sb = new StringBuilder(200);
-        for (Element element : getAvailableStreamFeaturesElements()) {
-            sb.append(element.asXML());
+        ServerSurrogate serverSurrogate = connectionManager.getServerSurrogate();
+        boolean authenticated = getStatus() == Session.STATUS_AUTHENTICATED;
+        String key = "bosh:" + authenticated;
+        String features = serverSurrogate.getStreamFeatures(key);
+        if (features == null) {
+            int generation = serverSurrogate.getStreamFeaturesGeneration();
+            StringBuilder sb = new StringBuilder(200);
+            if (!authenticated) {
+                sb.append(serverSurrogate.getSASLMechanisms(this));
+            }
+            sb.append("<bind xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\"/>");
+            sb.append("<session xmlns=\"urn:ietf:params:xml:ns:xmpp-session\"/>");
+            features = sb.toString();
+            serverSurrogate.cacheStreamFeatures(key, features, generation);
         }
-        return sb.toString();
+        return features;
     }
 
     @Override
@@ -157,7 +169,7 @@ public class HttpSession extends ClientSession {
      * @return true if this session has been closed and no longer activley accepting connections.
      */
     @Override
-	public synchronized boolean isClosed() {
+	public boolean isClosed() {
         return isClosed;
     }
 
@@ -194,7 +206,14 @@ public class HttpSession extends ClientSession {
      * @param hold the maximum number of simultaneous waiting requests.
      */
     public void setHold(int hold) {
-        this.hold = hold;
+        lock.lock();
+        try {
+            this.hold = hold;
+            sentElements.ensureCapacity(hold + 1);
+        }
+        finally {
+            releaseLock();
+        }
     }
 
     /**
@@ -256,7 +275,14 @@ public class HttpSession extends ClientSession {
      * at any one time.
      */
     public void setMaxRequests(int maxRequests) {
-        this.maxRequests = maxRequests;
+        lock.lock();
+        try {
+            this.maxRequests = maxRequests;
+            connectionQueue.ensureCapacity(maxRequests + 1);
+        }
+        finally {
+            releaseLock();
+        }
     }
 
     /**
@@ -292,6 +318,57 @@ public class HttpSession extends ClientSession {
         return this.maxPause;
     }
 
+    /**
+     * Sets the time (in milliseconds) that the response to a waiting request is held after
+     * the server sent a stanza, so that the stanzas that follow it are delivered in the same
+     * response. Bursts of stanzas, such as the presences of a roster, are then delivered with a
+     * few responses instead of one request of the client per stanza. A value of 0 delivers each
+     * stanza as soon as it is sent by the server.
+     *
+     * @param aggregationWindow the milliseconds to hold a response to aggregate stanzas.
+     */
+    public void setAggregationWindow(int aggregationWindow) {
+        this.aggregationWindow = aggregationWindow;
+    }
+
+    /**
+     * Returns the time (in milliseconds) that the response to a waiting request is held to
+     * aggregate the stanzas sent by the server.
+     *
+     * @return the milliseconds to hold a response to aggregate stanzas.
+     */
+    public int getAggregationWindow() {
+        return aggregationWindow;
+    }
+
+    /**
+     * Sets the number of stanzas that makes a response be returned before its aggregation
+     * window elapsed.
+     *
+     * @param maxAggregatedStanzas the number of stanzas that are aggregated at most.
+     */
+    public void setMaxAggregatedStanzas(int maxAggregatedStanzas) {
+        this.maxAggregatedStanzas = maxAggregatedStanzas;
+    }
+
+    public int getMaxAggregatedStanzas() {
+        return maxAggregatedStanzas;
+    }
+
+    /**
+     * Sets the number of bytes of stanzas that makes a response be returned before its
+     * aggregation window elapsed.
+     *
+     * @param maxAggregatedBytes the number of bytes of stanzas that are aggregated at most.
+     */
+    public void setMaxAggregatedBytes(int maxAggregatedBytes) {
+        this.maxAggregatedBytes = maxAggregatedBytes;
+    }
+
+    public int getMaxAggregatedBytes() {
+        return maxAggregatedBytes;
+    }
+
     /**
      * Returns true if all connections on this session should be secured, and false if they should
      * not.
@@ -356,7 +433,13 @@ public class HttpSession extends ClientSession {
      * inactive and be terminated.
      */
     public void setInactivityTimeout(int inactivityTimeout) {
+        if (this.inactivityTimeout == inactivityTimeout) {
+            return;
+        }
         this.inactivityTimeout = inactivityTimeout;
+        for (SessionListener listener : listeners) {
+            listener.inactivityTimeoutChanged(this);
+        }
     }
 
     /**
@@ -366,7 +449,7 @@ public class HttpSession extends ClientSession {
      * @see #pause(int)
      */
     public void resetInactivityTimeout() {
-        this.inactivityTimeout = this.defaultInactivityTimeout;
+        setInactivityTimeout(this.defaultInactivityTimeout);
     }
 
     /**
@@ -391,12 +474,22 @@ public class HttpSession extends ClientSession {
      *        and terminated.
      */
     public void pause(int duration) {
-    	// Respond immediately to all pending requests
-        for (HttpConnection toClose : connectionQueue) {
-            if (!toClose.isClosed()) {
-                toClose.close();
-                lastRequestID = toClose.getRequestId();
+        lock.lock();
+        try {
+            // Respond immediately to all pending requests
+            long lastClosed = -1;
+            for (HttpConnection toClose : connectionQueue) {
+                if (!toClose.isClosed()) {
+                    toClose.close();
+                    lastClosed = Math.max(lastClosed, toClose.getRequestId());
+                }
             }
+            if (lastClosed != -1) {
+                lastRequestID = lastClosed;
+            }
+        }
+        finally {
+            releaseLock();
         }
     	setInactivityTimeout(duration);
     }
@@ -408,11 +501,9 @@ public class HttpSession extends ClientSession {
      *
      * @return the time in milliseconds since the epoch that this session was last active.
      */
-    public synchronized long getLastActivity() {
-        if (connectionQueue.isEmpty()) {
-            return lastActivity;
-        }
-        else {
+    public long getLastActivity() {
+        lock.lock();
+        try {
             for (HttpConnection connection : connectionQueue) {
                 // The session is currently active, return the current time.
                 if (!connection.isClosed()) {
@@ -423,6 +514,9 @@ public class HttpSession extends ClientSession {
             // the last time the client did anything.
             return lastActivity;
         }
+        finally {
+            releaseLock();
+        }
     }
 
     /**
@@ -436,12 +530,25 @@ public class HttpSession extends ClientSession {
      * all requests with lower 'rid' values.
      */
     public long getLastAcknowledged() {
-    	long ack = lastRequestID;
-    	Collections.sort(connectionQueue, connectionComparator);
-        for (HttpConnection connection : connectionQueue) {
-            if (connection.getRequestId() == ack + 1) {
-            	ack++;
-            }
+        lock.lock();
+        try {
+            return findLastAcknowledged();
+        }
+        finally {
+            releaseLock();
+        }
+    }
+
+    /**
+     * Returns the highest request ID received after all requests with lower IDs. The lock
+     * of the session must be held by the current thread.
+     *
+     * @return the highest request ID received after all requests with lower IDs.
+     */
+    private long findLastAcknowledged() {
+        long ack = lastRequestID;
+        while (connectionQueue.get(ack + 1) != null) {
+            ack++;
         }
         return ack;
     }
@@ -521,37 +628,73 @@ public class HttpSession extends ClientSession {
 		this.lastResponseEmpty = lastResponseEmpty;
 	}
 
-    public String getResponse(long requestID) throws HttpBindException {
-        for (HttpConnection connection : connectionQueue) {
-            if (connection.getRequestId() == requestID) {
-                String response = getResponse(connection);
-
-                // connection needs to be removed after response is returned to maintain idempotence
-                // otherwise if this method is called again, after 'waiting', the InternalError
-                // will be thrown because the connection is no longer in the queue.
-                connectionQueue.remove(connection);
-                fireConnectionClosed(connection);
-                return response;
-            }
+    /**
+     * Returns the encoded response to the specified request. The returned buffer has to be
+     * released once it was written to the client.
+     *
+     * @param requestID the ID of the request.
+     * @return the encoded response to the request.
+     * @throws HttpBindException if the request timed out and it was not the next expected request.
+     */
+    public ByteBuffer getResponse(long requestID) throws HttpBindException {
+        HttpConnection connection;
+        lock.lock();
+        try {
+            connection = connectionQueue.get(requestID);
+        }
+        finally {
+            releaseLock();
+        }
+        if (connection == null) {
+            throw new InternalError("Could not locate connection: " + requestID);
+        }
+        // The response is obtained without holding the lock of the session since waiting for
+        // it may suspend the request
+        ByteBuffer response = getResponse(connection);
+
+        // connection needs to be removed after response is returned to maintain idempotence
+        // otherwise if this method is called again, after 'waiting', the InternalError
+        // will be thrown because the connection is no longer in the queue.
+        lock.lock();
+        try {
+            connectionQueue.remove(requestID);
+            recordResponse(response.remaining(),
+                    System.currentTimeMillis() - connection.getCreationTime());
         }
-        throw new InternalError("Could not locate connection: " + requestID);
+        finally {
+            releaseLock();
+        }
+        fireConnectionClosed(connection);
+        return response;
     }
 
-    private String getResponse(HttpConnection connection) throws HttpBindException {
-        String response = null;
+    private ByteBuffer getResponse(HttpConnection connection) throws HttpBindException {
+        ByteBuffer response = null;
         try {
             response = connection.getResponse();
         }
         catch (HttpBindTimeoutException e) {
             // This connection timed out we need to increment the request count
-            if (connection.getRequestId() != lastRequestID + 1) {
-                throw new HttpBindException("Unexpected RID error.",
-                        BoshBindingError.itemNotFound);
+            lock.lock();
+            try {
+                if (connection.getRequestId() != lastRequestID + 1) {
+                    throw new HttpBindException("Unexpected RID error.",
+                            BoshBindingError.itemNotFound);
+                }
+                lastRequestID = connection.getRequestId();
+            }
+            finally {
+                releaseLock();
             }
-            lastRequestID = connection.getRequestId();
         }
         if (response == null) {
-            response = createEmptyBody();
+            lock.lock();
+            try {
+                response = createEmptyBody();
+            }
+            finally {
+                releaseLock();
+            }
             setLastResponseEmpty(true);
         }
         return response;
@@ -582,11 +725,25 @@ public class HttpSession extends ClientSession {
      * @throws HttpBindException if the connection has violated a facet of the HTTP binding
      * protocol.
      */
-    synchronized HttpConnection createConnection(long rid, Collection<Element> packetsToBeSent,
-                                                 boolean isSecure, boolean isPoll)
+    HttpConnection createConnection(long rid, Collection<String> packetsToBeSent,
+                                    boolean isSecure, boolean isPoll)
+            throws HttpConnectionClosedException, HttpBindException
+    {
+        lock.lock();
+        try {
+            // Stanzas queued by the server are pending for the new connection
+            deliverOutbound();
+            return createConnection(new HttpConnection(rid, isSecure), isPoll);
+        }
+        finally {
+            releaseLock();
+        }
+    }
+
+    private HttpConnection createConnection(HttpConnection connection, boolean isPoll)
             throws HttpConnectionClosedException, HttpBindException
     {
-        HttpConnection connection = new HttpConnection(rid, isSecure);
+        long rid = connection.getRequestId();
         if (rid <= lastRequestID) {
             Delivered deliverable = retrieveDeliverable(rid);
             if (deliverable == null) {
@@ -608,12 +765,7 @@ public class HttpSession extends ClientSession {
     }
 
     private Delivered retrieveDeliverable(long rid) {
-        for (Delivered delivered : sentElements) {
-            if (delivered.getRequestID() == rid) {
-                return delivered;
-            }
-        }
-        return null;
+        return sentElements.get(rid);
     }
 
     private void addConnection(HttpConnection connection, boolean isPoll) throws HttpBindException,
@@ -636,18 +788,16 @@ public class HttpSession extends ClientSession {
             deliver(connection, pendingElements);
             lastRequestID = connection.getRequestId();
             pendingElements.clear();
-            connectionQueue.add(connection);
-            Collections.sort(connectionQueue, connectionComparator);
+            connectionQueue.put(connection.getRequestId(), connection);
         }
         else {
             // With this connection we need to check if we will have too many connections open,
             // closing any extras.
 
-            connectionQueue.add(connection);
-            Collections.sort(connectionQueue, connectionComparator);
+            connectionQueue.put(connection.getRequestId(), connection);
 
             int connectionsToClose;
-            if(connectionQueue.get(connectionQueue.size() - 1) != connection) {
+            if(hasLaterConnection(connection.getRequestId())) {
             	// Current connection does not have the greatest rid. That means
             	// requests were received out of order, respond to all.
             	connectionsToClose = connectionQueue.size();
@@ -657,25 +807,45 @@ public class HttpSession extends ClientSession {
             	// how many that we need to close.
             	connectionsToClose = getOpenConnectionCount() - hold;
             }
+            // Respond to the connections that are next in sequence
             int closed = 0;
-            for (int i = 0; i < connectionQueue.size() && closed < connectionsToClose; i++) {
-                HttpConnection toClose = connectionQueue.get(i);
-                if (!toClose.isClosed() && toClose.getRequestId() == lastRequestID + 1) {
-                    if(toClose == connection) {
-                    	// Current connection has no continuation yet, just deliver.
-                    	deliver(new Deliverable(""));
-                    }
-                    else {
-                        toClose.close();
-                    }
-                    lastRequestID = toClose.getRequestId();
-                    closed++;
+            while (closed < connectionsToClose) {
+                HttpConnection toClose = connectionQueue.get(lastRequestID + 1);
+                if (toClose == null || toClose.isClosed()) {
+                    break;
+                }
+                if(toClose == connection) {
+                	// Current connection has no continuation yet, just deliver.
+                	deliverNow(new Deliverable(""));
+                }
+                else if (pendingElements.isEmpty() || !deliverPendingElements()) {
+                    // Stanzas held by the aggregation window are returned by the released
+                    // connection instead of an empty body
+                    toClose.close();
                 }
+                lastRequestID = toClose.getRequestId();
+                closed++;
             }
         }
         fireConnectionOpened(connection);
     }
 
+    /**
+     * Returns true if a connection with a higher request ID than the specified one is queued.
+     * Queued connections never exceed the last request ID plus the maximum number of requests.
+     *
+     * @param rid the request ID of the connection.
+     * @return true if a connection with a higher request ID is queued.
+     */
+    private boolean hasLaterConnection(long rid) {
+        for (long later = rid + 1; later <= lastRequestID + maxRequests; later++) {
+            if (connectionQueue.get(later) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private int getOpenConnectionCount() {
         int count = 0;
         for (HttpConnection connection : connectionQueue) {
@@ -688,15 +858,21 @@ public class HttpSession extends ClientSession {
 
     private void deliver(HttpConnection connection, Collection<Deliverable> deliverable)
             throws HttpConnectionClosedException {
-        connection.deliverBody(createDeliverable(deliverable));
-
-        Delivered delivered = new Delivered(deliverable);
-        delivered.setRequestID(connection.getRequestId());
-        while (sentElements.size() > hold) {
-            sentElements.remove(0);
+        ByteBuffer body = createDeliverable(deliverable);
+        try {
+            connection.deliverBody(body);
+        }
+        catch (HttpConnectionClosedException e) {
+            body.release();
+            throw e;
         }
 
-        sentElements.add(delivered);
+        // The pending elements are cleared once delivered so the delivered ones are copied
+        Delivered delivered = new Delivered(new ArrayList<Deliverable>(deliverable));
+        delivered.setRequestID(connection.getRequestId());
+        recordStanzas(delivered.getStanzas().size());
+        // Responses of older requests are evicted once hold + 1 later requests were responded
+        sentElements.set(connection.getRequestId(), delivered);
     }
 
     private void fireConnectionOpened(HttpConnection connection) {
@@ -717,16 +893,10 @@ public class HttpSession extends ClientSession {
      *         protocol.
      */
     private void checkOveractivity(boolean isPoll) throws HttpBindException {
-    	int pendingConnections = 0;
+    	int pendingConnections = getOpenConnectionCount();
     	boolean overactivity = false;
     	String errorMessage = "Overactivity detected";
 
-        for (HttpConnection conn : connectionQueue) {
-            if (!conn.isClosed()) {
-                pendingConnections++;
-            }
-        }
-
         if(pendingConnections >= maxRequests) {
         	overactivity = true;
         	errorMessage += ", too many simultaneous requests.";
@@ -776,20 +946,89 @@ public class HttpSession extends ClientSession {
         deliver(new Deliverable(Arrays.asList(stanza)));
     }
 
-    private synchronized void deliver(Deliverable stanza) {
+    @Override
+    public boolean deliverRawStanza(String stanza) {
+        // Stanzas need to be parsed for rewriting their namespace
+        return false;
+    }
+
+    /**
+     * Queues a stanza sent by the server for delivery without waiting for the lock of the
+     * session. The stanza is delivered by this thread if the lock is free, otherwise by the
+     * thread that holds the lock once it releases it.
+     *
+     * @param stanza the stanza to deliver to the client.
+     */
+    private void deliver(Deliverable stanza) {
+        outboundElements.add(stanza);
+        flushOutbound();
+    }
+
+    private void flushOutbound() {
+        while (!outboundElements.isEmpty() && lock.tryLock()) {
+            try {
+                deliverOutbound();
+            }
+            finally {
+                lock.unlock();
+            }
+            // Stanzas queued while the lock was being released are delivered by the next loop
+        }
+    }
+
+    /**
+     * Releases the lock of the session, delivering the stanzas that the server queued while
+     * the lock was held.
+     */
+    private void releaseLock() {
+        lock.unlock();
+        if (!lock.isHeldByCurrentThread()) {
+            // Outer holders of the lock flush once they release it
+            flushOutbound();
+        }
+    }
+
+    private void deliverOutbound() {
+        Deliverable stanza;
+        while ((stanza = outboundElements.poll()) != null) {
+            if (isClosed) {
+                failDelivery(stanza.getStanzas());
+            }
+            else {
+                deliverNext(stanza);
+            }
+        }
+    }
+
+    private void deliverNext(Deliverable stanza) {
+        if (aggregationWindow > 0 && connectionQueue.get(lastRequestID + 1) != null) {
+            // Hold the response so that it carries the stanzas that follow this one
+            pendingElements.add(stanza);
+            if (pendingElements.size() >= maxAggregatedStanzas ||
+                    getPendingLength() >= maxAggregatedBytes) {
+                deliverPendingElements();
+            }
+            else if (aggregationTask == null) {
+                aggregationTask = new AggregationTask();
+                TaskEngine.getInstance().schedule(aggregationTask, aggregationWindow);
+            }
+            return;
+        }
+        deliverNow(stanza);
+    }
+
+    private void deliverNow(Deliverable stanza) {
         Collection<Deliverable> deliverable = Arrays.asList(stanza);
         boolean delivered = false;
-        for (HttpConnection connection : connectionQueue) {
+        HttpConnection connection = connectionQueue.get(lastRequestID + 1);
+        if (connection != null) {
             try {
-                if (connection.getRequestId() == lastRequestID + 1) {
-                    lastRequestID = connection.getRequestId();
-                    deliver(connection, deliverable);
-                    delivered = true;
-                    break;
-                }
+                lastRequestID = connection.getRequestId();
+                deliver(connection, deliverable);
+                delivered = true;
             }
             catch (HttpConnectionClosedException e) {
-                /* Connection was closed, try the next one */
+                /* Connection was closed, the stanza remains pending */
             }
         }
 
@@ -798,6 +1037,74 @@ public class HttpSession extends ClientSession {
         }
     }
 
+    /**
+     * Returns the number of bytes of the stanzas waiting for a connection to be sent to the
+     * client. Pending elements are only measured if the lock of the session is free, otherwise
+     * their last measure is returned.
+     *
+     * @return the number of bytes of the stanzas waiting to be sent to the client.
+     */
+    @Override
+    public long getWriteQueueBytes() {
+        if (lock.tryLock()) {
+            try {
+                pendingBytes = getPendingLength();
+            }
+            finally {
+                releaseLock();
+            }
+        }
+        long length = pendingBytes;
+        for (Deliverable deliverable : outboundElements) {
+            length += deliverable.getLength();
+        }
+        return length;
+    }
+
+    /**
+     * Requests of the client are read by the HTTP server so reading cannot be suspended.
+     *
+     * @return false since reading cannot be suspended.
+     */
+    @Override
+    public boolean suspendReading() {
+        return false;
+    }
+
+    private int getPendingLength() {
+        int length = 0;
+        for (Deliverable deliverable : pendingElements) {
+            length += deliverable.getLength();
+        }
+        return length;
+    }
+
+    /**
+     * Responds to the next waiting connection with the aggregated pending elements.
+     *
+     * @return true if the pending elements were delivered.
+     */
+    private boolean deliverPendingElements() {
+        if (aggregationTask != null) {
+            TaskEngine.getInstance().cancelScheduledTask(aggregationTask);
+            aggregationTask = null;
+        }
+        HttpConnection connection = connectionQueue.get(lastRequestID + 1);
+        if (connection == null || pendingElements.isEmpty()) {
+            return false;
+        }
+        try {
+            deliver(connection, pendingElements);
+            lastRequestID = connection.getRequestId();
+            pendingElements.clear();
+            return true;
+        }
+        catch (HttpConnectionClosedException e) {
+            /* Connection was closed, the stanzas remain pending */
+            return false;
+        }
+    }
+
     private void fireConnectionClosed(HttpConnection connection) {
         lastActivity = System.currentTimeMillis();
         for (SessionListener listener : listeners) {
@@ -805,53 +1112,159 @@ public class HttpSession extends ClientSession {
         }
     }
 
-    private String createDeliverable(Collection<Deliverable> elements) {
-        StringBuilder builder = new StringBuilder();
-        builder.append("<body xmlns='" + "http://jabber.org/protocol/httpbind" + "'");
+    /**
+     * Encodes the body of a response into a buffer of the MINA allocator, so buffers are
+     * pooled when the connection manager pools them. Stanzas are copied into the buffer as
+     * they were encoded when they were received from the server.
+     *
+     * @param elements the content of the response.
+     * @return the encoded body of the response.
+     */
+    private ByteBuffer createDeliverable(Collection<Deliverable> elements) {
+        int length = BODY_START.length + BODY_END.length + 32;
+        for (Deliverable child : elements) {
+            length += child.getLength();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length, false);
+        buffer.setAutoExpand(true);
+        buffer.put(BODY_START);
 
-        long ack = getLastAcknowledged();
+        long ack = findLastAcknowledged();
         if(ack > lastRequestID)
-            builder.append(" ack='").append(ack).append("'");
+            buffer.put(getBytes(" ack='" + ack + "'"));
 
-        builder.append(">");
+        buffer.put((byte) '>');
 
         setLastResponseEmpty(elements.size() == 0);
         for (Deliverable child : elements) {
-            builder.append(child.getDeliverable());
+            child.writeTo(buffer);
         }
-        builder.append("</body>");
-        return builder.toString();
+        buffer.put(BODY_END);
+        buffer.flip();
+        return buffer;
     }
 
-    private synchronized void closeConnection() {
-        if (isClosed) {
-            return;
+    private void recordResponse(int bytes, long responseTime) {
+        bytesSent += bytes;
+        responseCount++;
+        totalResponseTime += responseTime;
+        maxResponseTime = Math.max(maxResponseTime, responseTime);
+    }
+
+    /**
+     * Returns the number of bytes of the bodies of the responses returned to the client.
+     *
+     * @return the number of bytes of the bodies of the responses returned to the client.
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    /**
+     * Returns the number of responses returned to the client.
+     *
+     * @return the number of responses returned to the client.
+     */
+    public long getResponseCount() {
+        return responseCount;
+    }
+
+    /**
+     * Returns the average time in milliseconds between receiving a request and returning
+     * its response to the client. Requests are held until there is something to deliver
+     * to the client so this is expected to be close to the wait time of the session.
+     *
+     * @return the average time in milliseconds between a request and its response.
+     */
+    public long getAverageResponseTime() {
+        long count = responseCount;
+        return count == 0 ? 0 : totalResponseTime / count;
+    }
+
+    /**
+     * Returns the longest time in milliseconds between receiving a request and returning
+     * its response to the client.
+     *
+     * @return the longest time in milliseconds between a request and its response.
+     */
+    public long getMaxResponseTime() {
+        return maxResponseTime;
+    }
+
+    private void recordStanzas(int stanzas) {
+        if (stanzas > 0) {
+            stanzasSent += stanzas;
+            stanzaResponseCount++;
         }
-        isClosed = true;
+    }
+
+    /**
+     * Returns the number of stanzas delivered to the client.
+     *
+     * @return the number of stanzas delivered to the client.
+     */
+    public long getStanzasSent() {
+        return stanzasSent;
+    }
 
-        if (pendingElements.size() > 0) {
-            failDelivery();
+    /**
+     * Returns the average number of stanzas carried by the responses that delivered stanzas
+     * to the client. Empty responses are not counted. Retransmitted responses are not
+     * counted again.
+     *
+     * @return the average number of stanzas per response that delivered stanzas.
+     */
+    public double getAverageStanzasPerResponse() {
+        long count = stanzaResponseCount;
+        return count == 0 ? 0 : (double) stanzasSent / count;
+    }
+
+    private static byte[] getBytes(String text) {
+        try {
+            return text.getBytes("UTF-8");
         }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
-        for (SessionListener listener : listeners) {
-            listener.sessionClosed(this);
+    private void closeConnection() {
+        lock.lock();
+        try {
+            if (isClosed) {
+                return;
+            }
+            deliverOutbound();
+            isClosed = true;
+            if (aggregationTask != null) {
+                TaskEngine.getInstance().cancelScheduledTask(aggregationTask);
+                aggregationTask = null;
+            }
+
+            if (pendingElements.size() > 0) {
+                failDelivery();
+            }
+
+            for (SessionListener listener : listeners) {
+                listener.sessionClosed(this);
+            }
+            this.listeners.clear();
+        }
+        finally {
+            releaseLock();
         }
-        this.listeners.clear();
     }
 
     private void failDelivery() {
         for (Deliverable deliverable : pendingElements) {
-            Collection<Element> packet = deliverable.getPackets();
-            if (packet != null) {
-                failDelivery(packet);
-            }
+            failDelivery(deliverable.getStanzas());
         }
 
         for (HttpConnection toClose : connectionQueue) {
             if (!toClose.isDelivered()) {
                 Delivered delivered = retrieveDeliverable(toClose.getRequestId());
                 if (delivered != null) {
-                    failDelivery(delivered.getPackets());
+                    failDelivery(delivered.getStanzas());
                 }
                 else {
                     Log.warn("Packets could not be found for session " + getStreamID() + " cannot" +
@@ -864,94 +1277,81 @@ public class HttpSession extends ClientSession {
         pendingElements.clear();
     }
 
-    private void failDelivery(Collection<Element> packets) {
-        if (packets == null) {
+    private void failDelivery(Collection<BufferedStanza> stanzas) {
+        if (stanzas == null) {
             // Do nothing if someone asked to deliver nothing :)
             return;
         }
-        for (Element packet : packets) {
+        for (BufferedStanza stanza : stanzas) {
             // Inform the server that the wrapped stanza was not delivered
-            String tag = packet.getName();
-            if ("message".equals(tag)) {
-                connectionManager.getServerSurrogate().deliveryFailed(packet, getStreamID());
-            }
-            else if ("iq".equals(tag)) {
-                String type = packet.attributeValue("type", "get");
-                if ("get".equals(type) || "set".equals(type)) {
-                    // Build IQ of type ERROR
-                    Element reply = packet.createCopy();
-                    reply.addAttribute("type", "error");
-                    reply.addAttribute("from", packet.attributeValue("to"));
-                    reply.addAttribute("to", packet.attributeValue("from"));
-                    Element error = reply.addElement("error");
-                    error.addAttribute("type", "wait");
-                    error.addElement("unexpected-request")
-                            .addAttribute("xmlns", "urn:ietf:params:xml:ns:xmpp-stanzas");
-                    // Bounce the failed IQ packet
-                    connectionManager.getServerSurrogate().send(reply.asXML(), getStreamID());
-                }
+            if ("message".equals(stanza.getKind())) {
+                connectionManager.getServerSurrogate().deliveryFailed(stanza.getXML(),
+                        getStreamID());
+            }
+            else if (stanza.isRequest()) {
+                // Bounce the failed IQ packet
+                connectionManager.getServerSurrogate().send(stanza.createErrorReply(),
+                        getStreamID());
             }
         }
     }
 
-    private String createEmptyBody() {
-        Element body = DocumentHelper.createElement("body");
-        body.addNamespace("", "http://jabber.org/protocol/httpbind");
-        long ack = getLastAcknowledged();
-        if(ack > lastRequestID)
-        	body.addAttribute("ack", String.valueOf(ack));
-        return body.asXML();
+    private ByteBuffer createEmptyBody() {
+        long ack = findLastAcknowledged();
+        if(ack > lastRequestID) {
+            return ByteBuffer.wrap(getBytes("<body xmlns=\"http://jabber.org/protocol/httpbind\" ack=\""
+                    + ack + "\"/>"));
+        }
+        return ByteBuffer.wrap(EMPTY_BODY);
     }
 
     private class Deliverable implements Comparable<Deliverable> {
         private final String text;
-        private final Collection<String> packets;
+        private final List<BufferedStanza> stanzas;
         private long requestID;
 
         public Deliverable(String text) {
             this.text = text;
-            this.packets = null;
+            this.stanzas = null;
         }
 
         public Deliverable(Collection<Element> elements) {
             this.text = null;
-            this.packets = new ArrayList<String>();
+            this.stanzas = new ArrayList<BufferedStanza>(elements.size());
             for (Element packet : elements) {
-                // Rewrite packet namespace according XEP-0206
-                if ("presence".equals(packet.getName())) {
-                    final StringBuilder sb = new StringBuilder();
-                    sb.append("<presence xmlns=\"jabber:client\"");
-                    sb.append(packet.asXML().substring(9));
-                    this.packets.add(sb.toString());
-                }
-                else if ("iq".equals(packet.getName())) {
-                    final StringBuilder sb = new StringBuilder();
-                    sb.append("<iq xmlns=\"jabber:client\"");
-                    sb.append(packet.asXML().substring(3));
-                    this.packets.add(sb.toString());
-                }
-                else if ("message".equals(packet.getName())) {
-                    final StringBuilder sb = new StringBuilder();
-                    sb.append("<message xmlns=\"jabber:client\"");
-                    sb.append(packet.asXML().substring(8));
-                    this.packets.add(sb.toString());
-                }
-                else {
-                    this.packets.add(packet.asXML());
+                this.stanzas.add(BufferedStanza.create(packet));
+            }
+        }
+
+        /**
+         * Returns the number of bytes of the encoded stanzas of this deliverable.
+         *
+         * @return the number of bytes of the encoded stanzas of this deliverable.
+         */
+        public int getLength() {
+            if (text == null) {
+                int length = 0;
+                for (BufferedStanza stanza : stanzas) {
+                    length += stanza.getLength();
                 }
+                return length;
             }
+            return text.length();
         }
 
-        public String getDeliverable() {
+        /**
+         * Writes the text or the encoded stanzas of this deliverable to a response body.
+         *
+         * @param buffer the response body.
+         */
+        public void writeTo(ByteBuffer buffer) {
             if (text == null) {
-                StringBuilder builder = new StringBuilder();
-                for (String packet : packets) {
-                    builder.append(packet);
+                for (BufferedStanza stanza : stanzas) {
+                    stanza.writeTo(buffer);
                 }
-                return builder.toString();
             }
             else {
-                return text;
+                buffer.put(getBytes(text));
             }
         }
 
@@ -963,19 +1363,13 @@ public class HttpSession extends ClientSession {
             return requestID;
         }
 
-        public Collection<Element> getPackets() {
-            List<Element> answer = new ArrayList<Element>();
-            for (String packetXML : packets) {
-                try {
-                    // Parse the XML stanza
-                    Element element = localParser.get().read(new StringReader(packetXML)).getRootElement();
-                    answer.add(element);
-                }
-                catch (Exception e) {
-                    Log.error("Error while parsing Privacy Property", e);
-                }
-            }
-            return answer;
+        /**
+         * Returns the stanzas of this deliverable or <tt>null</tt> if it only contains text.
+         *
+         * @return the stanzas of this deliverable or null if it only contains text.
+         */
+        public List<BufferedStanza> getStanzas() {
+            return stanzas;
         }
 
         public int compareTo(Deliverable o) {
@@ -983,6 +1377,26 @@ public class HttpSession extends ClientSession {
         }
     }
 
+    /**
+     * Returns the aggregated stanzas to the waiting connection once the aggregation window
+     * of the session elapsed.
+     */
+    private class AggregationTask extends TimerTask {
+
+        @Override
+        public void run() {
+            lock.lock();
+            try {
+                if (aggregationTask == this) {
+                    deliverPendingElements();
+                }
+            }
+            finally {
+                releaseLock();
+            }
+        }
+    }
+
     private class Delivered {
         private long requestID;
         private Collection<Deliverable> deliverables;
@@ -999,14 +1413,14 @@ public class HttpSession extends ClientSession {
             return requestID;
         }
 
-        public Collection<Element> getPackets() {
-            List<Element> packets = new ArrayList<Element>();
+        public Collection<BufferedStanza> getStanzas() {
+            List<BufferedStanza> stanzas = new ArrayList<BufferedStanza>();
             for (Deliverable deliverable : deliverables) {
-                if (deliverable.packets != null) {
-                    packets.addAll(deliverable.getPackets());
+                if (deliverable.stanzas != null) {
+                    stanzas.addAll(deliverable.stanzas);
                 }
             }
-            return packets;
+            return stanzas;
         }
     }
 }
@@ -19,10 +19,6 @@
 
 package org.jivesoftware.multiplexer.net.http;
 
-import org.dom4j.DocumentException;
-import org.dom4j.DocumentHelper;
-import org.dom4j.Element;
-import org.dom4j.QName;
 import org.jivesoftware.multiplexer.ConnectionManager;
 import org.jivesoftware.multiplexer.ServerSurrogate;
 import org.jivesoftware.multiplexer.Session;
@@ -30,6 +26,7 @@ import org.jivesoftware.multiplexer.StreamIDFactory;
 import org.jivesoftware.util.JiveConstants;
 import org.jivesoftware.util.JiveGlobals;
 import org.jivesoftware.util.Log;
+import org.jivesoftware.util.StringUtils;
 import org.jivesoftware.util.TaskEngine;
 
 import java.net.InetAddress;
@@ -49,14 +46,37 @@ public class HttpSessionManager {
     private ServerSurrogate serverSurrogate;
     private Map<String, HttpSession> sessionMap = new ConcurrentHashMap<String, HttpSession>();
     private TimerTask inactivityTask;
+    /**
+     * Keeps the time when sessions may become inactive so that the reaper only looks at the
+     * sessions that are about to expire.
+     */
+    private InactivityWheel inactivityWheel = new InactivityWheel(JiveConstants.SECOND, 512);
     private SessionListener sessionListener = new SessionListener() {
         public void connectionOpened(HttpSession session, HttpConnection connection) {
+            scheduleInactivity(session, System.currentTimeMillis());
         }
 
         public void connectionClosed(HttpSession session, HttpConnection connection) {
+            scheduleInactivity(session, System.currentTimeMillis());
+        }
+
+        public void inactivityTimeoutChanged(HttpSession session) {
+            if (!session.isClosed()) {
+                // Move the deadline so that a shorter timeout is not checked too late
+                scheduleInactivity(session, session.getLastActivity());
+            }
         }
 
         public void sessionClosed(HttpSession session) {
+            inactivityWheel.remove(session);
+            if (Log.isDebugEnabled()) {
+                Log.debug("HTTP session " + session.getStreamID() + " closed. Responses: " +
+                        session.getResponseCount() + " bytes: " + session.getBytesSent() +
+                        " average response time: " + session.getAverageResponseTime() +
+                        " ms max response time: " + session.getMaxResponseTime() + " ms" +
+                        " stanzas: " + session.getStanzasSent() + " stanzas per response: " +
+                        session.getAverageStanzasPerResponse());
+            }
             Session.removeSession(session.getStreamID());
             sessionMap.remove(session.getStreamID());
             serverSurrogate.clientSessionClosed(session.getStreamID());
@@ -75,8 +95,8 @@ public class HttpSessionManager {
      */
     public void start() {
         inactivityTask = new HttpSessionReaper();
-        TaskEngine.getInstance().schedule(inactivityTask, 30 * JiveConstants.SECOND,
-                30 * JiveConstants.SECOND);
+        TaskEngine.getInstance().schedule(inactivityTask, JiveConstants.SECOND,
+                JiveConstants.SECOND);
     }
 
     /**
@@ -90,6 +110,18 @@ public class HttpSessionManager {
         sessionMap.clear();
     }
 
+    /**
+     * Schedules the session to be checked for inactivity once its inactivity timeout has
+     * elapsed since the specified time of last activity.
+     *
+     * @param session the session to schedule.
+     * @param lastActivity the time in milliseconds when the session was last active.
+     */
+    private void scheduleInactivity(HttpSession session, long lastActivity) {
+        inactivityWheel.schedule(session,
+                lastActivity + session.getInactivityTimeout() * JiveConstants.SECOND);
+    }
+
     /**
      * Returns the session related to a stream id.
      *
@@ -104,7 +136,7 @@ public class HttpSessionManager {
      * Creates an HTTP binding session which will allow a user to exchange packets with Openfire.
      *
      * @param address the internet address that was used to bind to Wildfie.
-     * @param rootNode the body element that was sent containing the request for a new session.
+     * @param body the body element that was sent containing the request for a new session.
      * @param connection the HTTP connection object which abstracts the individual connections to
      * Openfire over the HTTP binding protocol. The initial session creation response is returned to
      * this connection.
@@ -114,21 +146,21 @@ public class HttpSessionManager {
      * @throws HttpBindException when there is an internal server error related to the creation of
      * the initial session creation response.
      */
-    public HttpSession createSession(InetAddress address, Element rootNode,
+    public HttpSession createSession(InetAddress address, HttpBindBody body,
                                      HttpConnection connection)
             throws HttpBindException {
         // TODO Check if IP address is allowed to connect to the server
 
         // Default language is English ("en").
-        String language = rootNode.attributeValue("xml:lang");
+        String language = body.attributeValue("xml:lang");
         if (language == null || "".equals(language)) {
             language = "en";
         }
 
-        int wait = getIntAttribute(rootNode.attributeValue("wait"), 60);
-        int hold = getIntAttribute(rootNode.attributeValue("hold"), 1);
+        int wait = getIntAttribute(body.attributeValue("wait"), 60);
+        int hold = getIntAttribute(body.attributeValue("hold"), 1);
 
-        String version = rootNode.attributeValue("ver");
+        String version = body.attributeValue("ver");
         if (version == null || "".equals(version)) {
         	version = "1.5";
         }
@@ -140,6 +172,9 @@ public class HttpSessionManager {
         session.setMaxPollingInterval(getPollingInterval());
         session.setMaxRequests(getMaxRequests());
         session.setMaxPause(getMaxPause());
+        session.setAggregationWindow(getAggregationWindow());
+        session.setMaxAggregatedStanzas(getMaxAggregatedStanzas());
+        session.setMaxAggregatedBytes(getMaxAggregatedBytes());
         
         if(session.isPollingSession()) {
         	session.setDefaultInactivityTimeout(getPollingInactivityTimeout());
@@ -162,11 +197,6 @@ public class HttpSessionManager {
         catch (HttpConnectionClosedException e) {
             /* This won't happen here. */
         }
-        catch (DocumentException e) {
-            Log.error("Error creating document", e);
-            throw new HttpBindException("Internal server error",
-                    BoshBindingError.internalServerError);
-        }
         return session;
     }
 
@@ -181,6 +211,37 @@ public class HttpSessionManager {
         return JiveGlobals.getIntProperty("xmpp.httpbind.client.maxpause", 300);
     }
 
+    /**
+     * Returns the milliseconds that the response to a waiting request is held after the server
+     * sent a stanza so that the stanzas that follow it are returned in the same response.
+     * Default is 0, which returns each stanza as soon as it is sent by the server.
+     *
+     * @return the milliseconds that a response is held to aggregate stanzas.
+     */
+    public int getAggregationWindow() {
+        return JiveGlobals.getIntProperty("xmpp.httpbind.client.aggregation.window", 0);
+    }
+
+    /**
+     * Returns the number of aggregated stanzas that makes a held response be returned before
+     * its aggregation window elapsed. Default is 50.
+     *
+     * @return the number of stanzas that are aggregated at most.
+     */
+    public int getMaxAggregatedStanzas() {
+        return JiveGlobals.getIntProperty("xmpp.httpbind.client.aggregation.stanzas", 50);
+    }
+
+    /**
+     * Returns the number of bytes of aggregated stanzas that makes a held response be returned
+     * before its aggregation window elapsed. Default is 16384.
+     *
+     * @return the number of bytes of stanzas that are aggregated at most.
+     */
+    public int getMaxAggregatedBytes() {
+        return JiveGlobals.getIntProperty("xmpp.httpbind.client.aggregation.bytes", 16384);
+    }
+
     /**
      * Returns the longest time (in seconds) that Openfire is allowed to wait before responding to
      * any request during the session. This enables the client to prevent its TCP connection from
@@ -260,7 +321,7 @@ public class HttpSessionManager {
      * @param session the HTTP session of the client that made the request.
      * @param isSecure true if the request was made over a secure channel, HTTPS, and false if it
      * was not.
-     * @param rootNode the XML body of the request.
+     * @param body the XML body of the request.
      * @return the created HTTP connection.
      *
      * @throws HttpBindException for several reasons: if the encoding inside of an auth packet is
@@ -268,20 +329,21 @@ public class HttpSessionManager {
      * @throws HttpConnectionClosedException if the session is no longer available.
      */
     public HttpConnection forwardRequest(long rid, HttpSession session, boolean isSecure,
-                                         Element rootNode) throws HttpBindException,
+                                         HttpBindBody body) throws HttpBindException,
             HttpConnectionClosedException
     {
-        //noinspection unchecked
-        List<Element> elements = rootNode.elements();boolean isPoll = (elements.size() == 0);
-    	if ("terminate".equals(rootNode.attributeValue("type")))
+        List<String> stanzas = body.getStanzas();
+        boolean isPoll = (stanzas.size() == 0);
+    	if ("terminate".equals(body.attributeValue("type")))
     		isPoll = false;
-    	else if ("true".equals(rootNode.attributeValue(new QName("restart", rootNode.getNamespaceForPrefix("xmpp")))))
+    	else if (body.isRestart())
     		isPoll = false;
-    	else if (rootNode.attributeValue("pause") != null)
+    	else if (body.attributeValue("pause") != null)
     		isPoll = false;
-        HttpConnection connection = session.createConnection(rid, elements, isSecure, isPoll);
-        for (Element packet : elements) {
-            serverSurrogate.send(packet.asXML(), session.getStreamID());
+        HttpConnection connection = session.createConnection(rid, stanzas, isSecure, isPoll);
+        // Stanzas are forwarded as they were sent by the client
+        for (String stanza : stanzas) {
+            serverSurrogate.send(stanza, session.getStreamID());
         }
         return connection;
     }
@@ -295,6 +357,7 @@ public class HttpSessionManager {
         sessionMap.put(streamID, session);
         Session.addSession(streamID, session);
         session.addSessionCloseListener(sessionListener);
+        scheduleInactivity(session, System.currentTimeMillis());
         // Send to the server that a new client session has been created
         serverSurrogate.clientSessionCreated(streamID, address);
         return session;
@@ -324,32 +387,42 @@ public class HttpSessionManager {
         }
     }
 
-    private String createSessionCreationResponse(HttpSession session) throws DocumentException {
-        Element response = DocumentHelper.createElement("body");
-        response.addNamespace("", "http://jabber.org/protocol/httpbind");
-        response.addNamespace("stream", "http://etherx.jabber.org/streams");
-        response.addAttribute("authid", session.getStreamID());
-        response.addAttribute("sid", session.getStreamID());
-        response.addAttribute("secure", Boolean.TRUE.toString());
-        response.addAttribute("requests", String.valueOf(session.getMaxRequests()));
-        response.addAttribute("inactivity", String.valueOf(session.getInactivityTimeout()));
-        response.addAttribute("polling", String.valueOf(session.getMaxPollingInterval()));
-        response.addAttribute("wait", String.valueOf(session.getWait()));
+    /**
+     * Returns the response to a session creation request. The response is written directly
+     * instead of building and serializing a DOM since the stream features are kept serialized.
+     *
+     * @param session the session that was created.
+     * @return the response to the session creation request.
+     */
+    private String createSessionCreationResponse(HttpSession session) {
+        String features = session.getAvailableStreamFeatures();
+        StringBuilder sb = new StringBuilder(400 + features.length());
+        sb.append("<body xmlns=\"http://jabber.org/protocol/httpbind\"");
+        sb.append(" xmlns:stream=\"http://etherx.jabber.org/streams\"");
+        appendAttribute(sb, "authid", session.getStreamID());
+        appendAttribute(sb, "sid", session.getStreamID());
+        appendAttribute(sb, "secure", Boolean.TRUE.toString());
+        appendAttribute(sb, "requests", String.valueOf(session.getMaxRequests()));
+        appendAttribute(sb, "inactivity", String.valueOf(session.getInactivityTimeout()));
+        appendAttribute(sb, "polling", String.valueOf(session.getMaxPollingInterval()));
+        appendAttribute(sb, "wait", String.valueOf(session.getWait()));
         if ((session.getMajorVersion() == 1 && session.getMinorVersion() >= 6) ||
         	session.getMajorVersion() > 1) {
-            response.addAttribute("hold", String.valueOf(session.getHold()));
-            response.addAttribute("ack", String.valueOf(session.getLastAcknowledged()));
-            response.addAttribute("maxpause", String.valueOf(session.getMaxPause()));
-            response.addAttribute("ver", String.valueOf(session.getMajorVersion())
+            appendAttribute(sb, "hold", String.valueOf(session.getHold()));
+            appendAttribute(sb, "ack", String.valueOf(session.getLastAcknowledged()));
+            appendAttribute(sb, "maxpause", String.valueOf(session.getMaxPause()));
+            appendAttribute(sb, "ver", String.valueOf(session.getMajorVersion())
             		+ "." + String.valueOf(session.getMinorVersion()));
         }
+        sb.append('>');
+        sb.append("<stream:features>").append(features).append("</stream:features>");
+        sb.append("</body>");
+        return sb.toString();
+    }
 
-        Element features = response.addElement("stream:features");
-        for (Element feature : session.getAvailableStreamFeaturesElements()) {
-            features.add(feature.createCopy());
-        }
-
-        return response.asXML();
+    private static void appendAttribute(StringBuilder sb, String name, String value) {
+        sb.append(' ').append(name).append("=\"").append(StringUtils.escapeForXML(value))
+                .append('"');
     }
 
     private class HttpSessionReaper extends TimerTask {
@@ -357,11 +430,18 @@ public class HttpSessionManager {
         @Override
 		public void run() {
             long currentTime = System.currentTimeMillis();
-            for (HttpSession session : sessionMap.values()) {
-                long lastActive = currentTime - session.getLastActivity();
-                if (lastActive > session.getInactivityTimeout() * JiveConstants.SECOND) {
+            for (HttpSession session : inactivityWheel.expire(currentTime)) {
+                if (session.isClosed()) {
+                    continue;
+                }
+                // Activity or a pause may have postponed the deadline of the session
+                long lastActivity = session.getLastActivity();
+                if (currentTime - lastActivity > session.getInactivityTimeout() * JiveConstants.SECOND) {
                     session.close();
                 }
+                else {
+                    scheduleInactivity(session, lastActivity);
+                }
             }
         }
     }
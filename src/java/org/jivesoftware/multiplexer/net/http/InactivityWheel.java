@@ -0,0 +1,149 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hashed timing wheel that keeps the time when {@link HttpSession}s may become inactive.
+ * Sessions are placed in the slot of the tick that includes their deadline so finding the
+ * sessions to expire only requires looking at the slots of the ticks that have elapsed.
+ * The cost of expiring sessions is then proportional to the number of sessions that are
+ * expiring instead of the total number of sessions.<p>
+ *
+ * Deadlines do not need to be exact. A session that is returned by {@link #expire(long)}
+ * is only a candidate and its inactivity has to be verified before closing it. Sessions
+ * whose deadline was postponed are scheduled again.
+ */
+class InactivityWheel {
+
+    private final long tickDuration;
+    private final List<Set<HttpSession>> slots;
+    /**
+     * Tick of the deadline of each scheduled session.
+     */
+    private final Map<HttpSession, Long> deadlines = new ConcurrentHashMap<HttpSession, Long>();
+    /**
+     * Last tick whose slot was processed.
+     */
+    private volatile long lastTick;
+
+    /**
+     * Creates a new timing wheel.
+     *
+     * @param tickDuration the number of milliseconds of each tick.
+     * @param wheelSize the number of slots of the wheel.
+     */
+    InactivityWheel(long tickDuration, int wheelSize) {
+        this.tickDuration = tickDuration;
+        this.slots = new ArrayList<Set<HttpSession>>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            slots.add(Collections.newSetFromMap(new ConcurrentHashMap<HttpSession, Boolean>()));
+        }
+        this.lastTick = System.currentTimeMillis() / tickDuration;
+    }
+
+    /**
+     * Schedules the session to be expired at the specified time. A previous deadline of
+     * the session is replaced.
+     *
+     * @param session the session to schedule.
+     * @param deadline the time in milliseconds since the epoch when the session may expire.
+     */
+    void schedule(HttpSession session, long deadline) {
+        // Round up so that sessions are never returned before their deadline
+        long tick = (deadline + tickDuration - 1) / tickDuration;
+        // Deadlines that already passed are checked on the next tick
+        tick = Math.max(tick, lastTick + 1);
+        Long previous = deadlines.put(session, tick);
+        if (previous != null) {
+            if (previous == tick) {
+                return;
+            }
+            getSlot(previous).remove(session);
+        }
+        getSlot(tick).add(session);
+    }
+
+    /**
+     * Stops tracking the inactivity of the specified session.
+     *
+     * @param session the session that is no longer going to be expired.
+     */
+    void remove(HttpSession session) {
+        Long previous = deadlines.remove(session);
+        if (previous != null) {
+            getSlot(previous).remove(session);
+        }
+    }
+
+    /**
+     * Returns the sessions whose deadline has been reached and stops tracking them. Only
+     * the slots of the ticks that elapsed since the last invocation are inspected.
+     *
+     * @param now the current time in milliseconds since the epoch.
+     * @return the sessions whose deadline has been reached.
+     */
+    synchronized List<HttpSession> expire(long now) {
+        List<HttpSession> expired = new ArrayList<HttpSession>();
+        long nowTick = now / tickDuration;
+        // Each slot only needs to be inspected once even if the wheel went full circle
+        long firstTick = Math.max(lastTick + 1, nowTick - slots.size() + 1);
+        lastTick = Math.max(lastTick, nowTick);
+        for (long tick = firstTick; tick <= nowTick; tick++) {
+            Set<HttpSession> slot = getSlot(tick);
+            for (Iterator<HttpSession> it = slot.iterator(); it.hasNext();) {
+                HttpSession session = it.next();
+                Long deadline = deadlines.get(session);
+                if (deadline == null || getSlot(deadline) != slot) {
+                    // Session was rescheduled or removed while being added to this slot
+                    it.remove();
+                }
+                else if (deadline <= nowTick) {
+                    it.remove();
+                    if (deadlines.remove(session) != null) {
+                        expired.add(session);
+                    }
+                }
+                // Otherwise the deadline is in a later round of the wheel
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Returns the number of sessions whose inactivity is being tracked.
+     *
+     * @return the number of sessions whose inactivity is being tracked.
+     */
+    int size() {
+        return deadlines.size();
+    }
+
+    private Set<HttpSession> getSlot(long tick) {
+        return slots.get((int) (tick % slots.size()));
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.http;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Ring buffer of values indexed by the request ID (or 'rid') of a BOSH request. Request IDs
+ * of a session are consecutive so the values of a session always fall within a small window
+ * of request IDs and each of them can be stored in the slot of its request ID modulo the
+ * capacity of the ring. Lookups, additions and removals do not need to search nor allocate.<p>
+ *
+ * The ring grows when a value is added for a request ID whose slot is taken by another
+ * request ID, unless values are allowed to be evicted. The lowest and highest request IDs
+ * with a value are tracked so that iterating only visits the window of requests of the
+ * session no matter how much the ring grew. Instances are not thread safe and have to be
+ * guarded by the lock of the session.
+ *
+ * @param <T> the type of the values kept for each request.
+ */
+class RequestRing<T> implements Iterable<T> {
+
+    private long[] requestIDs;
+    private Object[] values;
+    private int size;
+    /**
+     * Lowest and highest request IDs that have a value. Only valid when the ring is not empty.
+     */
+    private long first;
+    private long last;
+
+    /**
+     * Creates a new ring that is able to hold the specified number of consecutive requests
+     * without growing.
+     *
+     * @param capacity the number of consecutive requests to hold.
+     */
+    RequestRing(int capacity) {
+        int length = tableSizeFor(capacity);
+        requestIDs = new long[length];
+        values = new Object[length];
+    }
+
+    /**
+     * Returns the value of the specified request or <tt>null</tt> if none was added.
+     *
+     * @param requestID the ID of the request.
+     * @return the value of the specified request or null if none was added.
+     */
+    @SuppressWarnings("unchecked")
+    T get(long requestID) {
+        int index = indexOf(requestID, values.length);
+        if (values[index] != null && requestIDs[index] == requestID) {
+            return (T) values[index];
+        }
+        return null;
+    }
+
+    /**
+     * Adds the value of the specified request, replacing a previous value of the same request.
+     * The ring grows if the slot of the request is used by another request.
+     *
+     * @param requestID the ID of the request.
+     * @param value the value of the request.
+     */
+    void put(long requestID, T value) {
+        int index = indexOf(requestID, values.length);
+        while (values[index] != null && requestIDs[index] != requestID) {
+            resize(values.length * 2);
+            index = indexOf(requestID, values.length);
+        }
+        store(index, requestID, value);
+    }
+
+    /**
+     * Adds the value of the specified request, evicting the value of any other request that
+     * used the same slot. Only the values of the most recent requests are then kept.
+     *
+     * @param requestID the ID of the request.
+     * @param value the value of the request.
+     */
+    void set(long requestID, T value) {
+        store(indexOf(requestID, values.length), requestID, value);
+    }
+
+    /**
+     * Removes the value of the specified request.
+     *
+     * @param requestID the ID of the request.
+     * @return the removed value or null if there was no value for the request.
+     */
+    T remove(long requestID) {
+        T value = get(requestID);
+        if (value != null) {
+            values[indexOf(requestID, values.length)] = null;
+            size--;
+            forget(requestID);
+        }
+        return value;
+    }
+
+    /**
+     * Makes sure that the ring can hold the specified number of consecutive requests.
+     *
+     * @param capacity the number of consecutive requests to hold.
+     */
+    void ensureCapacity(int capacity) {
+        if (capacity > values.length) {
+            resize(tableSizeFor(capacity));
+        }
+    }
+
+    /**
+     * Returns the number of requests that have a value.
+     *
+     * @return the number of requests that have a value.
+     */
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns an iterator over the values of the ring in the order of their requests. Only
+     * the requests between the lowest and the highest request ID with a value are visited.
+     *
+     * @return an iterator over the values of the ring.
+     */
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private long next = first;
+            private final long end = isEmpty() ? first - 1 : last;
+            private T value = advance();
+
+            private T advance() {
+                while (next <= end) {
+                    T found = get(next++);
+                    if (found != null) {
+                        return found;
+                    }
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return value != null;
+            }
+
+            public T next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                T current = value;
+                value = advance();
+                return current;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void store(int index, long requestID, T value) {
+        boolean evicted = false;
+        long evictedID = requestIDs[index];
+        if (values[index] == null) {
+            size++;
+        }
+        else {
+            evicted = evictedID != requestID;
+        }
+        requestIDs[index] = requestID;
+        values[index] = value;
+        if (size == 1) {
+            first = requestID;
+            last = requestID;
+        }
+        else {
+            first = Math.min(first, requestID);
+            last = Math.max(last, requestID);
+        }
+        if (evicted) {
+            forget(evictedID);
+        }
+    }
+
+    /**
+     * Moves the bounds of the window of requests after the value of the specified request
+     * was removed.
+     */
+    private void forget(long requestID) {
+        if (size == 0) {
+            return;
+        }
+        if (requestID == first) {
+            while (get(first) == null) {
+                first++;
+            }
+        }
+        if (requestID == last) {
+            while (get(last) == null) {
+                last--;
+            }
+        }
+    }
+
+    private void resize(int length) {
+        long[] oldRequestIDs = requestIDs;
+        Object[] oldValues = values;
+        boolean collision;
+        do {
+            requestIDs = new long[length];
+            values = new Object[length];
+            collision = false;
+            for (int i = 0; i < oldValues.length && !collision; i++) {
+                if (oldValues[i] != null) {
+                    int index = indexOf(oldRequestIDs[i], length);
+                    if (values[index] != null) {
+                        collision = true;
+                    }
+                    requestIDs[index] = oldRequestIDs[i];
+                    values[index] = oldValues[i];
+                }
+            }
+            // Requests that are farther apart than the new length still collide
+            length *= 2;
+        }
+        while (collision);
+    }
+
+    private static int indexOf(long requestID, int length) {
+        return (int) (requestID & (length - 1));
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int length = 1;
+        while (length < capacity) {
+            length <<= 1;
+        }
+        return length;
+    }
+}
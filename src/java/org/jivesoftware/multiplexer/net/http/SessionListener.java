@@ -43,6 +43,13 @@ public interface SessionListener {
      */
     public void connectionClosed(HttpSession session, HttpConnection connection);
 
+    /**
+     * The inactivity timeout of a session was changed.
+     *
+     * @param session the session.
+     */
+    public void inactivityTimeoutChanged(HttpSession session);
+
     /**
      * A session ended.
      *
@@ -0,0 +1,51 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.websocket;
+
+import org.apache.mina.filter.codec.ProtocolCodecFactory;
+import org.apache.mina.filter.codec.ProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolEncoder;
+
+/**
+ * Factory that specifies the encoder and decoder to use for WebSocket connections.
+ */
+public class WebSocketCodecFactory implements ProtocolCodecFactory {
+
+    private final WebSocketEncoder encoder;
+    private final WebSocketDecoder decoder;
+
+    /**
+     * Creates a new codec factory.
+     *
+     * @param maxMessageSize the max number of bytes of a message sent by a client.
+     */
+    public WebSocketCodecFactory(int maxMessageSize) {
+        encoder = new WebSocketEncoder();
+        decoder = new WebSocketDecoder(maxMessageSize);
+    }
+
+    public ProtocolEncoder getEncoder() throws Exception {
+        return encoder;
+    }
+
+    public ProtocolDecoder getDecoder() throws Exception {
+        return decoder;
+    }
+}
@@ -0,0 +1,332 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.websocket;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IdleStatus;
+import org.apache.mina.common.IoFutureListener;
+import org.apache.mina.common.IoHandlerAdapter;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.jivesoftware.multiplexer.ConnectionManager;
+import org.jivesoftware.multiplexer.MemoryBudget;
+import org.jivesoftware.multiplexer.ServerSurrogate;
+import org.jivesoftware.multiplexer.Session;
+import org.jivesoftware.multiplexer.StreamError;
+import org.jivesoftware.multiplexer.net.MXParser;
+import org.jivesoftware.multiplexer.net.ParserCache;
+import org.jivesoftware.util.JiveGlobals;
+import org.jivesoftware.util.Log;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Handler of the connections of clients using XMPP over WebSocket as specified in
+ * <a href="http://tools.ietf.org/html/rfc7395">RFC 7395</a>. The opening handshake of a
+ * connection is answered with the <tt>xmpp</tt> sub-protocol. Each text message of the
+ * client is expected to be a single XML element: <tt>open</tt> and <tt>close</tt> elements
+ * start, restart and end the {@link WebSocketSession} of the connection and any other element
+ * is a stanza that is forwarded to the server as it was received.
+ */
+public class WebSocketConnectionHandler extends IoHandlerAdapter {
+
+    private static final String SESSION = "WEBSOCKET-SESSION";
+
+    @Override
+    public void sessionOpened(IoSession session) throws Exception {
+        // Set the max time a connection can be idle before closing it
+        int idleTime = JiveGlobals.getIntProperty("xmpp.websocket.idle", 30 * 60 * 1000) / 1000;
+        if (idleTime > 0) {
+            session.setIdleTime(IdleStatus.READER_IDLE, idleTime);
+        }
+    }
+
+    @Override
+    public void sessionClosed(IoSession session) throws Exception {
+        WebSocketSession webSocketSession = (WebSocketSession) session.getAttribute(SESSION);
+        if (webSocketSession != null) {
+            webSocketSession.close(false, WebSocketFrame.NORMAL_CLOSURE);
+        }
+    }
+
+    @Override
+    public void sessionIdle(IoSession session, IdleStatus status) throws Exception {
+        if (Log.isDebugEnabled()) {
+            Log.debug("Closing WebSocket connection that has been idle: " + session);
+        }
+        close(session, true, WebSocketFrame.NORMAL_CLOSURE);
+    }
+
+    @Override
+    public void exceptionCaught(IoSession session, Throwable cause) throws Exception {
+        if (cause instanceof IOException) {
+            Log.info("WebSocketConnectionHandler reports IOException for session: " + session,
+                    cause);
+        }
+        else if (cause instanceof ProtocolDecoderException) {
+            Log.warn("Closing WebSocket session due to exception: " + session, cause);
+            if (session.getAttribute(SESSION) == null && !isUpgraded(session)) {
+                session.close();
+            }
+            else {
+                close(session, false, WebSocketFrame.PROTOCOL_ERROR);
+            }
+        }
+        else {
+            Log.error("WebSocketConnectionHandler reports unexpected exception for session: " +
+                    session, cause);
+        }
+    }
+
+    @Override
+    public void messageReceived(IoSession session, Object message) throws Exception {
+        if (message instanceof WebSocketHandshake) {
+            handshake(session, (WebSocketHandshake) message);
+            return;
+        }
+        WebSocketFrame frame = (WebSocketFrame) message;
+        switch (frame.getOpcode()) {
+            case WebSocketFrame.TEXT:
+                process(session, frame.getText());
+                break;
+            case WebSocketFrame.PING:
+                session.write(new WebSocketFrame(WebSocketFrame.PONG, frame.getPayload()));
+                break;
+            case WebSocketFrame.PONG:
+                // Ignore unsolicited pongs
+                break;
+            case WebSocketFrame.CLOSE:
+                // The client closed the connection without closing the stream first
+                close(session, false, WebSocketFrame.NORMAL_CLOSURE);
+                break;
+            default:
+                // XMPP is only exchanged using text messages
+                close(session, false, WebSocketFrame.UNSUPPORTED_DATA);
+        }
+    }
+
+    private void handshake(IoSession session, WebSocketHandshake handshake) throws Exception {
+        String response;
+        if (!handshake.isValid()) {
+            response = WebSocketHandshake.createErrorResponse(400, "Bad Request");
+        }
+        else if (!isServicePath(handshake.getPath())) {
+            response = WebSocketHandshake.createErrorResponse(404, "Not Found");
+        }
+        else if (!handshake.isXmppRequested()) {
+            Log.debug("Rejecting WebSocket client that did not request the xmpp sub-protocol: " +
+                    session);
+            response = WebSocketHandshake.createErrorResponse(400, "Bad Request");
+        }
+        else {
+            session.write(ByteBuffer.wrap(handshake.createAcceptResponse().getBytes("ISO-8859-1")));
+            if (MemoryBudget.getInstance().isExceeded()) {
+                // Refuse new connections until the memory buffered by existing sessions drops.
+                // Stream errors can only be sent once the connection was upgraded.
+                Log.debug("Memory budget exceeded. Closing new connection " + session);
+                closeWithError(session, StreamError.Condition.resource_constraint);
+            }
+            return;
+        }
+        session.write(ByteBuffer.wrap(response.getBytes("ISO-8859-1")))
+                .addListener(IoFutureListener.CLOSE);
+    }
+
+    private void process(IoSession session, String text) throws Exception {
+        WebSocketSession webSocketSession = (WebSocketSession) session.getAttribute(SESSION);
+        Message message;
+        try {
+            message = Message.parse(text);
+        }
+        catch (XmlPullParserException e) {
+            Log.debug("Closing WebSocket session due to malformed message: " + text, e);
+            closeWithError(session, StreamError.Condition.xml_not_well_formed);
+            return;
+        }
+
+        if (message.isFraming() && "open".equals(message.name)) {
+            if (webSocketSession == null) {
+                webSocketSession = createSession(session);
+            }
+            // The stream is also opened again after authenticating with SASL
+            webSocketSession.open(message.language);
+        }
+        else if (message.isFraming() && "close".equals(message.name)) {
+            close(session, true, WebSocketFrame.NORMAL_CLOSURE);
+        }
+        else if ("open".equals(message.name) || "close".equals(message.name)) {
+            Log.debug("Closing WebSocket session that used an invalid framing namespace: " +
+                    text);
+            closeWithError(session, StreamError.Condition.invalid_namespace);
+        }
+        else if (webSocketSession == null) {
+            Log.debug("Closing WebSocket session that sent a stanza before opening the stream: " +
+                    session);
+            close(session, false, WebSocketFrame.PROTOCOL_ERROR);
+        }
+        else {
+            // Stanzas are forwarded as they were sent by the client
+            ConnectionManager.getInstance().getServerSurrogate().send(text,
+                    webSocketSession.getStreamID());
+        }
+    }
+
+    private WebSocketSession createSession(IoSession session) {
+        ConnectionManager connectionManager = ConnectionManager.getInstance();
+        ServerSurrogate serverSurrogate = connectionManager.getServerSurrogate();
+        String streamID = Session.idFactory.createStreamID();
+        WebSocketSession webSocketSession = new WebSocketSession(connectionManager.getServerName(),
+                streamID, session);
+        session.setAttribute(SESSION, webSocketSession);
+        // Register that the new session is associated with the specified stream ID
+        Session.addSession(streamID, webSocketSession);
+        // Send to the server that a new client session has been created
+        InetAddress address = null;
+        if (session.getRemoteAddress() instanceof InetSocketAddress) {
+            address = ((InetSocketAddress) session.getRemoteAddress()).getAddress();
+        }
+        serverSurrogate.clientSessionCreated(streamID, address);
+        return webSocketSession;
+    }
+
+    private void closeWithError(IoSession session, StreamError.Condition condition) {
+        session.write(new StreamError(condition).toXML());
+        close(session, true, WebSocketFrame.NORMAL_CLOSURE);
+    }
+
+    private void close(IoSession session, boolean notifyClient, int status) {
+        WebSocketSession webSocketSession = (WebSocketSession) session.getAttribute(SESSION);
+        if (webSocketSession != null) {
+            webSocketSession.close(notifyClient, status);
+        }
+        else if (session.isConnected()) {
+            session.write(WebSocketFrame.close(status)).addListener(IoFutureListener.CLOSE);
+        }
+    }
+
+    private boolean isUpgraded(IoSession session) {
+        return session.getAttribute(WebSocketDecoder.UPGRADED) != null;
+    }
+
+    /**
+     * Returns true if the requested path is the path of the WebSocket service. Trailing
+     * slashes are ignored.
+     *
+     * @param path the requested path.
+     * @return true if the requested path is the path of the WebSocket service.
+     */
+    private static boolean isServicePath(String path) {
+        String servicePath = JiveGlobals.getXMLProperty("xmpp.websocket.path");
+        if (servicePath == null) {
+            servicePath = "/ws/";
+        }
+        return trimSlashes(servicePath).equals(trimSlashes(path));
+    }
+
+    private static String trimSlashes(String path) {
+        int end = path.length();
+        while (end > 0 && path.charAt(end - 1) == '/') {
+            end--;
+        }
+        return path.substring(0, end);
+    }
+
+    /**
+     * Element of a text message sent by a client.
+     */
+    static class Message {
+
+        private static final String XML_NAMESPACE = "http://www.w3.org/XML/1998/namespace";
+
+        final String name;
+        final String namespace;
+        final String language;
+
+        private Message(String name, String namespace, String language) {
+            this.name = name;
+            this.namespace = namespace;
+            this.language = language;
+        }
+
+        /**
+         * Returns true if the element belongs to the namespace of the <tt>open</tt> and
+         * <tt>close</tt> elements that frame the stream.
+         *
+         * @return true if the element belongs to the framing namespace.
+         */
+        boolean isFraming() {
+            return WebSocketSession.FRAMING_NAMESPACE.equals(namespace);
+        }
+
+        /**
+         * Parses a text message of a client. The message must be exactly one well-formed
+         * element optionally surrounded by whitespace. Anything else, such as a second element
+         * that follows the first one or an element that is not closed, makes the message
+         * invalid.
+         *
+         * @param text the text message of the client.
+         * @return the element of the message.
+         * @throws XmlPullParserException if the message is not a single well-formed element.
+         * @throws IOException if an error occurred while reading the message.
+         */
+        static Message parse(String text) throws XmlPullParserException, IOException {
+            XmlPullParser parser = ParserCache.getParser();
+            parser.setInput(new StringReader(text));
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.START_TAG) {
+                eventType = parser.next();
+            }
+            String name = parser.getName();
+            String namespace = parser.getNamespace();
+            String language = "en";
+            for (int i = 0; i < parser.getAttributeCount(); i++) {
+                if ("lang".equals(parser.getAttributeName(i)) &&
+                        XML_NAMESPACE.equals(parser.getAttributeNamespace(i))) {
+                    language = parser.getAttributeValue(i);
+                }
+            }
+            try {
+                while (eventType != XmlPullParser.END_TAG || parser.getDepth() != 1) {
+                    eventType = parser.next();
+                }
+            }
+            catch (EOFException e) {
+                throw new XmlPullParserException("Element of the message is not closed", parser,
+                        e);
+            }
+            // The parser does not expect the input to end so the rest of the message is
+            // checked directly instead of parsing until the end of the document
+            int end = ((MXParser) parser).getInputOffset();
+            for (int i = end; i < text.length(); i++) {
+                if (!Character.isWhitespace(text.charAt(i))) {
+                    throw new XmlPullParserException("Content found after the element of " +
+                            "the message at offset " + i);
+                }
+            }
+            return new Message(name, namespace, language);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.websocket;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.codec.CumulativeProtocolDecoder;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Decoder of WebSocket connections. The opening handshake of the client is decoded into a
+ * {@link WebSocketHandshake} and the data that follows it into {@link WebSocketFrame}s.
+ * Fragmented messages are reassembled so that each decoded text frame is a complete
+ * message. Control frames are decoded as soon as they are received even if they were sent
+ * in the middle of a fragmented message.
+ */
+public class WebSocketDecoder extends CumulativeProtocolDecoder {
+
+    static final String UPGRADED = "WEBSOCKET-UPGRADED";
+    private static final String FRAGMENTS = "WEBSOCKET-FRAGMENTS";
+
+    /**
+     * Max number of bytes of the opening handshake of a client.
+     */
+    private static final int MAX_HANDSHAKE_SIZE = 8192;
+
+    private final int maxMessageSize;
+
+    public WebSocketDecoder(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    @Override
+    protected boolean doDecode(IoSession session, ByteBuffer in, ProtocolDecoderOutput out)
+            throws Exception {
+        if (session.getAttribute(UPGRADED) == null) {
+            return decodeHandshake(session, in, out);
+        }
+        return decodeFrame(session, in, out);
+    }
+
+    private boolean decodeHandshake(IoSession session, ByteBuffer in, ProtocolDecoderOutput out)
+            throws Exception {
+        int start = in.position();
+        // Look for the empty line that ends the headers of the request
+        for (int i = start; i + 3 < in.limit(); i++) {
+            if (in.get(i) == '\r' && in.get(i + 1) == '\n' && in.get(i + 2) == '\r' &&
+                    in.get(i + 3) == '\n') {
+                byte[] request = new byte[i + 4 - start];
+                in.get(request);
+                session.setAttribute(UPGRADED, Boolean.TRUE);
+                out.write(WebSocketHandshake.parse(new String(request, "ISO-8859-1")));
+                return true;
+            }
+        }
+        if (in.remaining() > MAX_HANDSHAKE_SIZE) {
+            throw new ProtocolDecoderException("WebSocket handshake exceeds " +
+                    MAX_HANDSHAKE_SIZE + " bytes");
+        }
+        return false;
+    }
+
+    private boolean decodeFrame(IoSession session, ByteBuffer in, ProtocolDecoderOutput out)
+            throws Exception {
+        int start = in.position();
+        if (in.remaining() < 2) {
+            return false;
+        }
+        int first = in.get() & 0xFF;
+        int second = in.get() & 0xFF;
+        boolean fin = (first & 0x80) != 0;
+        int opcode = first & 0x0F;
+        long length = second & 0x7F;
+        if (length == 126) {
+            if (in.remaining() < 2) {
+                in.position(start);
+                return false;
+            }
+            length = in.getUnsignedShort();
+        }
+        else if (length == 127) {
+            if (in.remaining() < 8) {
+                in.position(start);
+                return false;
+            }
+            length = in.getLong();
+        }
+        if ((second & 0x80) == 0) {
+            throw new ProtocolDecoderException("WebSocket frame of client is not masked");
+        }
+        if (length < 0 || length > maxMessageSize) {
+            throw new ProtocolDecoderException("WebSocket frame exceeds " + maxMessageSize +
+                    " bytes");
+        }
+        if (in.remaining() < 4 + length) {
+            in.position(start);
+            return false;
+        }
+        byte[] mask = new byte[4];
+        in.get(mask);
+        byte[] payload = new byte[(int) length];
+        in.get(payload);
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] ^= mask[i & 3];
+        }
+
+        if (opcode >= WebSocketFrame.CLOSE) {
+            if (!fin) {
+                throw new ProtocolDecoderException("WebSocket control frame is fragmented");
+            }
+            out.write(new WebSocketFrame(opcode, payload));
+            return true;
+        }
+
+        Fragments fragments = (Fragments) session.getAttribute(FRAGMENTS);
+        if (opcode == WebSocketFrame.CONTINUATION) {
+            if (fragments == null) {
+                throw new ProtocolDecoderException("Unexpected WebSocket continuation frame");
+            }
+            if (fragments.data.size() + payload.length > maxMessageSize) {
+                throw new ProtocolDecoderException("WebSocket message exceeds " +
+                        maxMessageSize + " bytes");
+            }
+            fragments.data.write(payload, 0, payload.length);
+            if (fin) {
+                session.removeAttribute(FRAGMENTS);
+                out.write(new WebSocketFrame(fragments.opcode, fragments.data.toByteArray()));
+            }
+        }
+        else if (fragments != null) {
+            throw new ProtocolDecoderException("WebSocket message was interrupted by another");
+        }
+        else if (!fin) {
+            fragments = new Fragments(opcode);
+            fragments.data.write(payload, 0, payload.length);
+            session.setAttribute(FRAGMENTS, fragments);
+        }
+        else {
+            out.write(new WebSocketFrame(opcode, payload));
+        }
+        return true;
+    }
+
+    /**
+     * Fragments of a message that was not completely received.
+     */
+    private static class Fragments {
+        private final int opcode;
+        private final ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        Fragments(int opcode) {
+            this.opcode = opcode;
+        }
+    }
+}
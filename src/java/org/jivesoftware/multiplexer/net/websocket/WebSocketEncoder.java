@@ -0,0 +1,61 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.websocket;
+
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.codec.ProtocolEncoderAdapter;
+import org.apache.mina.filter.codec.ProtocolEncoderOutput;
+
+/**
+ * Encoder that frames the messages written to a WebSocket connection. Strings are sent as
+ * text frames. Frames sent by the server are never masked. ByteBuffers, such as the response
+ * to the opening handshake, are not encoded.
+ */
+public class WebSocketEncoder extends ProtocolEncoderAdapter {
+
+    public void encode(IoSession session, Object message, ProtocolEncoderOutput out)
+            throws Exception {
+        WebSocketFrame frame;
+        if (message instanceof String) {
+            frame = WebSocketFrame.text((String) message);
+        }
+        else {
+            frame = (WebSocketFrame) message;
+        }
+        byte[] payload = frame.getPayload();
+        ByteBuffer buffer = ByteBuffer.allocate(payload.length + 10, false);
+        buffer.put((byte) (0x80 | frame.getOpcode()));
+        if (payload.length < 126) {
+            buffer.put((byte) payload.length);
+        }
+        else if (payload.length <= 0xFFFF) {
+            buffer.put((byte) 126);
+            buffer.putShort((short) payload.length);
+        }
+        else {
+            buffer.put((byte) 127);
+            buffer.putLong(payload.length);
+        }
+        buffer.put(payload);
+        buffer.flip();
+        out.write(buffer);
+    }
+}
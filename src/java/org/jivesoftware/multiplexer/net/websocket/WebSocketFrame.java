@@ -0,0 +1,116 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.websocket;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Message of a WebSocket connection as defined by
+ * <a href="http://tools.ietf.org/html/rfc6455">RFC 6455</a>. Text messages that were
+ * fragmented by the client are reassembled by the {@link WebSocketDecoder} so each text
+ * frame contains a complete XML element as required by
+ * <a href="http://tools.ietf.org/html/rfc7395">RFC 7395</a>.
+ */
+public class WebSocketFrame {
+
+    public static final int CONTINUATION = 0x0;
+    public static final int TEXT = 0x1;
+    public static final int BINARY = 0x2;
+    public static final int CLOSE = 0x8;
+    public static final int PING = 0x9;
+    public static final int PONG = 0xA;
+
+    /**
+     * Status code of a close frame that closes the connection normally.
+     */
+    public static final int NORMAL_CLOSURE = 1000;
+    /**
+     * Status code of a close frame that closes the connection due to a protocol error.
+     */
+    public static final int PROTOCOL_ERROR = 1002;
+    /**
+     * Status code of a close frame that closes the connection due to binary data.
+     */
+    public static final int UNSUPPORTED_DATA = 1003;
+
+    private final int opcode;
+    private final byte[] payload;
+
+    public WebSocketFrame(int opcode, byte[] payload) {
+        this.opcode = opcode;
+        this.payload = payload;
+    }
+
+    /**
+     * Creates a text frame.
+     *
+     * @param text the text of the frame.
+     * @return the text frame.
+     */
+    public static WebSocketFrame text(String text) {
+        try {
+            return new WebSocketFrame(TEXT, text.getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Creates a close frame with the specified status code.
+     *
+     * @param status the status code of the close frame.
+     * @return the close frame.
+     */
+    public static WebSocketFrame close(int status) {
+        return new WebSocketFrame(CLOSE, new byte[] {(byte) (status >> 8), (byte) status});
+    }
+
+    public int getOpcode() {
+        return opcode;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /**
+     * Returns the payload of a text frame.
+     *
+     * @return the payload of a text frame.
+     */
+    public String getText() {
+        try {
+            return new String(payload, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns true if this is a control frame, i.e. a close, ping or pong frame.
+     *
+     * @return true if this is a control frame.
+     */
+    public boolean isControl() {
+        return opcode >= CLOSE;
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.websocket;
+
+import org.jivesoftware.util.StringUtils;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Opening handshake sent by a client to upgrade its HTTP connection to a WebSocket
+ * connection. The handshake is accepted when it is a valid version 13 handshake that
+ * requests the <tt>xmpp</tt> sub-protocol defined by
+ * <a href="http://tools.ietf.org/html/rfc7395">RFC 7395</a>.
+ */
+public class WebSocketHandshake {
+
+    /**
+     * GUID that is appended to the key of the client to compute the accept key.
+     */
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    static final String XMPP_PROTOCOL = "xmpp";
+
+    private final String method;
+    private final String path;
+    private final Map<String, String> headers;
+
+    private WebSocketHandshake(String method, String path, Map<String, String> headers) {
+        this.method = method;
+        this.path = path;
+        this.headers = headers;
+    }
+
+    /**
+     * Parses the request line and headers of an opening handshake.
+     *
+     * @param request the request line and headers of the handshake.
+     * @return the parsed handshake.
+     */
+    static WebSocketHandshake parse(String request) {
+        String[] lines = request.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        String method = requestLine[0];
+        String path = requestLine.length > 1 ? requestLine[1] : "";
+        int query = path.indexOf('?');
+        if (query != -1) {
+            path = path.substring(0, query);
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon == -1) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase();
+            String value = lines[i].substring(colon + 1).trim();
+            String previous = headers.get(name);
+            // Repeated headers are equivalent to a single comma separated header
+            headers.put(name, previous == null ? value : previous + ", " + value);
+        }
+        return new WebSocketHandshake(method, path, headers);
+    }
+
+    /**
+     * Returns the path of the request without its query string.
+     *
+     * @return the path of the request.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the value of a header of the request or <tt>null</tt> if the header is not
+     * present.
+     *
+     * @param name the case insensitive name of the header.
+     * @return the value of the header or null if the header is not present.
+     */
+    public String getHeader(String name) {
+        return headers.get(name.toLowerCase());
+    }
+
+    /**
+     * Returns true if the request is a version 13 WebSocket handshake.
+     *
+     * @return true if the request is a version 13 WebSocket handshake.
+     */
+    public boolean isValid() {
+        return "GET".equals(method) && "websocket".equalsIgnoreCase(getHeader("Upgrade")) &&
+                containsToken(getHeader("Connection"), "upgrade") &&
+                "13".equals(getHeader("Sec-WebSocket-Version")) &&
+                getHeader("Sec-WebSocket-Key") != null;
+    }
+
+    /**
+     * Returns true if the client requested the <tt>xmpp</tt> sub-protocol.
+     *
+     * @return true if the client requested the xmpp sub-protocol.
+     */
+    public boolean isXmppRequested() {
+        return containsToken(getHeader("Sec-WebSocket-Protocol"), XMPP_PROTOCOL);
+    }
+
+    /**
+     * Returns the response that accepts the handshake and the <tt>xmpp</tt> sub-protocol.
+     *
+     * @return the response that accepts the handshake.
+     */
+    public String createAcceptResponse() {
+        return "HTTP/1.1 101 Switching Protocols\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Accept: " + createAcceptKey(getHeader("Sec-WebSocket-Key")) + "\r\n" +
+                "Sec-WebSocket-Protocol: " + XMPP_PROTOCOL + "\r\n\r\n";
+    }
+
+    /**
+     * Returns the response that rejects a handshake.
+     *
+     * @param status the HTTP status code of the response.
+     * @param reason the reason phrase of the status code.
+     * @return the response that rejects the handshake.
+     */
+    static String createErrorResponse(int status, String reason) {
+        return "HTTP/1.1 " + status + " " + reason + "\r\n" +
+                "Sec-WebSocket-Version: 13\r\n" +
+                "Content-Length: 0\r\n" +
+                "Connection: close\r\n\r\n";
+    }
+
+    static String createAcceptKey(String key) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            return StringUtils.encodeBase64(digest.digest((key + ACCEPT_GUID).getBytes("UTF-8")));
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static boolean containsToken(String header, String token) {
+        if (header == null) {
+            return false;
+        }
+        for (String value : header.split(",")) {
+            if (token.equalsIgnoreCase(value.trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,196 @@
+/**
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2005-2008 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.websocket;
+
+import org.apache.mina.common.IoFutureListener;
+import org.apache.mina.common.IoSession;
+import org.dom4j.Element;
+import org.jivesoftware.multiplexer.ClientSession;
+import org.jivesoftware.multiplexer.ConnectionManager;
+import org.jivesoftware.multiplexer.ServerSurrogate;
+import org.jivesoftware.multiplexer.Session;
+import org.jivesoftware.util.StringUtils;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Session of a client connected using XMPP over WebSocket as specified in
+ * <a href="http://tools.ietf.org/html/rfc7395">RFC 7395</a>. Each stanza sent by the server
+ * is delivered to the client in its own text frame over the persistent connection of the
+ * client. Like HTTP binding sessions, the session does not parse the stream of the client.
+ * Stanzas of the client are forwarded to the server as they were received.
+ */
+public class WebSocketSession extends ClientSession {
+
+    static final String FRAMING_NAMESPACE = "urn:ietf:params:xml:ns:xmpp-framing";
+    private static final String CLIENT_NAMESPACE = " xmlns=\"jabber:client\"";
+
+    private final IoSession ioSession;
+    private final AtomicBoolean isClosed = new AtomicBoolean();
+
+    public WebSocketSession(String serverName, String streamID, IoSession ioSession) {
+        super(serverName, null, streamID);
+        this.ioSession = ioSession;
+    }
+
+    @Override
+    public long getWriteQueueBytes() {
+        return ioSession.getScheduledWriteBytes();
+    }
+
+    @Override
+    public boolean suspendReading() {
+        ioSession.suspendRead();
+        return true;
+    }
+
+    @Override
+    public void resumeReading() {
+        ioSession.resumeRead();
+    }
+
+    @Override
+    public String getAvailableStreamFeatures() {
+        ServerSurrogate serverSurrogate = ConnectionManager.getInstance().getServerSurrogate();
+        boolean authenticated = getStatus() == Session.STATUS_AUTHENTICATED;
+        // Features only depend on the state of the session so they are built once per state
+        String key = "websocket:" + authenticated;
+        String features = serverSurrogate.getStreamFeatures(key);
+        if (features != null) {
+            return features;
+        }
+        int generation = serverSurrogate.getStreamFeaturesGeneration();
+        StringBuilder sb = new StringBuilder(200);
+        if (!authenticated) {
+            // Include available SASL Mechanisms
+            sb.append(serverSurrogate.getSASLMechanisms(this));
+            // Advertise that the server supports Non-SASL Authentication
+            if (serverSurrogate.isNonSASLAuthEnabled()) {
+                sb.append("<auth xmlns=\"http://jabber.org/features/iq-auth\"/>");
+            }
+            // Advertise that the server supports In-Band Registration
+            if (serverSurrogate.isInbandRegEnabled()) {
+                sb.append("<register xmlns=\"http://jabber.org/features/iq-register\"/>");
+            }
+        }
+        else {
+            // If the session has been authenticated then offer resource binding
+            // and session establishment
+            sb.append("<bind xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\"/>");
+            sb.append("<session xmlns=\"urn:ietf:params:xml:ns:xmpp-session\"/>");
+        }
+        features = sb.toString();
+        serverSurrogate.cacheStreamFeatures(key, features, generation);
+        return features;
+    }
+
+    /**
+     * Sends the <tt>open</tt> element that starts or restarts the stream of the client
+     * followed by the available stream features.
+     *
+     * @param language the language of the stream.
+     */
+    void open(String language) {
+        StringBuilder sb = new StringBuilder(200);
+        sb.append("<open xmlns=\"").append(FRAMING_NAMESPACE).append("\" from=\"");
+        sb.append(getServerName());
+        sb.append("\" id=\"");
+        sb.append(getStreamID());
+        sb.append("\" xml:lang=\"");
+        sb.append(StringUtils.escapeForXML(language));
+        sb.append("\" version=\"");
+        sb.append(MAJOR_VERSION).append(".").append(MINOR_VERSION);
+        sb.append("\"/>");
+        write(sb.toString());
+
+        sb = new StringBuilder(490);
+        sb.append("<stream:features xmlns:stream=\"http://etherx.jabber.org/streams\">");
+        sb.append(getAvailableStreamFeatures());
+        sb.append("</stream:features>");
+        write(sb.toString());
+    }
+
+    @Override
+    public void deliver(Element stanza) {
+        // Until session is not authenticated we need to inspect server traffic
+        if (status != Session.STATUS_AUTHENTICATED && "success".equals(stanza.getName())) {
+            // Session has been authenticated (using SASL). Update status
+            setStatus(Session.STATUS_AUTHENTICATED);
+        }
+        String name = stanza.getName();
+        String xml = stanza.asXML();
+        if ("message".equals(name) || "presence".equals(name) || "iq".equals(name)) {
+            // Stanzas are qualified by the jabber:client namespace as required by RFC 7395
+            StringBuilder sb = new StringBuilder(xml.length() + CLIENT_NAMESPACE.length());
+            sb.append('<').append(name).append(CLIENT_NAMESPACE);
+            sb.append(xml, name.length() + 1, xml.length());
+            xml = sb.toString();
+        }
+        write(xml);
+    }
+
+    @Override
+    public boolean deliverRawStanza(String stanza) {
+        // Stanzas need to be parsed for rewriting their namespace
+        return false;
+    }
+
+    private void write(String text) {
+        if (!isClosed.get()) {
+            ioSession.write(text);
+        }
+    }
+
+    @Override
+    public void close() {
+        close(false);
+    }
+
+    @Override
+    public void close(boolean isServerShuttingDown) {
+        close(true, WebSocketFrame.NORMAL_CLOSURE);
+    }
+
+    /**
+     * Closes the session and informs the server that the session was closed.
+     *
+     * @param notifyClient true if the client has to be sent the <tt>close</tt> element.
+     * @param status the status code of the close frame that closes the connection.
+     */
+    void close(boolean notifyClient, int status) {
+        if (!isClosed.compareAndSet(false, true)) {
+            return;
+        }
+        this.status = STATUS_CLOSED;
+        removeSession(getStreamID());
+        ConnectionManager.getInstance().getServerSurrogate().clientSessionClosed(getStreamID());
+        if (ioSession.isConnected()) {
+            if (notifyClient) {
+                ioSession.write("<close xmlns=\"" + FRAMING_NAMESPACE + "\"/>");
+            }
+            ioSession.write(WebSocketFrame.close(status)).addListener(IoFutureListener.CLOSE);
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return isClosed.get();
+    }
+}
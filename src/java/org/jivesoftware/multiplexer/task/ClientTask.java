@@ -35,6 +35,16 @@ public abstract class ClientTask implements Runnable {
         this.streamID = streamID;
     }
 
+    /**
+     * Returns the stream ID assigned by the connection manager to the client session
+     * that requested this task.
+     *
+     * @return the stream ID of the client session that requested this task.
+     */
+    public String getStreamID() {
+        return streamID;
+    }
+
     /**
      * Execute the corresponding action when the server is not available.
      */
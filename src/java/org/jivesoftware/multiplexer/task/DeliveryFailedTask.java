@@ -32,9 +32,13 @@ import org.dom4j.Element;
  */
 public class DeliveryFailedTask extends ClientTask {
 
-    private Element stanza;
+    private String stanza;
 
     public DeliveryFailedTask(String streamID, Element stanza) {
+        this(streamID, stanza.asXML());
+    }
+
+    public DeliveryFailedTask(String streamID, String stanza) {
         super(streamID);
         this.stanza = stanza;
     }
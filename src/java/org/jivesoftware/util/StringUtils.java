@@ -1071,7 +1071,7 @@ public class StringUtils {
         }
         // Stringprep (node prep, resourceprep, etc).
         try {
-            if (!stringprepCache.containsKey(node)) {
+            if (node != null && !stringprepCache.containsKey(node)) {
                 node = Stringprep.nodeprep(node);
                 // Validate field is not greater than 1023 bytes. UTF-8 characters use two bytes.
                 if (node != null && node.length()*2 > 1023) {
@@ -1095,7 +1095,7 @@ public class StringUtils {
                 }
                 stringprepCache.put(domain, null);
             }
-            if (!stringprepCache.containsKey(resource)) {
+            if (resource != null && !stringprepCache.containsKey(resource)) {
                 resource = Stringprep.resourceprep(resource);
                 // Validate field is not greater than 1023 bytes. UTF-8 characters use two bytes.
                 if (resource != null && resource.length()*2 > 1023) {
@@ -0,0 +1,162 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import junit.framework.TestCase;
+import org.dom4j.Element;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Simple test of MemoryBudget.
+ */
+public class MemoryBudgetTest extends TestCase {
+
+    private static final long BUDGET = 1000;
+
+    private final MemoryBudget budget = MemoryBudget.getInstance();
+    private final List<TestSession> sessions = new ArrayList<TestSession>();
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (TestSession session : sessions) {
+            Session.removeSession(session.getStreamID());
+        }
+        // Forget the suspended sessions
+        budget.check(Long.MAX_VALUE);
+    }
+
+    public void testLargestParserBuffersAreSuspended() {
+        TestSession parsing = createSession(600, 0);
+        TestSession writing = createSession(100, 500);
+        TestSession other = createSession(300, 0);
+        budget.check(BUDGET);
+        assertTrue("Budget is not exceeded", budget.isExceeded());
+        assertEquals("Wrong total", 1500, budget.getTotalBytes());
+        // The excess over the low watermark is 700 bytes
+        assertTrue("Largest parser buffer was not suspended", parsing.suspended);
+        assertTrue("Second parser buffer was not suspended", other.suspended);
+        assertFalse("Suspending did not stop once the excess was covered", writing.suspended);
+        assertEquals("Wrong number of suspended sessions", 2, budget.getSuspendedSessions());
+    }
+
+    public void testSuspendedSessionsAreSubtractedFromExcess() {
+        createSession(600, 0);
+        createSession(300, 0);
+        TestSession writing = createSession(100, 500);
+        budget.check(BUDGET);
+        assertFalse("Session was suspended", writing.suspended);
+        // Nothing drained yet but the suspended sessions already cover the excess
+        budget.check(BUDGET);
+        budget.check(BUDGET);
+        assertTrue("Budget is not exceeded", budget.isExceeded());
+        assertFalse("Session was suspended while others were draining", writing.suspended);
+        assertEquals("Wrong number of suspended sessions", 2, budget.getSuspendedSessions());
+    }
+
+    public void testEmptyParserBufferIsNotSuspended() {
+        TestSession writing = createSession(0, 2000);
+        budget.check(BUDGET);
+        assertTrue("Budget is not exceeded", budget.isExceeded());
+        assertFalse("Session with an empty parser buffer was suspended", writing.suspended);
+    }
+
+    public void testReadingResumesBelowLowWatermark() {
+        TestSession parsing = createSession(1200, 0);
+        budget.check(BUDGET);
+        assertTrue("Session was not suspended", parsing.suspended);
+        parsing.read = 900;
+        budget.check(BUDGET);
+        assertTrue("Session was resumed above the low watermark", parsing.suspended);
+        parsing.read = 700;
+        budget.check(BUDGET);
+        assertFalse("Budget is exceeded", budget.isExceeded());
+        assertFalse("Session was not resumed", parsing.suspended);
+        assertEquals("Sessions are still suspended", 0, budget.getSuspendedSessions());
+    }
+
+    private TestSession createSession(long read, long write) {
+        TestSession session = new TestSession("budget" + sessions.size(), read, write);
+        Session.addSession(session.getStreamID(), session);
+        sessions.add(session);
+        return session;
+    }
+
+    /**
+     * Session that reports fixed buffer sizes.
+     */
+    private static class TestSession extends Session {
+
+        private long read;
+        private final long write;
+        private boolean suspended;
+
+        TestSession(String streamID, long read, long write) {
+            super("example.com", null, streamID);
+            this.read = read;
+            this.write = write;
+        }
+
+        @Override
+        public long getReadBufferBytes() {
+            return read;
+        }
+
+        @Override
+        public long getWriteQueueBytes() {
+            return write;
+        }
+
+        @Override
+        public boolean suspendReading() {
+            suspended = true;
+            return true;
+        }
+
+        @Override
+        public void resumeReading() {
+            suspended = false;
+        }
+
+        @Override
+        public String getAvailableStreamFeatures() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void close(boolean isServerShuttingDown) {
+        }
+
+        @Override
+        public void deliver(Element stanza) {
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+    }
+}
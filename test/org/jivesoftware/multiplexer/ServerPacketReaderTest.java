@@ -0,0 +1,185 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer;
+
+import junit.framework.TestCase;
+import org.dom4j.Element;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simple test of ServerPacketReader.
+ */
+public class ServerPacketReaderTest extends TestCase {
+
+    /**
+     * Number of stanzas queued by the first reader. The queue is processed in more
+     * than one run so the task has to be executed again after the reader was shut down.
+     */
+    private static final int QUEUED = 60;
+
+    /**
+     * Max number of stanzas of a session that a task processes in one run.
+     */
+    private static final int PER_RUN = 50;
+
+    private TestSession session;
+    private final List<ServerPacketReader> readers = new ArrayList<ServerPacketReader>();
+
+    @Override
+    protected void setUp() throws Exception {
+        session = new TestSession("reader");
+        Session.addSession(session.getStreamID(), session);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Session.removeSession(session.getStreamID());
+        for (ServerPacketReader reader : readers) {
+            reader.shutdown();
+        }
+    }
+
+    public void testQueueIsHandedToReaderThatQueuedLastStanza() throws Exception {
+        ServerPacketReader first = createReader("first");
+        ServerPacketReader second = createReader("second");
+        session.expect(QUEUED + 1);
+        for (int i = 0; i < QUEUED; i++) {
+            first.process(createRoute(i));
+        }
+        assertTrue("First stanza was not delivered", session.blocked.await(5, TimeUnit.SECONDS));
+        second.process(createRoute(QUEUED));
+        // Shut down the reader while its task is processing the queue of the session
+        first.shutdown();
+        session.release.countDown();
+        assertTrue("Queued stanzas were not delivered",
+                session.delivered.await(5, TimeUnit.SECONDS));
+        assertDeliveredInOrder(QUEUED + 1);
+    }
+
+    public void testQueueIsProcessedWhenAnotherReaderQueuesStanza() throws Exception {
+        ServerPacketReader first = createReader("first");
+        session.expect(PER_RUN);
+        for (int i = 0; i < QUEUED; i++) {
+            first.process(createRoute(i));
+        }
+        assertTrue("First stanza was not delivered", session.blocked.await(5, TimeUnit.SECONDS));
+        // Shut down the reader while its task is processing the queue of the session
+        first.shutdown();
+        session.release.countDown();
+        assertTrue("First run was not delivered", session.delivered.await(5, TimeUnit.SECONDS));
+        // Stanzas left in the queue are processed once another reader queues a stanza
+        session.expect(QUEUED + 1);
+        ServerPacketReader second = createReader("second");
+        second.process(createRoute(QUEUED));
+        assertTrue("Queued stanzas were not delivered",
+                session.delivered.await(5, TimeUnit.SECONDS));
+        assertDeliveredInOrder(QUEUED + 1);
+    }
+
+    private ServerPacketReader createReader(String name) {
+        ServerPacketReader reader = new ServerPacketReader(null, "manager/" + name);
+        readers.add(reader);
+        return reader;
+    }
+
+    private String createRoute(int id) {
+        return "<route streamid=\"" + session.getStreamID() + "\" from=\"montague.lit\">" +
+                "<message id=\"" + id + "\"/></route>";
+    }
+
+    private void assertDeliveredInOrder(int count) {
+        List<String> stanzas = session.getStanzas();
+        assertEquals("Wrong number of delivered stanzas", count, stanzas.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("Stanza delivered out of order", "<message id=\"" + i + "\"/>",
+                    stanzas.get(i));
+        }
+    }
+
+    private static class TestSession extends Session {
+
+        private final List<String> stanzas = new ArrayList<String>();
+        private final CountDownLatch blocked = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile CountDownLatch delivered;
+        private volatile int expected;
+
+        TestSession(String streamID) {
+            super("example.com", null, streamID);
+        }
+
+        void expect(int count) {
+            expected = count;
+            delivered = new CountDownLatch(1);
+        }
+
+        synchronized List<String> getStanzas() {
+            return new ArrayList<String>(stanzas);
+        }
+
+        @Override
+        public boolean deliverRawStanza(String stanza) {
+            if (stanzas.isEmpty()) {
+                // Keep the task busy until the test shuts down the reader
+                blocked.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (this) {
+                stanzas.add(stanza);
+                if (stanzas.size() == expected) {
+                    delivered.countDown();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String getAvailableStreamFeatures() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void close(boolean isServerShuttingDown) {
+        }
+
+        @Override
+        public void deliver(Element stanza) {
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import junit.framework.TestCase;
+import org.apache.mina.common.ByteBuffer;
+
+/**
+ * Simple test of PooledBufferAllocator.
+ */
+public class PooledBufferAllocatorTest extends TestCase {
+
+    private PooledBufferAllocator allocator;
+
+    @Override
+    protected void setUp() throws Exception {
+        allocator = new PooledBufferAllocator(60);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        allocator.dispose();
+    }
+
+    public void testReleasedBufferIsReused() throws Exception {
+        ByteBuffer buffer = allocator.allocate(300, false);
+        java.nio.ByteBuffer nioBuffer = buffer.buf();
+        buffer.put((byte) 1);
+        buffer.release();
+        ByteBuffer reused = allocator.allocate(300, false);
+        assertSame("Released buffer was not reused", nioBuffer, reused.buf());
+        assertEquals("Reused buffer was not cleared", 0, reused.position());
+        assertEquals("Wrong number of allocations", 2, allocator.getAllocations());
+        assertEquals("Wrong number of allocated bytes", 600, allocator.getAllocatedBytes());
+    }
+
+    public void testExpandedBufferKeepsContent() throws Exception {
+        ByteBuffer buffer = allocator.allocate(16, false);
+        buffer.setAutoExpand(true);
+        for (int i = 0; i < 1000; i++) {
+            buffer.put((byte) i);
+        }
+        buffer.flip();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("Wrong content after expanding", (byte) i, buffer.get());
+        }
+        buffer.release();
+    }
+
+    public void testWrappedBufferIsNotPooled() throws Exception {
+        java.nio.ByteBuffer nioBuffer = java.nio.ByteBuffer.allocate(512);
+        ByteBuffer wrapped = allocator.wrap(nioBuffer);
+        assertFalse("Wrapped buffer is pooled", wrapped.isPooled());
+        wrapped.release();
+        assertNotSame("Wrapped buffer was reused", nioBuffer, allocator.allocate(512, false).buf());
+        assertEquals("Wrong number of wraps", 1, allocator.getWraps());
+    }
+}
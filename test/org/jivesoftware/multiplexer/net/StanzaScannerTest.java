@@ -0,0 +1,108 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import junit.framework.TestCase;
+
+/**
+ * Simple test of StanzaScanner.
+ */
+public class StanzaScannerTest extends TestCase {
+
+    public void testMetadata() throws Exception {
+        StanzaScanner scanner = StanzaScanner.scan(
+                "<message to=\"juliet@capulet.lit/balcony\" id='m&amp;1' type=\"chat\">" +
+                "<body>Wherefore art thou, Romeo? &lt;3</body></message>");
+        assertEquals("Wrong root element", "message", scanner.getName());
+        assertEquals("Wrong to attribute", "juliet@capulet.lit/balcony", scanner.getTo());
+        assertEquals("Wrong id attribute", "m&1", scanner.getId());
+    }
+
+    public void testMissingAttributes() throws Exception {
+        StanzaScanner scanner = StanzaScanner.scan("<presence/>");
+        assertEquals("Wrong root element", "presence", scanner.getName());
+        assertNull("Wrong to attribute", scanner.getTo());
+        assertNull("Wrong id attribute", scanner.getId());
+    }
+
+    public void testChildAttributesAreIgnored() throws Exception {
+        StanzaScanner scanner = StanzaScanner.scan(
+                "<iq type='get'><query xmlns='jabber:iq:roster' to='a@b' id='c'/></iq>");
+        assertEquals("Wrong root element", "iq", scanner.getName());
+        assertNull("Wrong to attribute", scanner.getTo());
+        assertNull("Wrong id attribute", scanner.getId());
+    }
+
+    public void testWellFormed() throws Exception {
+        StanzaScanner.scan("<message><!-- comment --><body><![CDATA[<not a tag>]]></body>" +
+                "<x:y xmlns:x='urn:x' x:z='1'>&#x41;&#66;</x:y></message>");
+        StanzaScanner.scan("<iq xml:lang='en' > <query  xmlns='jabber:iq:version' /> </iq>");
+    }
+
+    public void testCharacterReferences() throws Exception {
+        StanzaScanner scanner = StanzaScanner.scan(
+                "<message id='&#x9;&#10;&#x20;&#xD7FF;&#xE000;&#xFFFD;&#x10000;&#x10FFFF;'/>");
+        assertEquals("Wrong id attribute", "\t\n \uD7FF\uE000\uFFFD" +
+                new String(Character.toChars(0x10000)) + new String(Character.toChars(0x10FFFF)),
+                scanner.getId());
+    }
+
+    public void testNotWellFormed() throws Exception {
+        String[] stanzas = {
+                "<message><body></message></body>",
+                "<message><body>",
+                "<message></message><message/>",
+                "<message to='a' to='b'/>",
+                "<message to=a/>",
+                "<message to='a'id='b'/>",
+                "<message to='<'/>",
+                "<message>&foo;</message>",
+                "<message>&#xZZ;</message>",
+                "<message>&#x;</message>",
+                "<message>&#+65;</message>",
+                "<message>&#-65;</message>",
+                "<message>&#0;</message>",
+                "<message>&#x0;</message>",
+                "<message>&#x1F;</message>",
+                "<message>&#xD800;</message>",
+                "<message>&#xDFFF;</message>",
+                "<message>&#55296;</message>",
+                "<message>&#xFFFE;</message>",
+                "<message>&#x110000;</message>",
+                "<message to='&#xDC00;'/>",
+                "<message><x:y/></message>",
+                "<message><x:y xmlns:x='urn:x'/><x:y/></message>",
+                "<!DOCTYPE message><message/>",
+                "text<message/>",
+                "<message/>text",
+                "<1message/>",
+        };
+        for (String stanza : stanzas) {
+            try {
+                StanzaScanner.scan(stanza);
+                fail("Stanza is not well-formed: " + stanza);
+            }
+            catch (XMLNotWellFormedException e) {
+                // Expected exception
+            }
+        }
+    }
+}
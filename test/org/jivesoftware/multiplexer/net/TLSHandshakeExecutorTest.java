@@ -0,0 +1,179 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import junit.framework.TestCase;
+import org.apache.mina.common.IoFilter;
+import org.apache.mina.common.IoFilterChain;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.SSLFilter;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simple test of TLSHandshakeExecutor.
+ */
+public class TLSHandshakeExecutorTest extends TestCase {
+
+    private TLSHandshakeExecutor executor;
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    protected void setUp() throws Exception {
+        executor = TLSHandshakeExecutor.getInstance();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        TLSHandshakeExecutor.shutdown();
+    }
+
+    public void testEventsAreQueuedUntilHandshakeCompletes() throws Exception {
+        TestSession session = new TestSession();
+        final CountDownLatch processed = new CountDownLatch(3);
+        IoFilter.NextFilter nextFilter = createNextFilter(processed, null);
+        executor.onPostAdd(createChain(session.ioSession), "handshake", nextFilter);
+
+        executor.messageReceived(nextFilter, session.ioSession, "a");
+        executor.messageReceived(nextFilter, session.ioSession, "b");
+        // The SSLFilter establishes the TLS session while processing the handshake
+        session.attributes.put(SSLFilter.SSL_SESSION, Boolean.TRUE);
+        executor.messageReceived(nextFilter, session.ioSession, "c");
+        assertTrue("Queued events were not processed", processed.await(5, TimeUnit.SECONDS));
+        // Wait until the handshake thread noticed that the handshake is complete
+        for (int i = 0; i < 100 && sum(executor.getLatencyCounts()) == 0; i++) {
+            Thread.sleep(10);
+        }
+        executor.messageReceived(nextFilter, session.ioSession, "d");
+
+        String pool = "TLS handshake thread";
+        String current = Thread.currentThread().getName();
+        assertEquals("Wrong events", 4, events.size());
+        assertTrue("Event was not processed by the pool", events.get(0).startsWith("a:" + pool));
+        assertTrue("Event was not processed by the pool", events.get(1).startsWith("b:" + pool));
+        assertTrue("Event was not processed by the pool", events.get(2).startsWith("c:" + pool));
+        assertEquals("Event was not processed by the current thread", "d:" + current,
+                events.get(3));
+        assertEquals("Latency was not recorded", 1, sum(executor.getLatencyCounts()));
+    }
+
+    public void testHandshakesAreRefusedWhenQueueIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        IoFilter.NextFilter nextFilter = createNextFilter(null, release);
+        List<TestSession> sessions = new ArrayList<TestSession>();
+        // Handshakes block the threads of the pool until the queue overflows
+        for (int i = 0; i < 100000 && executor.getRejectedHandshakes() == 0; i++) {
+            TestSession session = new TestSession();
+            executor.onPostAdd(createChain(session.ioSession), "handshake", nextFilter);
+            executor.messageReceived(nextFilter, session.ioSession, "hello");
+            sessions.add(session);
+        }
+        assertEquals("No handshake was refused", 1, executor.getRejectedHandshakes());
+        TestSession refused = sessions.get(sessions.size() - 1);
+        assertTrue("Refused connection was not closed", refused.closed);
+        for (int i = 0; i < sessions.size() - 1; i++) {
+            assertFalse("Queued connection was closed", sessions.get(i).closed);
+        }
+        // Events of the refused connection are not queued so that it can be closed
+        int before = events.size();
+        executor.sessionClosed(nextFilter, refused.ioSession);
+        assertEquals("Event of refused connection was queued", before + 1, events.size());
+        release.countDown();
+    }
+
+    private static long sum(long[] counts) {
+        long sum = 0;
+        for (long count : counts) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    private IoFilter.NextFilter createNextFilter(final CountDownLatch processed,
+            final CountDownLatch release) {
+        return (IoFilter.NextFilter) Proxy.newProxyInstance(
+                IoFilter.NextFilter.class.getClassLoader(),
+                new Class<?>[]{IoFilter.NextFilter.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws InterruptedException {
+                        String event = "messageReceived".equals(method.getName()) ?
+                                (String) args[1] : method.getName();
+                        events.add(event + ":" + Thread.currentThread().getName());
+                        if (processed != null) {
+                            processed.countDown();
+                        }
+                        if (release != null && Thread.currentThread().getName()
+                                .startsWith("TLS handshake thread")) {
+                            release.await();
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static IoFilterChain createChain(final IoSession session) {
+        return (IoFilterChain) Proxy.newProxyInstance(IoFilterChain.class.getClassLoader(),
+                new Class<?>[]{IoFilterChain.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return "getSession".equals(method.getName()) ? session : null;
+                    }
+                });
+    }
+
+    /**
+     * Session of a connection that records whether it was closed.
+     */
+    private static class TestSession {
+
+        private final Map<Object, Object> attributes =
+                Collections.synchronizedMap(new HashMap<Object, Object>());
+        private volatile boolean closed;
+        private final IoSession ioSession = (IoSession) Proxy.newProxyInstance(
+                IoSession.class.getClassLoader(), new Class<?>[]{IoSession.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if ("getAttribute".equals(name)) {
+                            return attributes.get(args[0]);
+                        }
+                        if ("setAttribute".equals(name)) {
+                            return attributes.put(args[0], args[1]);
+                        }
+                        if ("removeAttribute".equals(name)) {
+                            return attributes.remove(args[0]);
+                        }
+                        if ("close".equals(name)) {
+                            closed = true;
+                        }
+                        return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import junit.framework.TestCase;
+import org.apache.mina.common.IoFilter;
+import org.apache.mina.common.IoFilterChain;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.SSLFilter;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Simple test of TLSSessionCache.
+ */
+public class TLSSessionCacheTest extends TestCase {
+
+    private final List<Object> passed = new ArrayList<Object>();
+
+    public void testHandshakesAreCounted() throws Exception {
+        long full = TLSSessionCache.getFullHandshakes();
+        long abbreviated = TLSSessionCache.getAbbreviatedHandshakes();
+        long now = System.currentTimeMillis();
+        // Sessions created after the handshake started were negotiated by a full handshake
+        secure(now + 60000);
+        secure(now + 60000);
+        secure(now - 60000);
+        assertEquals("Wrong full handshakes", full + 2, TLSSessionCache.getFullHandshakes());
+        assertEquals("Wrong abbreviated handshakes", abbreviated + 1,
+                TLSSessionCache.getAbbreviatedHandshakes());
+        assertEquals("Wrong hit rate", 1.0 / 3, TLSSessionCache.getHitRate(), 0.001);
+        assertTrue("Notifications were passed on", passed.isEmpty());
+    }
+
+    public void testMessagesArePassedOn() throws Exception {
+        IoFilter tracker = TLSSessionCache.getHandshakeTracker();
+        IoSession session = createSession();
+        IoFilter.NextFilter nextFilter = createNextFilter();
+        tracker.onPostAdd(createChain(session), "tlsStats", nextFilter);
+        assertEquals("Notifications were not requested", Boolean.TRUE,
+                session.getAttribute(SSLFilter.USE_NOTIFICATION));
+        tracker.messageReceived(nextFilter, session, "<presence/>");
+        tracker.messageReceived(nextFilter, session, SSLFilter.SESSION_UNSECURED);
+        assertEquals("Wrong messages passed on", 1, passed.size());
+        assertEquals("Wrong message passed on", "<presence/>", passed.get(0));
+    }
+
+    public void testCacheIsBounded() throws Exception {
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, null, null);
+        TLSSessionCache.configure(context);
+        SSLSessionContext sessionContext = context.getServerSessionContext();
+        assertEquals("Wrong cache size", TLSSessionCache.getCacheSize(),
+                sessionContext.getSessionCacheSize());
+        assertEquals("Wrong cache timeout", TLSSessionCache.getCacheTimeout(),
+                sessionContext.getSessionTimeout());
+    }
+
+    private void secure(final long creationTime) throws Exception {
+        IoFilter tracker = TLSSessionCache.getHandshakeTracker();
+        IoSession session = createSession();
+        IoFilter.NextFilter nextFilter = createNextFilter();
+        tracker.onPostAdd(createChain(session), "tlsStats", nextFilter);
+        session.setAttribute(SSLFilter.SSL_SESSION, Proxy.newProxyInstance(
+                SSLSession.class.getClassLoader(), new Class<?>[]{SSLSession.class},
+                new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return "getCreationTime".equals(method.getName()) ? creationTime : null;
+                    }
+                }));
+        tracker.messageReceived(nextFilter, session, SSLFilter.SESSION_SECURED);
+    }
+
+    private IoFilter.NextFilter createNextFilter() {
+        return (IoFilter.NextFilter) Proxy.newProxyInstance(
+                IoFilter.NextFilter.class.getClassLoader(),
+                new Class<?>[]{IoFilter.NextFilter.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("messageReceived".equals(method.getName())) {
+                            passed.add(args[1]);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static IoFilterChain createChain(final IoSession session) {
+        return (IoFilterChain) Proxy.newProxyInstance(IoFilterChain.class.getClassLoader(),
+                new Class<?>[]{IoFilterChain.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        return "getSession".equals(method.getName()) ? session : null;
+                    }
+                });
+    }
+
+    private static IoSession createSession() {
+        final Map<Object, Object> attributes = new HashMap<Object, Object>();
+        return (IoSession) Proxy.newProxyInstance(IoSession.class.getClassLoader(),
+                new Class<?>[]{IoSession.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if ("getAttribute".equals(name)) {
+                            return attributes.get(args[0]);
+                        }
+                        if ("setAttribute".equals(name)) {
+                            return attributes.put(args[0], args[1]);
+                        }
+                        if ("removeAttribute".equals(name)) {
+                            return attributes.remove(args[0]);
+                        }
+                        return null;
+                    }
+                });
+    }
+}
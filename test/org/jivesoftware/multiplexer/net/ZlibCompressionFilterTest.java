@@ -0,0 +1,197 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net;
+
+import junit.framework.TestCase;
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoFilter;
+import org.apache.mina.common.IoFilterChain;
+import org.apache.mina.common.IoSession;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Simple test of ZlibCompressionFilter.
+ */
+public class ZlibCompressionFilterTest extends TestCase {
+
+    private static final String STANZA = "<message to='juliet@capulet.lit/balcony' " +
+            "from='romeo@montague.lit/orchard' type='chat'><body>Wherefore art thou, " +
+            "Romeo?</body></message>";
+
+    public void testRoundTripForEachLevelAndWindow() throws Exception {
+        for (int level = 0; level <= 9; level++) {
+            for (int windowBits = 9; windowBits <= 15; windowBits++) {
+                Endpoint sender = new Endpoint(new ZlibCompressionFilter(level, windowBits));
+                Endpoint receiver = new Endpoint(new ZlibCompressionFilter(6, 15));
+                for (int i = 0; i < 20; i++) {
+                    String text = STANZA + i;
+                    sender.write(text);
+                    // Each write is flushed so that it can be inflated as soon as it arrives
+                    assertEquals("Wrong data for level " + level + " and window " + windowBits,
+                            text, receiver.receive(sender.written.remove(0)));
+                }
+                ZlibCompressionFilter.CompressionStats stats =
+                        ZlibCompressionFilter.getStats(sender.session);
+                assertTrue("Plain bytes were not counted", stats.getBytesWritten() > 0);
+                if (level > 0) {
+                    assertTrue("Data was not compressed at level " + level,
+                            stats.getCompressedBytesWritten() < stats.getBytesWritten());
+                }
+            }
+        }
+    }
+
+    public void testConcurrentWritesAreNotReordered() throws Exception {
+        final Endpoint sender = new Endpoint(new ZlibCompressionFilter(6, 12));
+        final int threads = 8;
+        final int writes = 200;
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int i = 0; i < writes; i++) {
+                            sender.write("<m t='" + thread + "' i='" + i + "'/>");
+                        }
+                    }
+                    catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            writer.start();
+            writers.add(writer);
+        }
+        start.countDown();
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertTrue("Writes failed: " + errors, errors.isEmpty());
+
+        // Compressed chunks were passed on in the order they were deflated so inflating them
+        // in that order has to return every stanza intact
+        Endpoint receiver = new Endpoint(new ZlibCompressionFilter(6, 15));
+        StringBuilder inflated = new StringBuilder();
+        for (ByteBuffer chunk : sender.written) {
+            inflated.append(receiver.receive(chunk));
+        }
+        Set<String> stanzas = new HashSet<String>();
+        int[] next = new int[threads];
+        for (String stanza : inflated.toString().split("(?<=/>)")) {
+            assertTrue("Duplicated stanza " + stanza, stanzas.add(stanza));
+            int thread = Integer.parseInt(stanza.replaceAll("^<m t='(\\d+)'.*", "$1"));
+            assertEquals("Stanzas of a thread were reordered",
+                    "<m t='" + thread + "' i='" + next[thread]++ + "'/>", stanza);
+        }
+        assertEquals("Stanzas were lost", threads * writes, stanzas.size());
+    }
+
+    /**
+     * Session with a compression filter that records the buffers passed on by the filter.
+     */
+    private static class Endpoint {
+
+        private final ZlibCompressionFilter filter;
+        private final IoSession session = createSession();
+        private final List<ByteBuffer> written =
+                Collections.synchronizedList(new ArrayList<ByteBuffer>());
+        private final List<ByteBuffer> received = new ArrayList<ByteBuffer>();
+        private final IoFilter.NextFilter nextFilter;
+
+        Endpoint(ZlibCompressionFilter filter) {
+            this.filter = filter;
+            nextFilter = (IoFilter.NextFilter) Proxy.newProxyInstance(
+                    IoFilter.NextFilter.class.getClassLoader(),
+                    new Class<?>[]{IoFilter.NextFilter.class}, new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if ("filterWrite".equals(method.getName())) {
+                                written.add((ByteBuffer) ((IoFilter.WriteRequest) args[1])
+                                        .getMessage());
+                            }
+                            else if ("messageReceived".equals(method.getName())) {
+                                received.add((ByteBuffer) args[1]);
+                            }
+                            return null;
+                        }
+                    });
+            IoFilterChain chain = (IoFilterChain) Proxy.newProxyInstance(
+                    IoFilterChain.class.getClassLoader(), new Class<?>[]{IoFilterChain.class},
+                    new InvocationHandler() {
+                        public Object invoke(Object proxy, Method method, Object[] args) {
+                            if ("getSession".equals(method.getName())) {
+                                return session;
+                            }
+                            return "contains".equals(method.getName()) ? Boolean.FALSE : null;
+                        }
+                    });
+            filter.onPreAdd(chain, "compression", nextFilter);
+        }
+
+        void write(String text) throws Exception {
+            filter.filterWrite(nextFilter, session,
+                    new IoFilter.WriteRequest(ByteBuffer.wrap(text.getBytes("UTF-8"))));
+        }
+
+        String receive(ByteBuffer compressed) throws Exception {
+            filter.messageReceived(nextFilter, session, compressed);
+            ByteBuffer buffer = received.remove(0);
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return new String(data, "UTF-8");
+        }
+    }
+
+    private static IoSession createSession() {
+        final Map<Object, Object> attributes = new HashMap<Object, Object>();
+        return (IoSession) Proxy.newProxyInstance(IoSession.class.getClassLoader(),
+                new Class<?>[]{IoSession.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if ("getAttribute".equals(name)) {
+                            return attributes.get(args[0]);
+                        }
+                        if ("setAttribute".equals(name)) {
+                            return attributes.put(args[0], args[1]);
+                        }
+                        if ("removeAttribute".equals(name)) {
+                            return attributes.remove(args[0]);
+                        }
+                        return null;
+                    }
+                });
+    }
+}
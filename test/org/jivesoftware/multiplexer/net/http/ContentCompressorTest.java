@@ -0,0 +1,123 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.http;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.ZipException;
+
+/**
+ * Simple test of ContentCompressor.
+ */
+public class ContentCompressorTest extends TestCase {
+
+    private static final String BODY = "<body xmlns='http://jabber.org/protocol/httpbind'>" +
+            "<message xmlns='jabber:client' to='juliet@capulet.lit'><body>Wherefore art thou, " +
+            "Romeo?</body></message><message xmlns='jabber:client' to='juliet@capulet.lit'>" +
+            "<body>Wherefore art thou, Romeo?</body></message></body>";
+
+    public void testAcceptedEncoding() throws Exception {
+        assertNull("Missing header", ContentCompressor.getAcceptedEncoding(null));
+        assertNull("Unsupported coding", ContentCompressor.getAcceptedEncoding("br, identity"));
+        assertEquals("Gzip is preferred", "gzip",
+                ContentCompressor.getAcceptedEncoding("deflate, gzip;q=0.5"));
+        assertEquals("Refused coding", "deflate",
+                ContentCompressor.getAcceptedEncoding("GZIP;q=0, Deflate"));
+        assertNull("Refused coding", ContentCompressor.getAcceptedEncoding("gzip;q=0.0"));
+    }
+
+    public void testGzipRoundTrip() throws Exception {
+        assertRoundTrip("gzip");
+    }
+
+    public void testDeflateRoundTrip() throws Exception {
+        assertRoundTrip("deflate");
+    }
+
+    public void testIdentity() throws Exception {
+        InputStream request = new ByteArrayInputStream(new byte[0]);
+        assertSame("Stream was wrapped", request,
+                ContentCompressor.getDecompressedStream(request, null));
+        assertSame("Stream was wrapped", request,
+                ContentCompressor.getDecompressedStream(request, "identity"));
+    }
+
+    public void testTruncatedContent() throws Exception {
+        byte[] compressed = compress("gzip", BODY.getBytes("UTF-8"));
+        InputStream input = ContentCompressor.getDecompressedStream(
+                new ByteArrayInputStream(Arrays.copyOf(compressed, compressed.length / 2)), "gzip");
+        try {
+            read(input);
+            fail("Truncated content was decompressed");
+        }
+        catch (EOFException e) {
+            // Expected exception
+        }
+    }
+
+    public void testCorruptContent() throws Exception {
+        try {
+            read(ContentCompressor.getDecompressedStream(
+                    new ByteArrayInputStream(BODY.getBytes("UTF-8")), "gzip"));
+            fail("Content that is not compressed was decompressed");
+        }
+        catch (ZipException e) {
+            // Expected exception
+        }
+    }
+
+    private void assertRoundTrip(String encoding) throws Exception {
+        byte[] bytes = BODY.getBytes("UTF-8");
+        long responses = ContentCompressor.getCompressedResponses();
+        byte[] compressed = compress(encoding, bytes);
+        assertTrue("Content was not compressed", compressed.length < bytes.length);
+        assertEquals("Response was not counted", responses + 1,
+                ContentCompressor.getCompressedResponses());
+        // The compressor of the thread is reused
+        compress(encoding, new byte[100]);
+        assertEquals("Wrong decompressed content", BODY, new String(read(
+                ContentCompressor.getDecompressedStream(new ByteArrayInputStream(compressed),
+                        " " + encoding.toUpperCase() + " ")), "UTF-8"));
+    }
+
+    private static byte[] compress(String encoding, byte[] bytes) {
+        ContentCompressor compressor = ContentCompressor.getInstance();
+        int length = compressor.compress(encoding, bytes, 0, bytes.length);
+        return Arrays.copyOf(compressor.getOutput(), length);
+    }
+
+    private static byte[] read(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int read;
+        while ((read = input.read(buffer)) != -1) {
+            output.write(buffer, 0, read);
+        }
+        input.close();
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.http;
+
+import junit.framework.TestCase;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Simple test of HttpBindBody.
+ */
+public class HttpBindBodyTest extends TestCase {
+
+    public void testAttributes() throws Exception {
+        HttpBindBody body = HttpBindBody.parse("<body rid='10' xml:lang='en' " +
+                "xmlns='http://jabber.org/protocol/httpbind' xmlns:xmpp='urn:xmpp:xbosh' " +
+                "xmpp:restart='true'/>");
+        assertEquals("Wrong element name", "body", body.getName());
+        assertEquals("Wrong rid attribute", "10", body.attributeValue("rid"));
+        assertEquals("Wrong lang attribute", "en", body.attributeValue("xml:lang"));
+        assertTrue("Restart was not requested", body.isRestart());
+        assertTrue("Empty body has stanzas", body.getStanzas().isEmpty());
+    }
+
+    public void testStanzasAreKeptAsSent() throws Exception {
+        String message = "<message to='juliet@capulet.lit' id='a&gt;b'><body>Hi &amp; bye</body></message>";
+        HttpBindBody body = HttpBindBody.parse("<body rid='1'>" + message + " <presence/></body>");
+        List<String> stanzas = body.getStanzas();
+        assertEquals("Wrong number of stanzas", 2, stanzas.size());
+        assertEquals("Stanza was modified", message, stanzas.get(0));
+        assertEquals("Stanza was modified", "<presence/>", stanzas.get(1));
+    }
+
+    public void testNamespacesOfBodyAreDeclared() throws Exception {
+        HttpBindBody body = HttpBindBody.parse("<body rid='1' " +
+                "xmlns='http://jabber.org/protocol/httpbind' xmlns:x='urn:x&amp;y'>" +
+                "<message xmlns='jabber:client'><x:data/></message>" +
+                "<presence/>" +
+                "<iq xmlns='jabber:client' xmlns:x='urn:z' type='get'><x:query/></iq></body>");
+        List<String> stanzas = body.getStanzas();
+        assertEquals("Wrong number of stanzas", 3, stanzas.size());
+
+        Element message = DocumentHelper.parseText(stanzas.get(0)).getRootElement();
+        assertEquals("Wrong namespace", "jabber:client", message.getNamespaceURI());
+        assertEquals("Wrong namespace of prefixed child", "urn:x&y",
+                message.element("data").getNamespaceURI());
+
+        // Stanzas without a namespace are in the namespace of the wrapper element
+        Element presence = DocumentHelper.parseText(stanzas.get(1)).getRootElement();
+        assertEquals("Wrong namespace", "http://jabber.org/protocol/httpbind",
+                presence.getNamespaceURI());
+
+        // Declarations of the stanza take precedence
+        Element iq = DocumentHelper.parseText(stanzas.get(2)).getRootElement();
+        assertEquals("Wrong namespace", "jabber:client", iq.getNamespaceURI());
+        assertEquals("Wrong namespace of prefixed child", "urn:z",
+                iq.element("query").getNamespaceURI());
+        assertEquals("Wrong attribute", "get", iq.attributeValue("type"));
+    }
+
+    public void testNotWellFormed() throws Exception {
+        String[] requests = {
+                "",
+                "<body rid='1'><message></body>",
+                "<body rid='1'><x:message/></body>",
+        };
+        for (String request : requests) {
+            try {
+                HttpBindBody.parse(request);
+                fail("Request is not well-formed: " + request);
+            }
+            catch (XmlPullParserException e) {
+                // Expected exception
+            }
+            catch (IOException e) {
+                // Expected exception when the request ends too soon
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.http;
+
+import junit.framework.TestCase;
+import org.apache.mina.common.ByteBuffer;
+import org.dom4j.DocumentHelper;
+
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Simple test of the delivery of stanzas by HttpSession.
+ */
+public class HttpSessionTest extends TestCase {
+
+    private HttpSession session;
+
+    @Override
+    protected void setUp() throws Exception {
+        session = new HttpSession("capulet.lit", "delivery", 10);
+        session.setWait(60);
+        session.setHold(1);
+        session.setMaxRequests(2);
+    }
+
+    public void testReleasedConnectionCarriesAggregatedStanzas() throws Exception {
+        session.setAggregationWindow(60000);
+        HttpConnection held = createConnection(11);
+        session.deliver(DocumentHelper.parseText("<message id='m1'/>").getRootElement());
+        session.deliver(DocumentHelper.parseText("<message id='m2'/>").getRootElement());
+        assertFalse("Response was not held", held.isClosed());
+
+        // A new request releases the held one, which returns the aggregated stanzas
+        HttpConnection next = createConnection(12);
+        String response = getResponse(held);
+        assertTrue("Aggregated stanza is missing: " + response, response.contains("id=\"m1\""));
+        assertTrue("Aggregated stanza is missing: " + response, response.contains("id=\"m2\""));
+        assertFalse("New request was released", next.isClosed());
+    }
+
+    public void testReleasedConnectionWithoutStanzasIsEmpty() throws Exception {
+        HttpConnection held = createConnection(11);
+        createConnection(12);
+        assertTrue("Held request was not released", held.isClosed());
+        assertNull("Released request has a body", held.getResponse());
+    }
+
+    public void testStanzaIsDeliveredToWaitingConnection() throws Exception {
+        HttpConnection waiting = createConnection(11);
+        session.deliver(DocumentHelper.parseText("<message id='m1'/>").getRootElement());
+        assertTrue("Stanza is missing", getResponse(waiting).contains("id=\"m1\""));
+    }
+
+    public void testStanzaQueuedWhileMeasuringIsDelivered() throws Exception {
+        final BlockingLock lock = new BlockingLock();
+        Field field = HttpSession.class.getDeclaredField("lock");
+        field.setAccessible(true);
+        field.set(session, lock);
+        HttpConnection waiting = createConnection(11);
+
+        Thread measuring = new Thread() {
+            @Override
+            public void run() {
+                lock.blocked = this;
+                session.getWriteQueueBytes();
+            }
+        };
+        measuring.start();
+        assertTrue("Lock was not held", lock.held.await(5, TimeUnit.SECONDS));
+        // The stanza is queued since the lock is held while measuring the write queue
+        session.deliver(DocumentHelper.parseText("<message id='m1'/>").getRootElement());
+        assertFalse("Stanza was delivered while the lock was held", waiting.isClosed());
+        lock.release.countDown();
+        measuring.join(5000);
+        assertTrue("Stanza was not delivered once the lock was released", waiting.isClosed());
+        assertTrue("Stanza is missing", getResponse(waiting).contains("id=\"m1\""));
+    }
+
+    private HttpConnection createConnection(long rid) throws Exception {
+        return session.createConnection(rid, Collections.<String>emptyList(), false, false);
+    }
+
+    private static String getResponse(HttpConnection connection) throws Exception {
+        ByteBuffer body = connection.getResponse();
+        assertNotNull("Connection was closed without a body", body);
+        return body.getString(Charset.forName("UTF-8").newDecoder());
+    }
+
+    /**
+     * Lock that keeps a thread holding the lock until it is released by the test.
+     */
+    private static class BlockingLock extends ReentrantLock {
+
+        private final CountDownLatch held = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private volatile Thread blocked;
+
+        @Override
+        public boolean tryLock() {
+            boolean locked = super.tryLock();
+            if (locked && Thread.currentThread() == blocked) {
+                held.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return locked;
+        }
+    }
+}
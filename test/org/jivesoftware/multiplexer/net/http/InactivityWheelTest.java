@@ -0,0 +1,92 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.http;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+
+/**
+ * Simple test of InactivityWheel.
+ */
+public class InactivityWheelTest extends TestCase {
+
+    private static final long TICK = 1000;
+
+    private InactivityWheel wheel;
+    private long now;
+    private HttpSession session;
+
+    @Override
+    protected void setUp() throws Exception {
+        wheel = new InactivityWheel(TICK, 8);
+        now = System.currentTimeMillis();
+        session = new HttpSession("capulet.lit", "wheel", 1);
+    }
+
+    public void testExpire() throws Exception {
+        wheel.schedule(session, now + 3 * TICK);
+        assertEquals("Wrong number of sessions", 1, wheel.size());
+        assertTrue("Session expired too soon", wheel.expire(now + TICK).isEmpty());
+        assertEquals("Session did not expire", Collections.singletonList(session),
+                wheel.expire(now + 4 * TICK));
+        assertEquals("Expired session is still tracked", 0, wheel.size());
+        assertTrue("Session expired twice", wheel.expire(now + 5 * TICK).isEmpty());
+    }
+
+    public void testExpireInLaterRound() throws Exception {
+        wheel.schedule(session, now + 20 * TICK);
+        assertTrue("Session expired in an earlier round", wheel.expire(now + 5 * TICK).isEmpty());
+        assertTrue("Session expired in an earlier round", wheel.expire(now + 13 * TICK).isEmpty());
+        assertEquals("Session did not expire", Collections.singletonList(session),
+                wheel.expire(now + 21 * TICK));
+    }
+
+    public void testExpirePassedDeadline() throws Exception {
+        wheel.schedule(session, now - 5 * TICK);
+        assertEquals("Session did not expire", Collections.singletonList(session),
+                wheel.expire(now + TICK));
+    }
+
+    public void testPostpone() throws Exception {
+        wheel.schedule(session, now + 3 * TICK);
+        wheel.schedule(session, now + 6 * TICK);
+        assertEquals("Wrong number of sessions", 1, wheel.size());
+        assertTrue("Session expired at previous deadline", wheel.expire(now + 4 * TICK).isEmpty());
+        assertEquals("Session did not expire", Collections.singletonList(session),
+                wheel.expire(now + 7 * TICK));
+    }
+
+    public void testAdvance() throws Exception {
+        wheel.schedule(session, now + 6 * TICK);
+        wheel.schedule(session, now + 2 * TICK);
+        assertEquals("Session did not expire at new deadline", Collections.singletonList(session),
+                wheel.expire(now + 3 * TICK));
+        assertTrue("Session expired twice", wheel.expire(now + 7 * TICK).isEmpty());
+    }
+
+    public void testRemove() throws Exception {
+        wheel.schedule(session, now + 2 * TICK);
+        wheel.remove(session);
+        assertEquals("Removed session is still tracked", 0, wheel.size());
+        assertTrue("Removed session expired", wheel.expire(now + 10 * TICK).isEmpty());
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.http;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Simple test of RequestRing.
+ */
+public class RequestRingTest extends TestCase {
+
+    public void testWrapAround() throws Exception {
+        RequestRing<String> ring = new RequestRing<String>(4);
+        for (long rid = 1000; rid < 1100; rid++) {
+            ring.put(rid, "r" + rid);
+            if (rid >= 1003) {
+                assertEquals("Wrong value removed", "r" + (rid - 3), ring.remove(rid - 3));
+            }
+            assertEquals("Wrong value", "r" + rid, ring.get(rid));
+        }
+        assertEquals("Wrong number of values", 3, ring.size());
+        assertEquals("Wrong values", Arrays.asList("r1097", "r1098", "r1099"), toList(ring));
+        assertNull("Removed value was found", ring.get(1096));
+    }
+
+    public void testResizeOnCollision() throws Exception {
+        RequestRing<String> ring = new RequestRing<String>(2);
+        ring.put(1, "a");
+        ring.put(3, "b");
+        ring.put(17, "c");
+        assertEquals("Wrong value", "a", ring.get(1));
+        assertEquals("Wrong value", "b", ring.get(3));
+        assertEquals("Wrong value", "c", ring.get(17));
+        assertEquals("Wrong number of values", 3, ring.size());
+        ring.put(3, "d");
+        assertEquals("Value was not replaced", "d", ring.get(3));
+        assertEquals("Wrong number of values", 3, ring.size());
+        assertEquals("Wrong values", Arrays.asList("a", "d", "c"), toList(ring));
+    }
+
+    public void testEviction() throws Exception {
+        RequestRing<String> ring = new RequestRing<String>(2);
+        ring.set(1, "a");
+        ring.set(2, "b");
+        ring.set(3, "c");
+        assertNull("Value was not evicted", ring.get(1));
+        assertEquals("Wrong number of values", 2, ring.size());
+        assertEquals("Wrong values", Arrays.asList("b", "c"), toList(ring));
+    }
+
+    public void testIteratorAfterGrowing() throws Exception {
+        RequestRing<String> ring = new RequestRing<String>(2);
+        ring.put(0, "a");
+        ring.put(1024, "b");
+        ring.remove(0);
+        ring.put(1025, "c");
+        assertEquals("Wrong values", Arrays.asList("b", "c"), toList(ring));
+        ring.remove(1025);
+        ring.remove(1024);
+        assertTrue("Ring is not empty", ring.isEmpty());
+        assertEquals("Wrong values", Collections.emptyList(), toList(ring));
+    }
+
+    public void testLastAcknowledged() throws Exception {
+        HttpSession session = new HttpSession("capulet.lit", "ring", 10);
+        session.setWait(60);
+        session.setHold(2);
+        session.setMaxRequests(3);
+        assertEquals("Wrong acknowledged request", 10, session.getLastAcknowledged());
+        session.createConnection(12, Collections.<String>emptyList(), false, false);
+        assertEquals("Request after a gap was acknowledged", 10, session.getLastAcknowledged());
+        session.createConnection(13, Collections.<String>emptyList(), false, false);
+        assertEquals("Request after a gap was acknowledged", 10, session.getLastAcknowledged());
+        session.createConnection(11, Collections.<String>emptyList(), false, false);
+        assertEquals("Wrong acknowledged request", 13, session.getLastAcknowledged());
+    }
+
+    private static List<String> toList(RequestRing<String> ring) {
+        List<String> values = new ArrayList<String>();
+        for (String value : ring) {
+            values.add(value);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,86 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.websocket;
+
+import junit.framework.TestCase;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Simple test of the messages parsed by WebSocketConnectionHandler.
+ */
+public class WebSocketConnectionHandlerTest extends TestCase {
+
+    private static final String FRAMING = "urn:ietf:params:xml:ns:xmpp-framing";
+
+    public void testOpen() throws Exception {
+        WebSocketConnectionHandler.Message message = WebSocketConnectionHandler.Message.parse(
+                "<open xmlns='" + FRAMING + "' to='example.com' xml:lang='fr' version='1.0'/>");
+        assertEquals("Wrong element name", "open", message.name);
+        assertTrue("Open is not a framing element", message.isFraming());
+        assertEquals("Wrong language", "fr", message.language);
+    }
+
+    public void testOpenWithoutFramingNamespace() throws Exception {
+        WebSocketConnectionHandler.Message message =
+                WebSocketConnectionHandler.Message.parse("<open xmlns='jabber:client'/>");
+        assertEquals("Wrong element name", "open", message.name);
+        assertFalse("Open in another namespace is a framing element", message.isFraming());
+        message = WebSocketConnectionHandler.Message.parse("<close/>");
+        assertFalse("Close without namespace is a framing element", message.isFraming());
+    }
+
+    public void testLanguageOnlyFromXmlNamespace() throws Exception {
+        WebSocketConnectionHandler.Message message = WebSocketConnectionHandler.Message.parse(
+                "<open xmlns='" + FRAMING + "' lang='fr'/>");
+        assertEquals("Wrong language", "en", message.language);
+        message = WebSocketConnectionHandler.Message.parse(
+                "<open xmlns='" + FRAMING + "' xml:lang='a&quot;b'/>");
+        assertEquals("Wrong language", "a\"b", message.language);
+    }
+
+    public void testStanza() throws Exception {
+        WebSocketConnectionHandler.Message message = WebSocketConnectionHandler.Message.parse(
+                " <message xmlns='jabber:client'><body>Hi</body></message>\r\n");
+        assertEquals("Wrong element name", "message", message.name);
+        assertFalse("Stanza is a framing element", message.isFraming());
+    }
+
+    public void testTrailingContentIsRejected() throws Exception {
+        String[] messages = {
+                "<message xmlns='jabber:client'/><iq type='set'/>",
+                "<message xmlns='jabber:client'/>text",
+                "<message xmlns='jabber:client'/> <presence/>",
+                "<message xmlns='jabber:client'/>&amp;",
+                "<message xmlns='jabber:client'/><!-- comment -->",
+                "<message xmlns='jabber:client'>",
+                "<message xmlns='jabber:client'></iq>"
+        };
+        for (String text : messages) {
+            try {
+                WebSocketConnectionHandler.Message.parse(text);
+                fail("Invalid message was accepted: " + text);
+            }
+            catch (XmlPullParserException e) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * $RCSfile$
+ * $Revision: $
+ * $Date: $
+ *
+ * Copyright (C) 2006 Jive Software. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.jivesoftware.multiplexer.net.websocket;
+
+import junit.framework.TestCase;
+import org.apache.mina.common.ByteBuffer;
+import org.apache.mina.common.IoSession;
+import org.apache.mina.filter.codec.ProtocolDecoderException;
+import org.apache.mina.filter.codec.ProtocolDecoderOutput;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Simple test of WebSocketDecoder.
+ */
+public class WebSocketDecoderTest extends TestCase {
+
+    private static final String HANDSHAKE = "GET /ws/?x=1 HTTP/1.1\r\n" +
+            "Host: example.com\r\n" +
+            "Upgrade: websocket\r\n" +
+            "Connection: keep-alive, Upgrade\r\n" +
+            "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n" +
+            "Sec-WebSocket-Protocol: chat, xmpp\r\n" +
+            "Sec-WebSocket-Version: 13\r\n\r\n";
+
+    private WebSocketDecoder decoder;
+    private IoSession session;
+    private List<Object> messages;
+    private ProtocolDecoderOutput out;
+
+    @Override
+    protected void setUp() throws Exception {
+        decoder = new WebSocketDecoder(100);
+        session = createSession();
+        messages = new ArrayList<Object>();
+        out = new ProtocolDecoderOutput() {
+            public void write(Object message) {
+                messages.add(message);
+            }
+
+            public void flush() {
+            }
+        };
+    }
+
+    public void testHandshake() throws Exception {
+        byte[] request = HANDSHAKE.getBytes("ISO-8859-1");
+        ByteBuffer in = ByteBuffer.wrap(request, 0, request.length - 1);
+        assertFalse("Incomplete handshake was decoded", decoder.doDecode(session, in, out));
+        in = ByteBuffer.wrap(request);
+        assertTrue("Handshake was not decoded", decoder.doDecode(session, in, out));
+        WebSocketHandshake handshake = (WebSocketHandshake) messages.get(0);
+        assertTrue("Handshake is not valid", handshake.isValid());
+        assertTrue("Sub-protocol was not requested", handshake.isXmppRequested());
+        assertEquals("Query was not removed", "/ws/", handshake.getPath());
+        // Example of RFC 6455
+        assertTrue("Wrong accept key", handshake.createAcceptResponse()
+                .contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo=\r\n"));
+    }
+
+    public void testMaskedTextFrame() throws Exception {
+        upgrade();
+        ByteBuffer in = ByteBuffer.wrap(frame(true, WebSocketFrame.TEXT, "<presence/>", true));
+        assertTrue("Frame was not decoded", decoder.doDecode(session, in, out));
+        WebSocketFrame frame = (WebSocketFrame) messages.get(0);
+        assertEquals("Wrong opcode", WebSocketFrame.TEXT, frame.getOpcode());
+        assertEquals("Wrong text", "<presence/>", frame.getText());
+    }
+
+    public void testPartialFrame() throws Exception {
+        upgrade();
+        byte[] data = frame(true, WebSocketFrame.TEXT, "<presence/>", true);
+        ByteBuffer in = ByteBuffer.wrap(data, 0, data.length - 1);
+        assertFalse("Partial frame was decoded", decoder.doDecode(session, in, out));
+        assertEquals("Position was not restored", 0, in.position());
+        assertTrue("No message expected", messages.isEmpty());
+    }
+
+    public void testFragmentedMessageWithInterleavedPing() throws Exception {
+        upgrade();
+        assertTrue(decoder.doDecode(session,
+                ByteBuffer.wrap(frame(false, WebSocketFrame.TEXT, "<mess", true)), out));
+        assertTrue(decoder.doDecode(session,
+                ByteBuffer.wrap(frame(true, WebSocketFrame.PING, "", true)), out));
+        assertTrue(decoder.doDecode(session,
+                ByteBuffer.wrap(frame(true, WebSocketFrame.CONTINUATION, "age/>", true)), out));
+        assertEquals("Wrong number of messages", 2, messages.size());
+        assertEquals("Ping was not decoded first", WebSocketFrame.PING,
+                ((WebSocketFrame) messages.get(0)).getOpcode());
+        assertEquals("Fragments were not reassembled", "<message/>",
+                ((WebSocketFrame) messages.get(1)).getText());
+    }
+
+    public void testInvalidFrames() throws Exception {
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 101; i++) {
+            large.append('a');
+        }
+        byte[][] frames = {
+                frame(true, WebSocketFrame.TEXT, "<presence/>", false),
+                frame(false, WebSocketFrame.PING, "", true),
+                frame(true, WebSocketFrame.CONTINUATION, "<presence/>", true),
+                frame(true, WebSocketFrame.TEXT, large.toString(), true)
+        };
+        for (byte[] data : frames) {
+            setUp();
+            upgrade();
+            try {
+                decoder.doDecode(session, ByteBuffer.wrap(data), out);
+                fail("Invalid frame was decoded");
+            }
+            catch (ProtocolDecoderException e) {
+                // Expected
+            }
+        }
+    }
+
+    private void upgrade() {
+        session.setAttribute(WebSocketDecoder.UPGRADED, Boolean.TRUE);
+    }
+
+    private static byte[] frame(boolean fin, int opcode, String text, boolean masked)
+            throws Exception {
+        byte[] payload = text.getBytes("UTF-8");
+        byte[] mask = {1, 2, 3, 4};
+        int header = payload.length < 126 ? 2 : 4;
+        byte[] data = new byte[header + (masked ? 4 : 0) + payload.length];
+        data[0] = (byte) ((fin ? 0x80 : 0) | opcode);
+        if (payload.length < 126) {
+            data[1] = (byte) ((masked ? 0x80 : 0) | payload.length);
+        }
+        else {
+            data[1] = (byte) ((masked ? 0x80 : 0) | 126);
+            data[2] = (byte) (payload.length >> 8);
+            data[3] = (byte) payload.length;
+        }
+        int offset = header;
+        if (masked) {
+            System.arraycopy(mask, 0, data, offset, 4);
+            offset += 4;
+        }
+        for (int i = 0; i < payload.length; i++) {
+            data[offset + i] = (byte) (masked ? payload[i] ^ mask[i & 3] : payload[i]);
+        }
+        return data;
+    }
+
+    private static IoSession createSession() {
+        final Map<Object, Object> attributes = new HashMap<Object, Object>();
+        return (IoSession) Proxy.newProxyInstance(IoSession.class.getClassLoader(),
+                new Class<?>[]{IoSession.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if ("getAttribute".equals(name)) {
+                            return attributes.get(args[0]);
+                        }
+                        if ("setAttribute".equals(name)) {
+                            return attributes.put(args[0], args.length > 1 ? args[1] : Boolean.TRUE);
+                        }
+                        if ("removeAttribute".equals(name)) {
+                            return attributes.remove(args[0]);
+                        }
+                        return null;
+                    }
+                });
+    }
+}